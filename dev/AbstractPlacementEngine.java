@@ -0,0 +1,335 @@
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntPredicate;
+import java.util.function.IntToLongFunction;
+
+/**
+ * 不依赖虚拟节点的放置算法基类，位置只由文件hash和成员列表决定。
+ * 成员列表为不可变快照，成员变更时对所有文件重新计算位置，与原位置不同的副本即为迁移计划
+ */
+public abstract class AbstractPlacementEngine implements PlacementEngine {
+    protected final HashFunction hashFunction;
+    protected final FileIdDictionary fileIds;
+    private int[][] fileDPorts = new int[0][]; // file id -> dPorts, guarded by this
+    private final AtomicReference<Membership> membershipRef = new AtomicReference<>();
+    private Membership pendingMembership; // members after planned but not yet committed changes, writer only
+    private int[][] pendingFileDPorts = new int[0][]; // file id -> planned but not yet committed dPorts, writer only
+    private final AtomicInteger pendingTransitions = new AtomicInteger();
+    private volatile IntToLongFunction fileSizes = fileId -> 1;
+
+    protected AbstractPlacementEngine(HashFunction hashFunction, FileIdDictionary fileIds) {
+        this.hashFunction = hashFunction;
+        this.fileIds = fileIds;
+    }
+
+    private long hashOf(int fileId) {
+        return hashFunction.hash64(fileIds.nameOf(fileId));
+    }
+
+    /**
+     * 成员快照，weights与dPorts一一对应
+     */
+    static class Membership {
+        final long epoch;
+        final int[] dPorts;
+        final double[] weights;
+
+        Membership(long epoch, int[] dPorts, double[] weights) {
+            this.epoch = epoch;
+            this.dPorts = dPorts;
+            this.weights = weights;
+        }
+
+        double weightOf(int dPort) {
+            for (int i = 0; i < dPorts.length; i++) {
+                if (dPorts[i] == dPort) return weights[i];
+            }
+            return 1.0;
+        }
+    }
+
+    /**
+     * 计算文件的r个副本所在节点
+     * @param hash 文件名的64位hash
+     * @param r
+     * @param membership 成员列表
+     * @return
+     */
+    protected abstract int[] place(long hash, int r, Membership membership);
+
+    /**
+     * 根据成员变更计算新的成员列表，默认保持原顺序，新成员追加在末尾
+     * @param dPorts
+     * @param joins
+     * @param leaves
+     * @return
+     */
+    protected int[] nextMembers(int[] dPorts, Set<Integer> joins, Set<Integer> leaves) {
+        List<Integer> members = new ArrayList<>();
+        for (int dPort : dPorts) {
+            if (!leaves.contains(dPort)) members.add(dPort);
+        }
+        for (int dPort : joins) {
+            if (!members.contains(dPort)) members.add(dPort);
+        }
+        return members.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * 根据成员变更和权重变化计算下一个成员快照
+     * @param base
+     * @param joins
+     * @param leaves
+     * @param weights 新加入或权重变化的节点权重
+     * @return
+     */
+    private Membership nextMembership(Membership base, Set<Integer> joins, Set<Integer> leaves, Map<Integer, Double> weights) {
+        int[] members = nextMembers(base.dPorts, joins, leaves);
+        double[] memberWeights = new double[members.length];
+        for (int i = 0; i < members.length; i++) {
+            Double weight = weights.get(members[i]);
+            memberWeights[i] = weight != null ? weight : base.weightOf(members[i]);
+        }
+        return new Membership(base.epoch + 1, members, memberWeights);
+    }
+
+    @Override
+    public synchronized void init(List<Integer> dPorts, Map<Integer, Double> weights, int r) throws ConsistentHashException {
+        if (dPorts.size() < r) throw new ConsistentHashException("not enough dstores");
+        double[] memberWeights = new double[dPorts.size()];
+        for (int i = 0; i < memberWeights.length; i++) memberWeights[i] = weights.getOrDefault(dPorts.get(i), 1.0);
+        membershipRef.set(new Membership(0, dPorts.stream().mapToInt(Integer::intValue).toArray(), memberWeights));
+    }
+
+    @Override
+    public Placement getStoreTarget(String filename, int r) throws ConsistentHashException {
+        Membership membership = membershipRef.get();
+        if (membership.dPorts.length < r) throw new ConsistentHashException("not enough dstores");
+        return new Placement(membership.epoch, Collections.emptyList(), place(hashFunction.hash64(filename), r, membership));
+    }
+
+    /**
+     * 全部成员的候选顺序的前r个与place的结果相同，依次跳过过载节点
+     */
+    @Override
+    public Placement getStoreTarget(String filename, int r, IntPredicate overloaded) throws ConsistentHashException {
+        Membership membership = membershipRef.get();
+        if (membership.dPorts.length < r) throw new ConsistentHashException("not enough dstores");
+        int[] candidates = place(hashFunction.hash64(filename), membership.dPorts.length, membership);
+        int[] selected = new int[r];
+        int count = 0;
+        boolean redirected = false;
+        for (int i = 0; i < candidates.length; i++) {
+            if (count < r && !overloaded.test(candidates[i])) selected[count++] = candidates[i];
+            else if (i < r) redirected = true;
+        }
+        if (redirected) PlacementEngine.boundedRedirects.increment();
+        for (int i = 0; count < r; i++) {
+            if (!contains(selected, count, candidates[i])) selected[count++] = candidates[i];
+        }
+        return new Placement(membership.epoch, Collections.emptyList(), selected);
+    }
+
+    private static boolean contains(int[] array, int count, int value) {
+        for (int i = 0; i < count; i++) {
+            if (array[i] == value) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized boolean afterStoreTargetFile(int fileId, Placement placement) {
+        Membership membership = membershipRef.get();
+        if (fileId >= fileDPorts.length) fileDPorts = Arrays.copyOf(fileDPorts, Math.max(fileId + 1, fileDPorts.length * 2));
+        if (placement.epoch == membership.epoch) {
+            fileDPorts[fileId] = placement.dPorts;
+        } else {
+            // 按当前成员记录应当存储的位置，由controller核对迁移
+            fileDPorts[fileId] = place(hashOf(fileId), placement.dPorts.length, membership);
+        }
+        return placement.epoch != membership.epoch || pendingTransitions.get() > 0;
+    }
+
+    @Override
+    public synchronized void removeFile(int fileId) throws ConsistentHashException {
+        if (fileId >= fileDPorts.length || fileDPorts[fileId] == null) {
+            throw new ConsistentHashException("file-dstore reflecting fault");
+        }
+        fileDPorts[fileId] = null;
+        if (fileId < pendingFileDPorts.length) pendingFileDPorts[fileId] = null;
+    }
+
+    @Override
+    public TransferPlan addDstore(int newDPort, double weight) throws ConsistentHashException {
+        return changeMembership(Map.of(newDPort, weight), Set.of(), Map.of());
+    }
+
+    @Override
+    public TransferPlan removeDstore(int dPort) throws ConsistentHashException {
+        return changeMembership(Map.of(), Set.of(dPort), Map.of());
+    }
+
+    @Override
+    public TransferPlan setWeight(int dPort, double weight) throws ConsistentHashException {
+        return changeMembership(Map.of(), Set.of(), Map.of(dPort, weight));
+    }
+
+    @Override
+    public synchronized TransferPlan changeMembership(Map<Integer, Double> joins, Set<Integer> leaves,
+                                                      Map<Integer, Double> weights) throws ConsistentHashException {
+        List<Integer> members = new ArrayList<>();
+        for (int dPort : workingMembership().dPorts) members.add(dPort);
+        PlacementEngine.checkMembershipChange(members, joins, leaves, weights);
+        Map<Integer, Double> changedWeights = new HashMap<>(weights);
+        changedWeights.putAll(joins);
+        return plan(new TreeSet<>(joins.keySet()), new TreeSet<>(leaves), changedWeights);
+    }
+
+    /**
+     * 写者视角下的成员快照，包含已规划但尚未提交的变更
+     * @return
+     */
+    private Membership workingMembership() {
+        return pendingMembership == null ? membershipRef.get() : pendingMembership;
+    }
+
+    /**
+     * 在已规划的成员基础上生成迁移计划
+     * @param joins
+     * @param leaves
+     * @param weights
+     * @return
+     */
+    private TransferPlan plan(Set<Integer> joins, Set<Integer> leaves, Map<Integer, Double> weights) {
+        Membership membership = nextMembership(workingMembership(), joins, leaves, weights);
+        TransferPlan plan = new TransferPlan(membershipRef.get().epoch, joins, leaves);
+        plan.weights.putAll(weights);
+        if (pendingFileDPorts.length < fileDPorts.length) pendingFileDPorts = Arrays.copyOf(pendingFileDPorts, fileDPorts.length);
+        for (int fileId = 0; fileId < fileDPorts.length; fileId++) {
+            if (fileDPorts[fileId] == null) continue;
+            int[] oldDPorts = pendingFileDPorts[fileId] != null ? pendingFileDPorts[fileId] : fileDPorts[fileId];
+            int[] newDPorts = place(hashOf(fileId), oldDPorts.length, membership);
+            addMoves(plan, fileId, oldDPorts, newDPorts);
+            pendingFileDPorts[fileId] = newDPorts;
+        }
+        pendingMembership = membership;
+        pendingTransitions.incrementAndGet();
+        plan.recordMetrics();
+        return plan;
+    }
+
+    /**
+     * 新位置中多出的节点与旧位置中去掉的节点依次配对，生成迁移
+     * @param plan
+     * @param fileId
+     * @param oldDPorts
+     * @param newDPorts
+     */
+    private void addMoves(TransferPlan plan, int fileId, int[] oldDPorts, int[] newDPorts) {
+        int[] removed = new int[oldDPorts.length];
+        int removedCount = 0;
+        for (int dPort : oldDPorts) {
+            if (!contains(newDPorts, dPort)) removed[removedCount++] = dPort;
+        }
+        int pos = 0;
+        for (int dPort : newDPorts) {
+            if (!contains(oldDPorts, dPort)) {
+                plan.addMove(fileId, pos < removedCount ? removed[pos++] : -1, dPort, fileSizes.applyAsLong(fileId));
+            }
+        }
+    }
+
+    static boolean contains(int[] array, int value) {
+        for (int element : array) {
+            if (element == value) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized void commit(TransferPlan plan) {
+        Membership membership = nextMembership(membershipRef.get(), plan.joins, plan.leaves, plan.weights);
+        membershipRef.set(membership);
+        // 计划生成后才存储的文件也按新成员重新计算
+        for (int fileId = 0; fileId < fileDPorts.length; fileId++) {
+            if (fileDPorts[fileId] != null) fileDPorts[fileId] = place(hashOf(fileId), fileDPorts[fileId].length, membership);
+        }
+        if (pendingTransitions.decrementAndGet() <= 0) {
+            pendingTransitions.set(0);
+            pendingMembership = null;
+            pendingFileDPorts = new int[0][];
+        }
+    }
+
+    @Override
+    public synchronized Map<Integer, IntHashSet> getDPortFilesMap() {
+        Map<Integer, IntHashSet> map = new HashMap<>();
+        for (int dPort : membershipRef.get().dPorts) map.put(dPort, new IntHashSet());
+        for (int fileId = 0; fileId < fileDPorts.length; fileId++) {
+            if (fileDPorts[fileId] == null) continue;
+            for (int dPort : fileDPorts[fileId]) {
+                map.computeIfAbsent(dPort, k -> new IntHashSet()).add(fileId);
+            }
+        }
+        return map;
+    }
+
+    @Override
+    public synchronized List<Integer> getFileDPorts(int fileId) {
+        List<Integer> dPorts = new ArrayList<>();
+        int[] array = fileId < fileDPorts.length ? fileDPorts[fileId] : null;
+        if (array != null) for (int dPort : array) dPorts.add(dPort);
+        return dPorts;
+    }
+
+    @Override
+    public PlacementState exportState() {
+        Membership membership = membershipRef.get();
+        if (membership == null) return null;
+        return new PlacementState(membership.epoch, membership.dPorts, membership.weights, null, null, null);
+    }
+
+    @Override
+    public synchronized void restoreState(PlacementState state, int r) throws ConsistentHashException {
+        if (state.members.length < r) throw new ConsistentHashException("not enough dstores");
+        membershipRef.set(new Membership(state.epoch, state.members.clone(), state.weights.clone()));
+        fileDPorts = new int[0][];
+        pendingMembership = null;
+        pendingFileDPorts = new int[0][];
+        pendingTransitions.set(0);
+    }
+
+    @Override
+    public synchronized int[] placementOf(int fileId) {
+        return fileId < fileDPorts.length && fileDPorts[fileId] != null ? fileDPorts[fileId].clone() : null;
+    }
+
+    @Override
+    public synchronized void restoreFile(int fileId, int[] placement) {
+        if (fileId >= fileDPorts.length) fileDPorts = Arrays.copyOf(fileDPorts, Math.max(fileId + 1, fileDPorts.length * 2));
+        fileDPorts[fileId] = placement;
+    }
+
+    @Override
+    public FileIdDictionary getFileIds() {
+        return fileIds;
+    }
+
+    @Override
+    public void setFileSizes(IntToLongFunction fileSizes) {
+        this.fileSizes = fileSizes;
+    }
+
+    @Override
+    public List<Integer> getDPorts() {
+        List<Integer> dPorts = new ArrayList<>();
+        for (int dPort : membershipRef.get().dPorts) dPorts.add(dPort);
+        return dPorts;
+    }
+
+    @Override
+    public long getEpoch() {
+        return membershipRef.get().epoch;
+    }
+}
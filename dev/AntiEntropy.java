@@ -0,0 +1,160 @@
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntPredicate;
+import java.util.logging.Logger;
+
+/**
+ * controller端的反熵核对：按controller认为某个dstore应持有的文件构建默克尔树，与dstore维护的树从根开始逐层比较，
+ * 只向摘要不同的子树下降，到达叶子后只取这些hash环分段中的文件名。存储和确认之间的短暂差异会在下一轮消失，
+ * 因此同一个叶子连续两轮不同才报告
+ */
+public class AntiEntropy {
+    private static final Logger logger = Logger.getLogger(AntiEntropy.class.getName());
+    private static final LongAdder rounds = Metrics.counter("controller.antiEntropy.rounds");
+    private static final LongAdder nodesFetched = Metrics.counter("controller.antiEntropy.nodes"); // 传输的节点摘要数
+    private static final LongAdder namesFetched = Metrics.counter("controller.antiEntropy.names"); // 传输的文件名数
+    private static final LongAdder divergentFiles = Metrics.counter("controller.antiEntropy.divergentFiles");
+    private final DstoreConnectionPool dstoreConnections;
+    private final FileIdDictionary fileIds;
+    private final HashFunction hashFunction;
+    private final int depth;
+    private final IntPredicate inFlight; // 存储中的文件，两边暂时不一致是正常的
+    private long[] fileHashes = new long[0]; // file id -> hash64 of name, 0 when not computed yet, guarded by this
+    private final Map<Integer, Set<Integer>> suspects = new HashMap<>(); // dPort -> leaves differing in the previous round, guarded by this
+
+    /**
+     * 确认不一致时的处理
+     */
+    interface Repair {
+        /**
+         * @param dPort
+         * @param held dstore持有但controller没有记录的文件
+         * @param missing controller记录但dstore没有持有的文件
+         */
+        void diverged(int dPort, IntHashSet held, IntHashSet missing);
+    }
+
+    /**
+     * 初始化
+     * @param dstoreConnections
+     * @param fileIds
+     * @param hashFunction 与dstore相同的hash函数
+     * @param depth 树高，与dstore相同
+     * @param inFlight 存储中的文件，不计为不一致
+     */
+    public AntiEntropy(DstoreConnectionPool dstoreConnections, FileIdDictionary fileIds, HashFunction hashFunction, int depth,
+                       IntPredicate inFlight) {
+        this.dstoreConnections = dstoreConnections;
+        this.fileIds = fileIds;
+        this.hashFunction = hashFunction;
+        this.depth = depth;
+        this.inFlight = inFlight;
+    }
+
+    /**
+     * 核对一个dstore
+     * @param dPort
+     * @param expected controller认为该dstore持有的文件
+     * @param repair
+     * @return 确认不一致的文件数
+     * @throws IOException
+     */
+    public synchronized int check(int dPort, int[] expected, Repair repair) throws IOException {
+        rounds.increment();
+        MerkleDigest digest = new MerkleDigest(hashFunction, depth, false);
+        for (int fileId : expected) digest.xorLeaf(hashOf(fileId));
+        digest.rebuild();
+        // 逐层下降，每层一次往返
+        Set<Integer> differing = new HashSet<>(); // leaf numbers
+        List<Integer> frontier = List.of(1);
+        while (!frontier.isEmpty()) {
+            long[] hashes = fetchNodes(dPort, frontier);
+            List<Integer> next = new ArrayList<>();
+            for (int i = 0; i < frontier.size(); i++) {
+                int index = frontier.get(i);
+                if (hashes[i] == digest.node(index)) continue;
+                if (index >= digest.leaves()) {
+                    differing.add(index - digest.leaves());
+                } else {
+                    next.add(2 * index);
+                    next.add(2 * index + 1);
+                }
+            }
+            frontier = next;
+        }
+        Set<Integer> previous = suspects.put(dPort, differing);
+        Set<Integer> confirmed = new TreeSet<>(differing);
+        if (previous == null) return 0;
+        confirmed.retainAll(previous);
+        if (confirmed.isEmpty()) return 0;
+        // 只比较确认不同的分段中的文件
+        IntHashSet held = new IntHashSet();
+        for (String filename : fetchNames(dPort, confirmed)) held.add(fileIds.intern(filename));
+        IntHashSet missing = new IntHashSet();
+        for (int fileId : expected) {
+            if (!confirmed.contains(digest.leafOf(hashOf(fileId)))) continue;
+            if (!held.remove(fileId) && !inFlight.test(fileId)) missing.add(fileId);
+        }
+        for (int fileId : held.toArray()) {
+            if (inFlight.test(fileId)) held.remove(fileId);
+        }
+        int count = held.size() + missing.size();
+        if (count == 0) return 0;
+        divergentFiles.add(count);
+        logger.warning(String.format("dstore %d diverges in %d arcs: %d files not recorded, %d files missing",
+                dPort, confirmed.size(), held.size(), missing.size()));
+        suspects.remove(dPort);
+        repair.diverged(dPort, held, missing);
+        return count;
+    }
+
+    /**
+     * dstore离开时清除记录
+     * @param dPort
+     */
+    public synchronized void removeDstore(int dPort) {
+        suspects.remove(dPort);
+    }
+
+    private long hashOf(int fileId) {
+        if (fileId >= fileHashes.length) fileHashes = Arrays.copyOf(fileHashes, Math.max(fileId + 1, fileHashes.length * 2));
+        if (fileHashes[fileId] == 0) fileHashes[fileId] = hashFunction.hash64(fileIds.nameOf(fileId));
+        return fileHashes[fileId];
+    }
+
+    private long[] fetchNodes(int dPort, List<Integer> indexes) throws IOException {
+        StringBuilder sendMsg = new StringBuilder(Protocol.DIGEST_TOKEN);
+        for (int index : indexes) sendMsg.append(' ').append(index);
+        String[] substrings = exchange(dPort, sendMsg.toString(), Protocol.DIGEST_TOKEN);
+        if (substrings.length != indexes.size() + 1) throw new SocketTimeoutException("unexpected response");
+        long[] hashes = new long[indexes.size()];
+        for (int i = 0; i < hashes.length; i++) hashes[i] = Long.parseUnsignedLong(substrings[i + 1], 16);
+        nodesFetched.add(hashes.length);
+        return hashes;
+    }
+
+    private List<String> fetchNames(int dPort, Set<Integer> leaves) throws IOException {
+        StringBuilder sendMsg = new StringBuilder(Protocol.DIGEST_FILES_TOKEN);
+        for (int leaf : leaves) sendMsg.append(' ').append(leaf);
+        String[] substrings = exchange(dPort, sendMsg.toString(), Protocol.DIGEST_FILES_TOKEN);
+        List<String> filenames = new ArrayList<>();
+        for (int i = 1; i < substrings.length; i++) {
+            if (!substrings[i].isEmpty()) filenames.add(substrings[i]);
+        }
+        namesFetched.add(filenames.size());
+        return filenames;
+    }
+
+    private String[] exchange(int dPort, String sendMsg, String token) throws IOException {
+        String receivedMsg = dstoreConnections.execute(dPort, communication -> {
+            communication.send(sendMsg);
+            return communication.receive();
+        });
+        if (receivedMsg == null) throw new IOException("connection closed");
+        String[] substrings = receivedMsg.split(" ");
+        if (!substrings[0].equals(token)) throw new SocketTimeoutException("unexpected response");
+        return substrings;
+    }
+}
@@ -0,0 +1,140 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+/**
+ * 批量存储小文件的客户端：一次STORE_BATCH取得所有文件的存储位置，向每个dstore只建立一个连接上传它负责的全部文件，
+ * dstore存完一批后一次确认，controller在全部副本确认或超时后回复每个文件的结果。client.jar没有批量接口，因此单独实现
+ */
+public class BatchStoreClient implements Closeable {
+    private static final Logger logger = Logger.getLogger(BatchStoreClient.class.getName());
+    private final Communication controller;
+    private final int timeout;
+
+    /**
+     * 初始化
+     * @param cPort
+     * @param timeout
+     * @throws IOException
+     */
+    public BatchStoreClient(int cPort, int timeout) throws IOException {
+        this.timeout = timeout;
+        // controller在全部副本确认或超时之后才回复结果，读超时留出上传的时间
+        this.controller = new Communication(cPort, timeout * 2);
+    }
+
+    /**
+     * 存储一批文件
+     * @param files 文件名 -> 内容
+     * @return 存储成功的文件名
+     * @throws IOException
+     */
+    public List<String> store(Map<String, byte[]> files) throws IOException {
+        List<String> filenames = new ArrayList<>(files.keySet());
+        StringBuilder sendMsg = new StringBuilder(Protocol.STORE_BATCH_TOKEN);
+        for (String filename : filenames) sendMsg.append(' ').append(filename).append(' ').append(files.get(filename).length);
+        controller.send(sendMsg.toString());
+        String[] targets = expect(Protocol.STORE_BATCH_TO_TOKEN, filenames.size());
+        Map<Integer, List<String>> uploads = new LinkedHashMap<>(); // dPort -> filenames to upload
+        for (int i = 0; i < filenames.size(); i++) {
+            if (targets[i + 1].startsWith("ERROR")) {
+                logger.warning(String.format("file %s is rejected: %s", filenames.get(i), targets[i + 1]));
+                continue;
+            }
+            for (String dPort : targets[i + 1].split(",")) {
+                uploads.computeIfAbsent(Integer.parseInt(dPort), k -> new ArrayList<>()).add(filenames.get(i));
+            }
+        }
+        // 各个dstore并发上传
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (Map.Entry<Integer, List<String>> entry : uploads.entrySet()) {
+                executor.execute(() -> upload(entry.getKey(), entry.getValue(), files));
+            }
+        }
+        String[] results = expect(Protocol.STORE_BATCH_COMPLETE_TOKEN, filenames.size());
+        List<String> stored = new ArrayList<>();
+        for (int i = 0; i < filenames.size(); i++) {
+            if (results[i + 1].equals(Protocol.STORE_BATCH_STORED)) stored.add(filenames.get(i));
+        }
+        return stored;
+    }
+
+    /**
+     * 读取controller的一行回复
+     * @param token 期望的命令
+     * @param count 期望的文件数
+     * @return 按空格拆分的回复
+     * @throws IOException
+     */
+    private String[] expect(String token, int count) throws IOException {
+        String receiveMsg = controller.receive();
+        if (receiveMsg == null) throw new IOException("connection closed by controller");
+        String[] substrings = receiveMsg.split(" ");
+        if (substrings[0].equals(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN)) throw new IOException("not enough dstores");
+        if (!substrings[0].equals(token) || substrings.length != count + 1) {
+            throw new IOException(String.format("unexpected response %s", receiveMsg));
+        }
+        return substrings;
+    }
+
+    /**
+     * 在一个连接上向dstore上传一批文件，内容在ACK之后按顺序连续发送；失败的文件由controller超时后报告
+     * @param dPort
+     * @param filenames
+     * @param files
+     */
+    private void upload(int dPort, List<String> filenames, Map<String, byte[]> files) {
+        StringBuilder sendMsg = new StringBuilder(Protocol.STORE_BATCH_TOKEN);
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        for (String filename : filenames) {
+            byte[] fileContent = files.get(filename);
+            sendMsg.append(' ').append(filename).append(' ').append(fileContent.length);
+            content.writeBytes(fileContent);
+        }
+        try {
+            Communication dstore = new Communication(dPort, timeout);
+            try {
+                dstore.send(sendMsg.toString());
+                if (!Protocol.ACK_TOKEN.equals(dstore.receive())) throw new IOException("not the expected response");
+                dstore.sendContent(content.toByteArray());
+            } finally {
+                dstore.close();
+            }
+        } catch (IOException e) {
+            logger.warning(String.format("upload %d files to %d error", filenames.size(), dPort));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        controller.close();
+    }
+
+    /**
+     * 批量存储吞吐量测试
+     * @param args cPort [文件数] [每批文件数] [文件字节数]
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        int cPort = Integer.parseInt(args[0]);
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int batchSize = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        int filesize = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+        String prefix = "batch" + System.currentTimeMillis() + "_";
+        int stored = 0;
+        long startTime = System.nanoTime();
+        try (BatchStoreClient client = new BatchStoreClient(cPort, Config.timeout)) {
+            for (int i = 0; i < count; i += batchSize) {
+                Map<String, byte[]> files = new LinkedHashMap<>();
+                for (int j = i; j < Math.min(count, i + batchSize); j++) files.put(prefix + j, new byte[filesize]);
+                stored += client.store(files).size();
+            }
+        }
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        System.out.printf("batch=%d stored %d/%d files in %.2fs, %,.0f files/s%n", batchSize, stored, count, seconds, stored / seconds);
+    }
+}
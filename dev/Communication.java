@@ -10,7 +10,7 @@ import java.util.logging.Logger;
 /**
  * 对socket进行封装，简化通信流程
  */
-public class Communication {
+public class Communication implements MessageChannel {
     private static final Logger logger = Logger.getLogger(Communication.class.getName());
     private Socket socket;
     private PrintWriter out;
@@ -96,6 +96,7 @@ public class Communication {
      * @param msg
      * @throws IOException
      */
+    @Override
     public void send(String msg) throws IOException {
         if (status == CommunicationStatus.ESTABLISHED) {
             out.print(msg + "\n");
@@ -170,6 +171,30 @@ public class Communication {
         throw new IOException("connect error");
     }
 
+    /**
+     * 接收指定长度的文件内容，不等待对端关闭，之后可以继续在连接上通信
+     * @param filesize
+     * @return
+     * @throws IOException
+     */
+    public byte[] receiveContentExactly(int filesize) throws IOException {
+        if (status == CommunicationStatus.ESTABLISHED) {
+            try {
+                byte[] buffer = socket.getInputStream().readNBytes(filesize);
+                if (buffer.length != filesize) {
+                    throw new IOException("file transfer error");
+                }
+                return buffer;
+            } catch (IOException e) {
+                socket.close();
+                status = CommunicationStatus.ERROR;
+                throw new IOException("connect error with receiving");
+            }
+        }
+        socket.close();
+        throw new IOException("connect error");
+    }
+
     /**
      * 关闭通信
      * @throws IOException
@@ -186,10 +211,20 @@ public class Communication {
         }
     }
 
+    /**
+     * 是否有尚未读取的数据
+     * @return
+     * @throws IOException
+     */
+    public boolean hasUnreadInput() throws IOException {
+        return in.ready();
+    }
+
     public boolean isClosed(){
         return socket.isClosed() || !socket.isConnected();
     }
 
+    @Override
     public int getTargetPort(){
         return socket.getPort();
     }
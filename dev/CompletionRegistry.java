@@ -0,0 +1,78 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 等待dstore回复的操作登记表，每个操作对应一个future：收到足够的回复时由回复线程完成，
+ * 超时由共享的时间轮以TimeoutException完成，两者只有一个生效。发起操作的线程登记后即可返回，不需要阻塞等待
+ * @param <K> 操作的键，同一时刻每个键只有一个进行中的操作
+ */
+public class CompletionRegistry<K> {
+    private final ConcurrentHashMap<K, Pending> pending = new ConcurrentHashMap<>();
+    private final TimerWheel timerWheel;
+    private final String name;
+
+    /**
+     * 进行中的操作
+     */
+    private static final class Pending {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        volatile TimerWheel.Timeout timeout;
+    }
+
+    /**
+     * 初始化
+     * @param name 操作名，用于超时信息
+     * @param timerWheel
+     */
+    public CompletionRegistry(String name, TimerWheel timerWheel) {
+        this.name = name;
+        this.timerWheel = timerWheel;
+    }
+
+    /**
+     * 登记操作，同一个键上尚未结束的旧操作以IllegalStateException结束
+     * @param key
+     * @param timeoutMillis
+     * @return 完成或超时时结束的future，回调在完成它的线程上执行
+     */
+    public CompletableFuture<Void> register(K key, long timeoutMillis) {
+        Pending operation = new Pending();
+        Pending previous = pending.put(key, operation);
+        if (previous != null) {
+            cancelTimeout(previous);
+            previous.future.completeExceptionally(new IllegalStateException(String.format("%s %s is superseded", name, key)));
+        }
+        operation.timeout = timerWheel.schedule(() -> {
+            if (pending.remove(key, operation)) {
+                operation.future.completeExceptionally(new TimeoutException(String.format("%s %s is timeout", name, key)));
+            }
+        }, timeoutMillis);
+        return operation.future;
+    }
+
+    /**
+     * 操作成功
+     * @param key
+     * @return 是否有进行中的操作被完成，已超时的操作返回false
+     */
+    public boolean complete(K key) {
+        Pending operation = pending.remove(key);
+        if (operation == null) return false;
+        cancelTimeout(operation);
+        return operation.future.complete(null);
+    }
+
+    private static void cancelTimeout(Pending operation) {
+        TimerWheel.Timeout timeout = operation.timeout;
+        if (timeout != null) timeout.cancel(); // 登记与完成并发时可能尚未设置，到期后因已移除而不生效
+    }
+
+    /**
+     * 进行中的操作数
+     * @return
+     */
+    public int size() {
+        return pending.size();
+    }
+}
@@ -0,0 +1,108 @@
+import java.util.function.IntConsumer;
+
+/**
+ * 分段加锁的非负int并发集合，每段是一个IntHashSet，由段自身加锁。
+ * 添加和删除只锁住一段，均摊O(1)且不复制数组；遍历逐段加锁复制，
+ * 得到的是每段各自一致的快照，遍历期间并发的添加删除不会抛出异常，也不会阻塞其它段
+ */
+public class ConcurrentIntSet {
+    private static final int DEFAULT_STRIPES = 16;
+    private final IntHashSet[] stripes;
+    private final int shift;
+
+    public ConcurrentIntSet() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param stripes 段数，向上取整为2的幂
+     */
+    public ConcurrentIntSet(int stripes) {
+        int count = Integer.highestOneBit(Math.max(1, stripes * 2 - 1));
+        this.stripes = new IntHashSet[count];
+        for (int i = 0; i < count; i++) this.stripes[i] = new IntHashSet(4);
+        shift = 32 - Integer.numberOfTrailingZeros(count);
+    }
+
+    /**
+     * 取乘法hash的高位选段，段内IntHashSet使用低位定位，两者互不相关
+     * @param value
+     * @return
+     */
+    private IntHashSet stripeOf(int value) {
+        return shift == 32 ? stripes[0] : stripes[(value * 0x9E3779B9) >>> shift];
+    }
+
+    public boolean add(int value) {
+        IntHashSet stripe = stripeOf(value);
+        synchronized (stripe) {
+            return stripe.add(value);
+        }
+    }
+
+    public boolean remove(int value) {
+        IntHashSet stripe = stripeOf(value);
+        synchronized (stripe) {
+            return stripe.remove(value);
+        }
+    }
+
+    public boolean contains(int value) {
+        IntHashSet stripe = stripeOf(value);
+        synchronized (stripe) {
+            return stripe.contains(value);
+        }
+    }
+
+    /**
+     * 逐段复制后在锁外回调，回调中可以安全地访问本集合
+     * @param consumer
+     */
+    public void forEach(IntConsumer consumer) {
+        for (IntHashSet stripe : stripes) {
+            int[] values;
+            synchronized (stripe) {
+                if (stripe.isEmpty()) continue;
+                values = stripe.toArray();
+            }
+            for (int value : values) consumer.accept(value);
+        }
+    }
+
+    /**
+     * 将全部元素加入target，target由调用方保证独占
+     * @param target
+     */
+    public void copyTo(IntHashSet target) {
+        for (IntHashSet stripe : stripes) {
+            synchronized (stripe) {
+                stripe.forEach(target::add);
+            }
+        }
+    }
+
+    public int[] toArray() {
+        IntHashSet snapshot = new IntHashSet(Math.max(4, size()));
+        copyTo(snapshot);
+        return snapshot.toArray();
+    }
+
+    public int size() {
+        int size = 0;
+        for (IntHashSet stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        for (IntHashSet stripe : stripes) {
+            synchronized (stripe) {
+                if (!stripe.isEmpty()) return false;
+            }
+        }
+        return true;
+    }
+}
@@ -11,4 +11,52 @@ public class Config {
     public static int virtualDstoreCount = 10000; // 虚拟节点个数
 
     public static boolean skipRebalanced = false;
+
+    public static String hashFunction = "murmur3"; // murmur3 / xxhash64 / md5(旧版本兼容)
+
+    public static String placementEngine = "ring"; // ring / jump / rendezvous
+
+    public static double boundedLoadFactor = 0; // 有界负载系数c，负载超过平均值c倍的节点不再存储新文件，不大于0时关闭
+
+    public static int controllerIoThreads = 2; // controller的NIO前端I/O线程数，不大于0时使用每个连接一个线程的阻塞前端
+
+    public static boolean dstoreVirtualThreads = false; // dstore每个连接使用一个虚拟线程，而不是平台线程
+
+    public static int dstoreMaxConnections = 10000; // 虚拟线程模式下dstore同时处理的连接数上限，超出的连接排队等待
+
+    public static String snapshotFile = ""; // controller元数据快照文件，如"controller.snapshot"，为空(默认)时不写入也不恢复
+
+    public static int snapshotPeriod = 60000; // 写入快照的周期(毫秒)
+
+    public static int dstorePoolSize = 16; // controller到每个dstore的长连接数上限，空闲连接保留timeout/2毫秒
+
+    public static int removeBatchMillis = 5; // controller合并同一dstore删除请求的窗口(毫秒)，不大于0时每个文件单独发送
+
+    public static int removeBatchSize = 256; // 一条REMOVE_BATCH的文件数上限
+
+    public static int listPageMax = 1000; // LIST_PAGE每页的文件数上限
+
+    public static int dstoreJournalCapacity = 100000; // dstore保留的变更日志条数，controller落后更多时改为全量核对
+
+    public static int antiEntropyPeriod = 5000; // controller与dstore核对默克尔树摘要的周期(毫秒)，不大于0时关闭
+
+    public static int antiEntropyDepth = 10; // 默克尔树高，叶子数为2^depth，controller和dstore必须相同
+
+    public static int rebalanceMaxTransfers = 8; // 重平衡时同时进行的rebalance命令数
+
+    public static int rebalanceDstoreTransfers = 2; // 每个dstore同时发送或接收的rebalance命令数
+
+    public static long rebalanceBytesPerSecond = 0; // 重平衡的全局迁移速率上限(字节/秒)，不大于0时不限制
+
+    public static long rebalanceDstoreBytesPerSecond = 0; // 每个dstore发送或接收的迁移速率上限(字节/秒)，不大于0时不限制
+
+    public static long rebalanceChunkBytes = 4 << 20; // 一条rebalance命令发送的字节数上限，至少包含一个文件
+
+    public static int rebalanceDebounceMillis = 200; // 加入、权重变化等事件触发重平衡前等待的时间，期间的其它事件合并为一次
+
+    public static int rebalanceDebounceMaxMillis = 2000; // 事件持续到达时，从第一个事件起最多等待的时间
+
+    public static int rebalanceBackoffMillis = 500; // 重平衡失败后第一次重试的等待时间，之后按带随机抖动的指数退避
+
+    public static int rebalanceBackoffMaxMillis = 30000; // 重试等待时间上限
 }
@@ -1,38 +1,78 @@
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntPredicate;
+import java.util.function.IntToLongFunction;
 
 /**
  * 一致性hash算法实现类
  */
-public class ConsistentHash {
+public class ConsistentHash implements PlacementEngine {
+    static final String NAME = "ring";
+    private static final LongAdder ringWalks = Metrics.counter("placement.ring.walks"); // 副本数超过预先计算个数时顺时针遍历的次数
+    private static final LongAdder rePicks = Metrics.counter("plan.ring.rePick"); // 规划时因副本冲突改选目标节点的次数
+    private static final LongAdder relocatedReplicas = Metrics.counter("plan.ring.relocatedReplicas"); // 因副本冲突单独改放的副本数
 
-    public Map<Integer, VirtualDstore> virtualDstoreMap = new TreeMap<>(); // inflect VD to hash ring
-    public Map<Integer, List<VirtualDstore>> realVirtualDstoreMap = new ConcurrentHashMap<>(); // inflect RD to VDs
-    public List<Integer> dPorts = new ArrayList<>();
-    public Map<String, List<VirtualDstore>> fileVDstoreMap = new ConcurrentHashMap<>(); // inflect filename to VDs
-    public List<Integer> hashPosList = new ArrayList<>(); // to accelerate VDMap.KeySet()
+    public VirtualDstore[] virtualDstores; // aligned with ring index
+    private int[][] fileVirtualDstores = new int[0][]; // file id -> VD indices, guarded by this
+    private final AtomicReference<HashRing> ringRef = new AtomicReference<>(); // current immutable ring snapshot
+    private final Map<Integer, Integer> ownerIndexMap = new HashMap<>(); // dPort -> owner index in ring, writer only
+    private int[] ownerPorts = new int[0]; // owner index in ring -> dPort, append only
+    private List<Integer> pendingMembers; // members after planned but not yet committed changes, writer only
+    private int[] pendingOwners; // owners after planned but not yet committed changes, writer only
+    private final AtomicInteger pendingTransitions = new AtomicInteger(); // planned but not yet committed changes
+    private final Map<Integer, Double> weights = new HashMap<>(); // dPort -> weight including planned changes, writer only
+    private volatile IntToLongFunction fileSizes = fileId -> 1; // file id -> bytes, for transfer planning
 
-    private static final MessageDigest md;
+    private final HashFunction hashFunction;
+    private final FileIdDictionary fileIds;
 
-    static {
-        try {
-            md = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
-        }
+    public ConsistentHash(){
+        this(HashFunction.of(Config.hashFunction));
+    }
+
+    public ConsistentHash(HashFunction hashFunction){
+        this(hashFunction, new FileIdDictionary());
     }
 
-    public ConsistentHash(){}
+    public ConsistentHash(HashFunction hashFunction, FileIdDictionary fileIds){
+        this.hashFunction = hashFunction;
+        this.fileIds = fileIds;
+    }
+
+    @Override
+    public void init(List<Integer> dPorts, Map<Integer, Double> weights, int r) throws ConsistentHashException {
+        initConsistentHash(dPorts, weights, r);
+    }
 
     /**
-     * 初始化
+     * 初始化，副本个数使用Config.r
      * @param dPorts
      * @throws ConsistentHashException
      */
     public void initConsistentHash(List<Integer> dPorts) throws ConsistentHashException {
+        initConsistentHash(dPorts, Config.r);
+    }
+
+    /**
+     * 初始化，所有节点权重相同
+     * @param dPorts
+     * @param r 副本个数，用于预先计算每个虚拟节点的副本列表
+     * @throws ConsistentHashException
+     */
+    public void initConsistentHash(List<Integer> dPorts, int r) throws ConsistentHashException {
+        initConsistentHash(dPorts, Map.of(), r);
+    }
+
+    /**
+     * 初始化
+     * @param dPorts
+     * @param weights dPort到权重的映射，缺省为1，虚拟节点个数与权重成正比
+     * @param r 副本个数，用于预先计算每个虚拟节点的副本列表
+     * @throws ConsistentHashException
+     */
+    public synchronized void initConsistentHash(List<Integer> dPorts, Map<Integer, Double> weights, int r) throws ConsistentHashException {
         // hash ring is range(0, MAX)
         int virtualDstoreInterval = Integer.MAX_VALUE / Config.virtualDstoreCount;
         int virtualDstoreReminder = Integer.MAX_VALUE % Config.virtualDstoreCount + 1;
@@ -41,276 +81,857 @@ public class ConsistentHash {
             virtualDstoreInterval += 1;
         }
         int VDbase = -1;
+        int[] positions = new int[Config.virtualDstoreCount];
+        int[] owners = new int[Config.virtualDstoreCount];
+        virtualDstores = new VirtualDstore[Config.virtualDstoreCount];
         // 分配虚拟节点，将虚拟节点映射到hash环上的某一段上
         for (int i = 0; i < Config.virtualDstoreCount; i++) {
             VDbase += virtualDstoreInterval;
             if (virtualDstoreReminder > i) VDbase += 1;
-            virtualDstoreMap.put(VDbase, VirtualDstore.newInstance());
+            positions[i] = VDbase;
+            virtualDstores[i] = VirtualDstore.newInstance(i);
         }
         if (VDbase != Integer.MAX_VALUE) throw new ConsistentHashException("virtual nodes init fault");
         // vDstore id is range(0, count-1)
-        int VDstoreGroupBaseCount = Config.virtualDstoreCount / dPorts.size();
-        int dstoreReminder = Config.virtualDstoreCount % dPorts.size();
-        Iterator<VirtualDstore> virtualDstoreIterator = virtualDstoreMap.values().iterator();
-        // 分配实际数据节点，建立虚拟节点到实际存储节点的多到1的映射关系
+        this.weights.clear();
         for (int dPort : dPorts) {
-            List<VirtualDstore> virtualDstore = new ArrayList<>();
-            int count = VDstoreGroupBaseCount;
-            if (dstoreReminder > 0) {
-                dstoreReminder -= 1;
-                count++;
-            }
-            for (int i = 0; i < count; i++) {
-                VirtualDstore virtualDstore1 = virtualDstoreIterator.next();
-                virtualDstore1.dPort = dPort;
-                virtualDstore.add(virtualDstore1);
+            double weight = weights.getOrDefault(dPort, 1.0);
+            if (weight <= 0) throw new ConsistentHashException("weight must be positive");
+            this.weights.put(dPort, weight);
+        }
+        int[] targetCounts = targetCounts(dPorts, Config.virtualDstoreCount);
+        int[] dPortOwners = new int[dPorts.size()];
+        for (int j = 0; j < dPorts.size(); j++) dPortOwners[j] = ownerIndex(dPorts.get(j));
+        // 分配实际数据节点，建立虚拟节点到实际存储节点的多到1的映射关系，虚拟节点个数与权重成正比
+        int vdIndex = 0;
+        for (int j = 0; j < dPorts.size(); j++) {
+            for (int i = 0; i < targetCounts[j]; i++) {
+                owners[vdIndex++] = dPortOwners[j];
             }
-            realVirtualDstoreMap.put(dPort, virtualDstore);
-            this.dPorts.add(dPort);
         }
-        hashPosList = new ArrayList<>(virtualDstoreMap.keySet());
+        // 以固定种子打乱，相邻虚拟节点随机属于不同实际节点，副本不会集中在连续段的边界上，且重启后分配不变
+        Random random = new Random(Config.virtualDstoreCount);
+        for (int i = owners.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int owner = owners[i];
+            owners[i] = owners[j];
+            owners[j] = owner;
+        }
+        ringRef.set(new HashRing(0, positions, owners, ownerPorts, toArray(dPorts), r));
     }
 
     /**
-     * 寻找距离hash值最近的虚拟节点，需要高性能
-     * @param hash
+     * 当前hash环快照，读者只需读取一次即可得到一致的视图
      * @return
-     * @throws ConsistentHashException
      */
-    private VirtualDstore searchNearest(int hash) throws ConsistentHashException {
-        int inferEndCount = hash/(Integer.MAX_VALUE/Config.virtualDstoreCount + 1);
-        while (hashPosList.get(inferEndCount) < hash){
-            inferEndCount++;
+    public HashRing ring() {
+        return ringRef.get();
+    }
+
+    /**
+     * 当前正常运行的实际存储节点
+     * @return
+     */
+    @Override
+    public List<Integer> getDPorts() {
+        List<Integer> dPorts = new ArrayList<>();
+        for (int dPort : ring().members) dPorts.add(dPort);
+        return dPorts;
+    }
+
+    /**
+     * 当前快照中各节点持有的虚拟节点个数与按权重应得个数之比的最大值
+     * @return 尚未初始化时为1
+     */
+    @Override
+    public synchronized double virtualDstoreSkew() {
+        HashRing ring = ring();
+        if (ring == null) return 1.0;
+        Map<Integer, Integer> counts = new HashMap<>();
+        for (int i = 0; i < ring.size(); i++) counts.merge(ring.ownerPortOf(i), 1, Integer::sum);
+        double totalWeight = 0;
+        for (int dPort : ring.members) totalWeight += weights.getOrDefault(dPort, 1.0);
+        double skew = 0;
+        for (int dPort : ring.members) {
+            double expected = ring.size() * weights.getOrDefault(dPort, 1.0) / totalWeight;
+            skew = Math.max(skew, counts.getOrDefault(dPort, 0) / expected);
+        }
+        return skew;
+    }
+
+    /**
+     * 根据快照建立实际存储节点到虚拟节点的映射
+     * @param ring
+     * @return
+     */
+    private Map<Integer, List<VirtualDstore>> realVirtualDstoreMap(HashRing ring) {
+        Map<Integer, List<VirtualDstore>> realVirtualDstoreMap = new LinkedHashMap<>();
+        for (int dPort : ring.members) realVirtualDstoreMap.put(dPort, new ArrayList<>());
+        for (int i = 0; i < ring.size(); i++) {
+            List<VirtualDstore> virtualDstoreList = realVirtualDstoreMap.get(ring.ownerPortOf(i));
+            if (virtualDstoreList != null) virtualDstoreList.add(virtualDstores[i]);
+        }
+        return realVirtualDstoreMap;
+    }
+
+    /**
+     * 获取实际存储节点在hash环中的下标，首次出现时分配新下标
+     * @param dPort
+     * @return
+     */
+    private int ownerIndex(int dPort) {
+        Integer owner = ownerIndexMap.get(dPort);
+        if (owner == null) {
+            owner = ownerPorts.length;
+            ownerPorts = Arrays.copyOf(ownerPorts, owner + 1);
+            ownerPorts[owner] = dPort;
+            ownerIndexMap.put(dPort, owner);
+        }
+        return owner;
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) array[i] = list.get(i);
+        return array;
+    }
+
+    /**
+     * 写者视角下的成员列表，包含已规划但尚未提交的变更
+     * @return
+     */
+    private List<Integer> workingMembers() {
+        if (pendingMembers == null) pendingMembers = getDPorts();
+        return pendingMembers;
+    }
+
+    /**
+     * 提交新的hash环快照，一次原子替换
+     * @param owners
+     * @param members
+     */
+    private void publish(int[] owners, int[] members) {
+        HashRing current = ringRef.get();
+        int changedCount = 0;
+        int[] changedIndices = new int[owners.length];
+        for (int i = 0; i < owners.length; i++) {
+            if (owners[i] != current.owners[i]) changedIndices[changedCount++] = i;
         }
-        return virtualDstoreMap.get(hashPosList.get(inferEndCount));
+        ringRef.set(current.next(owners, ownerPorts, members, Arrays.copyOf(changedIndices, changedCount)));
     }
 
     /**
-     * 获取文件存储的虚拟节点
+     * 文件名在hash环上对应的虚拟节点下标，二分查找与环的分布是否均匀无关
+     * @param filename
+     * @return
+     */
+    public int searchNearest(String filename) {
+        return ring().search(Utils.getHash(filename, hashFunction));
+    }
+
+    public HashFunction getHashFunction() {
+        return hashFunction;
+    }
+
+    /**
+     * 获取文件存储的虚拟节点，全程只读取一次hash环快照，结果携带快照版本号
+     * 副本直接取主虚拟节点预先计算好的副本列表，不再重复计算hash
      * @param filename
      * @param r
      * @return
      * @throws ConsistentHashException
      */
-    public List<VirtualDstore> getStoreTarget(String filename, int r) throws ConsistentHashException {
-        int hashCode = Utils.getHash(filename, md);
-        List<VirtualDstore> virtualDstoreList = new ArrayList<>();
-        List<Integer> selectedDPorts = new ArrayList<>();
-        // 根据文件名的hash值，获取要存储的虚拟节点，并避免文件的副本落在同一个实际存储节点上
-        for (int i = 0; i<r; i++) {
-            VirtualDstore selected = searchNearest(hashCode);
-            int reHashCount = 0;
-            while (selectedDPorts.contains(selected.dPort)) {
-//                hashCode = hashCode - Integer.MAX_VALUE + Integer.MAX_VALUE / realVirtualDstoreMap.size();
-//                if (hashCode < 0) hashCode += Integer.MAX_VALUE;
-                hashCode = Utils.getHash(String.valueOf(hashCode), md);
-                reHashCount++;
-                selected = searchNearest(hashCode);
+    @Override
+    public Placement getStoreTarget(String filename, int r) throws ConsistentHashException {
+        HashRing ring = ring();
+        if (ring.members.length < r) throw new ConsistentHashException("not enough dstores on hash ring");
+        int primary = ring.search(Utils.getHash(filename, hashFunction));
+        List<VirtualDstore> virtualDstoreList = new ArrayList<>(r);
+        int[] selectedDPorts = new int[r];
+        if (r <= ring.replicas) {
+            for (int i = 0; i < r; i++) {
+                int selected = ring.preference(primary, i);
+                if (selected < 0) throw new ConsistentHashException("not enough dstores on hash ring");
+                selectedDPorts[i] = ring.ownerPortOf(selected);
+                virtualDstoreList.add(virtualDstores[selected]);
             }
-            //TODO: balance
-            hashCode = Integer.hashCode(hashCode);
-            selectedDPorts.add(selected.dPort);
-            virtualDstoreList.add(selected);
-            if (reHashCount>10) {
-                // 监控算法性能，如果rehash次数过多，说明重新挑选了太多次虚拟节点，即实际存储节点的碰撞概率太高，文件副本容易落在同一个实际存储节点上，
-                // 检查hash算法是否足够散列，虚拟节点到实际节点的映射关系是否足够随机
-                System.out.printf("rehash times: %d%n", reHashCount);
+        } else {
+            // 副本数大于预先计算的个数时，顺时针遍历寻找不同实际节点上的虚拟节点
+            ringWalks.increment();
+            int[] selectedOwners = new int[r];
+            int count = 0;
+            int selected = primary;
+            for (int step = 0; step < ring.size() && count < r; step++) {
+                if (!containsOwner(selectedOwners, count, ring.ownerOf(selected))) {
+                    selectedOwners[count] = ring.ownerOf(selected);
+                    selectedDPorts[count++] = ring.ownerPortOf(selected);
+                    virtualDstoreList.add(virtualDstores[selected]);
+                }
+                selected = ring.next(selected);
             }
+            if (count < r) throw new ConsistentHashException("not enough dstores on hash ring");
         }
         // adding file is outside this func when controller has edited the stored file status
-        return virtualDstoreList;
+        return new Placement(ring.epoch, virtualDstoreList, selectedDPorts);
     }
 
     /**
-     * 文件存储结束，同步算法内部文件信息
+     * 有界负载模式下获取文件存储的虚拟节点：预先计算的副本列表中没有过载节点时直接使用，
+     * 否则从主虚拟节点顺时针遍历，跳过过载节点，不过载的节点不足r个时再依次使用过载节点
      * @param filename
-     * @param virtualDstoreList
+     * @param r
+     * @param overloaded
+     * @return
+     * @throws ConsistentHashException
      */
-    public synchronized void afterStoreTargetFile(String filename, List<VirtualDstore> virtualDstoreList){
-        fileVDstoreMap.put(filename, virtualDstoreList);
-        for (VirtualDstore virtualDstore: virtualDstoreList){
-            virtualDstore.files.add(filename);
+    @Override
+    public Placement getStoreTarget(String filename, int r, IntPredicate overloaded) throws ConsistentHashException {
+        Placement placement = getStoreTarget(filename, r);
+        boolean anyOverloaded = false;
+        for (int dPort : placement.dPorts) anyOverloaded |= overloaded.test(dPort);
+        if (!anyOverloaded) return placement;
+        PlacementEngine.boundedRedirects.increment();
+        HashRing ring = ring();
+        int primary = ring.search(Utils.getHash(filename, hashFunction));
+        List<VirtualDstore> virtualDstoreList = new ArrayList<>(r);
+        int[] selectedOwners = new int[r];
+        int[] selectedDPorts = new int[r];
+        int count = 0;
+        for (int pass = 0; pass < 2 && count < r; pass++) {
+            // 第一遍只选不过载的节点，第二遍补足
+            int selected = primary;
+            for (int step = 0; step < ring.size() && count < r; step++) {
+                int owner = ring.ownerOf(selected);
+                if (!containsOwner(selectedOwners, count, owner) && (pass == 1 || !overloaded.test(ring.ownerPortOf(selected)))) {
+                    selectedOwners[count] = owner;
+                    selectedDPorts[count++] = ring.ownerPortOf(selected);
+                    virtualDstoreList.add(virtualDstores[selected]);
+                }
+                selected = ring.next(selected);
+            }
+        }
+        if (count < r) throw new ConsistentHashException("not enough dstores on hash ring");
+        return new Placement(ring.epoch, virtualDstoreList, selectedDPorts);
+    }
+
+    private static boolean containsOwner(int[] owners, int count, int owner) {
+        for (int i = 0; i < count; i++) {
+            if (owners[i] == owner) return true;
         }
+        return false;
+    }
+
+    /**
+     * 文件存储结束，同步算法内部文件信息
+     * 虚拟节点的文件集合自身线程安全，只有文件到虚拟节点的映射需要加锁
+     * @param fileId
+     * @param placement
+     * @return 存储位置是否可能已过期，即计算后hash环发生了变更，或有尚未提交的成员变更
+     */
+    @Override
+    public boolean afterStoreTargetFile(int fileId, Placement placement){
+        int[] indices = new int[placement.virtualDstores.size()];
+        for (int i = 0; i < indices.length; i++){
+            VirtualDstore virtualDstore = placement.virtualDstores.get(i);
+            indices[i] = virtualDstore.index;
+            virtualDstore.files.add(fileId);
+        }
+        synchronized (this) {
+            if (fileId >= fileVirtualDstores.length) {
+                fileVirtualDstores = Arrays.copyOf(fileVirtualDstores, Math.max(fileId + 1, fileVirtualDstores.length * 2));
+            }
+            fileVirtualDstores[fileId] = indices;
+        }
+        // 先加入虚拟节点再检查，与并发的迁移规划相比，要么被规划看到，要么在这里被标记为过期
+        return placement.epoch != ring().epoch || pendingTransitions.get() > 0;
+    }
+
+    /**
+     * 文件在当前hash环快照下应当存储的实际节点
+     * @param fileId
+     * @return
+     */
+    @Override
+    public List<Integer> getFileDPorts(int fileId) {
+        List<Integer> dPorts = new ArrayList<>();
+        int[] indices;
+        synchronized (this) {
+            indices = fileId < fileVirtualDstores.length ? fileVirtualDstores[fileId] : null;
+        }
+        if (indices == null) return dPorts;
+        HashRing ring = ring();
+        for (int index : indices) {
+            dPorts.add(ring.ownerPortOf(index));
+        }
+        return dPorts;
     }
 
     /**
      * 移除文件
-     * @param filename
+     * @param fileId
      * @throws ConsistentHashException
      */
-    public void removeFile(String filename) throws ConsistentHashException {
-        if (!fileVDstoreMap.containsKey(filename)){
-            throw new ConsistentHashException("file-VDstore reflecting fault");
+    @Override
+    public void removeFile(int fileId) throws ConsistentHashException {
+        int[] indices;
+        synchronized (this) {
+            indices = fileId < fileVirtualDstores.length ? fileVirtualDstores[fileId] : null;
+            if (indices == null){
+                throw new ConsistentHashException("file-VDstore reflecting fault");
+            }
+            fileVirtualDstores[fileId] = null;
         }
-        List<VirtualDstore> virtualDstoreList = fileVDstoreMap.get(filename);
-        for (VirtualDstore virtualDstore:virtualDstoreList){
-            virtualDstore.files.remove(filename);
+        for (int index : indices){
+            virtualDstores[index].files.remove(fileId);
         }
-        fileVDstoreMap.remove(filename);
     }
 
     /**
-     * 动态添加实际存储节点
-     * @param newDPort
+     * 当前快照的虚拟节点位置和归属，权重取写者视角下的值，调用方需保证期间没有进行中的迁移计划
      * @return
+     */
+    @Override
+    public synchronized PlacementState exportState() {
+        HashRing ring = ring();
+        if (ring == null) return null;
+        double[] memberWeights = new double[ring.members.length];
+        for (int i = 0; i < memberWeights.length; i++) memberWeights[i] = weights.getOrDefault(ring.members[i], 1.0);
+        return new PlacementState(ring.epoch, ring.members, memberWeights, ring.positions, ring.owners, ring.ownerPorts);
+    }
+
+    /**
+     * 直接使用快照中的虚拟节点位置和归属，不重新分配，恢复后的hash环与写入快照时一致
+     * @param state
+     * @param r
      * @throws ConsistentHashException
      */
-    public Map<Integer, List<VirtualDstore>> addDstore(int newDPort) throws ConsistentHashException {
-        int oldVDGroupBaseCount = Config.virtualDstoreCount / dPorts.size();
-        int oldVDGroupReminder = Config.virtualDstoreCount % dPorts.size();
-        int VDGroupBaseCount = Config.virtualDstoreCount / (dPorts.size() + 1);
-        int VDGroupReminder = Config.virtualDstoreCount % (dPorts.size() + 1);
-        int deltaReminder = oldVDGroupReminder - VDGroupReminder;
-        Map<Integer, List<VirtualDstore>> transferMap = new HashMap<>();
-        List<String> transferFilenames = new ArrayList<>();
-        // 遍历所有实际存储节点，从节点中挑选适合的虚拟节点，转移给新增节点，并对虚拟节点中对应文件进行转移
-        for (Map.Entry<Integer, List<VirtualDstore>> item:realVirtualDstoreMap.entrySet()){
-            List<VirtualDstore> tmpTransferVDList = new ArrayList<>();
-            int count = oldVDGroupBaseCount - VDGroupBaseCount;
-            List<VirtualDstore> tmpOriginVDList = item.getValue();
-            if (deltaReminder > 0 && tmpOriginVDList.size()>oldVDGroupBaseCount){
-                count++;
-                deltaReminder--;
-            }else if (deltaReminder < 0 && tmpOriginVDList.size()==oldVDGroupReminder){
-                count--;
-                deltaReminder++;
-            }
-            if (count > tmpOriginVDList.size()) throw new ConsistentHashException("transfer virtual dstore calculating fault");
-            int rePick = 0;
-            int beginPos = 0;
-            while (tmpTransferVDList.size()<count){
-                VirtualDstore transferVD = tmpOriginVDList.get(beginPos++);
-                // 避免新增存储节点含有相同的文件副本
-                if (!Utils.containsAny(transferFilenames, transferVD.files)) {
-                    transferFilenames.addAll(transferVD.files);
-                    tmpTransferVDList.add(transferVD);
-                }else {
-                    rePick++;
-                }
+    @Override
+    public synchronized void restoreState(PlacementState state, int r) throws ConsistentHashException {
+        if (state.positions == null) throw new ConsistentHashException("snapshot has no hash ring");
+        HashRing ring;
+        try {
+            ring = new HashRing(state.epoch, state.positions, state.owners, state.ownerPorts, state.members, r);
+        } catch (IllegalArgumentException e) {
+            throw new ConsistentHashException(e.getMessage());
+        }
+        virtualDstores = new VirtualDstore[state.positions.length];
+        for (int i = 0; i < virtualDstores.length; i++) virtualDstores[i] = VirtualDstore.newInstance(i);
+        fileVirtualDstores = new int[0][];
+        ownerPorts = state.ownerPorts;
+        ownerIndexMap.clear();
+        for (int owner = 0; owner < ownerPorts.length; owner++) ownerIndexMap.put(ownerPorts[owner], owner);
+        weights.clear();
+        for (int i = 0; i < state.members.length; i++) weights.put(state.members[i], state.weights[i]);
+        pendingMembers = null;
+        pendingOwners = null;
+        pendingTransitions.set(0);
+        ringRef.set(ring);
+    }
+
+    @Override
+    public synchronized int[] placementOf(int fileId) {
+        return fileId < fileVirtualDstores.length && fileVirtualDstores[fileId] != null ? fileVirtualDstores[fileId].clone() : null;
+    }
+
+    @Override
+    public void restoreFile(int fileId, int[] placement) {
+        for (int index : placement) virtualDstores[index].files.add(fileId);
+        synchronized (this) {
+            if (fileId >= fileVirtualDstores.length) {
+                fileVirtualDstores = Arrays.copyOf(fileVirtualDstores, Math.max(fileId + 1, fileVirtualDstores.length * 2));
             }
-            // 同上，算法性能监控
-            System.out.printf("rePick is %d\n", rePick);
-            transferMap.put(item.getKey(), tmpTransferVDList);
+            fileVirtualDstores[fileId] = placement;
         }
-        return transferMap;
+    }
+
+    @Override
+    public FileIdDictionary getFileIds() {
+        return fileIds;
+    }
+
+    @Override
+    public void setFileSizes(IntToLongFunction fileSizes) {
+        this.fileSizes = fileSizes;
     }
 
     /**
-     * 动态新增存储节点后置处理，进行算法信息同步
-     * @param dPort
-     * @param transferMap
+     * 按权重计算每个实际存储节点应持有的虚拟节点个数，最大余数法保证总数不变，每个节点至少一个
+     * @param members
+     * @param virtualDstoreCount
+     * @return 与members一一对应
      */
-    public void afterAddDstore(int dPort, Map<Integer, List<VirtualDstore>> transferMap){
-        List<VirtualDstore> addVDs = new ArrayList<>();
-        dPorts.add(dPort);
-        for (Map.Entry<Integer, List<VirtualDstore>> entry: transferMap.entrySet()){
-            realVirtualDstoreMap.get(entry.getKey()).removeAll(entry.getValue());
-            addVDs.addAll(entry.getValue());
+    private int[] targetCounts(List<Integer> members, int virtualDstoreCount) {
+        double totalWeight = 0;
+        for (int dPort : members) totalWeight += weights.getOrDefault(dPort, 1.0);
+        int[] counts = new int[members.size()];
+        double[] remainders = new double[members.size()];
+        int assigned = 0;
+        for (int i = 0; i < counts.length; i++) {
+            double quota = virtualDstoreCount * weights.getOrDefault(members.get(i), 1.0) / totalWeight;
+            counts[i] = (int) quota;
+            remainders[i] = quota - counts[i];
+            assigned += counts[i];
         }
-        for (VirtualDstore virtualDstore:addVDs){
-            virtualDstore.dPort = dPort;
+        while (assigned < virtualDstoreCount) {
+            int best = 0;
+            for (int i = 1; i < counts.length; i++) {
+                if (remainders[i] > remainders[best]) best = i;
+            }
+            counts[best]++;
+            remainders[best] = -1;
+            assigned++;
         }
-        realVirtualDstoreMap.put(dPort, addVDs);
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) continue;
+            int max = 0;
+            for (int k = 1; k < counts.length; k++) {
+                if (counts[k] > counts[max]) max = k;
+            }
+            counts[max]--;
+            counts[i]++;
+        }
+        return counts;
+    }
+
+    /**
+     * 动态添加实际存储节点，只做规划，不修改hash环
+     * @param newDPort
+     * @param weight
+     * @return
+     * @throws ConsistentHashException
+     */
+    @Override
+    public TransferPlan addDstore(int newDPort, double weight) throws ConsistentHashException {
+        return changeMembership(Map.of(newDPort, weight), Set.of(), Map.of());
+    }
+
+    /**
+     * 动态移除问题存储节点，只做规划，不修改hash环
+     * @param dPort
+     * @return
+     * @throws ConsistentHashException
+     */
+    @Override
+    public TransferPlan removeDstore(int dPort) throws ConsistentHashException {
+        return changeMembership(Map.of(), Set.of(dPort), Map.of());
     }
 
     /**
-     * 动态移除问题存储节点
+     * 运行时修改节点权重，按新权重重新分配虚拟节点，只做规划，不修改hash环
      * @param dPort
+     * @param weight
      * @return
      * @throws ConsistentHashException
      */
-    public Map<Integer, List<VirtualDstore>> removeDstore(int dPort) throws ConsistentHashException {
-        if (!realVirtualDstoreMap.containsKey(dPort)) throw new ConsistentHashException("unexpected dPort");
-        int oldVDGroupBaseCount = Config.virtualDstoreCount / realVirtualDstoreMap.size();
-        int oldVDGroupReminder = Config.virtualDstoreCount % realVirtualDstoreMap.size();
-        int VDGroupBaseCount = Config.virtualDstoreCount / (realVirtualDstoreMap.size() - 1);
-        int VDGroupReminder = Config.virtualDstoreCount % (realVirtualDstoreMap.size() - 1);
-        int deltaReminder = oldVDGroupReminder - VDGroupReminder;
-        Map<Integer, List<VirtualDstore>> transferMap = new HashMap<>();
-        List<VirtualDstore> waitingList = realVirtualDstoreMap.get(dPort);
-        realVirtualDstoreMap.remove(dPort);
-        dPorts.remove((Integer) dPort);
-        List<Integer> dPortsList = new ArrayList<>(realVirtualDstoreMap.keySet());
-        Map<Integer, Integer> dPortCapacityMap = new TreeMap<>();
-        int dPortPos = 0;
-        // 遍历当前正常存储节点，获取每个节点待分配虚拟节点的个数
-        while (dPortPos < dPortsList.size()){
-            int tmpDPort = dPortsList.get(dPortPos++);
-            List<VirtualDstore> tmpOriginVDList = realVirtualDstoreMap.get(tmpDPort);
-            int count = oldVDGroupBaseCount - VDGroupBaseCount;
-            if (deltaReminder < 0 && tmpOriginVDList.size() == oldVDGroupBaseCount){
-                count--;
-                deltaReminder++;
-            }else if(deltaReminder > 0 && tmpOriginVDList.size() > oldVDGroupBaseCount){
-                count++;
-                deltaReminder--;
+    @Override
+    public TransferPlan setWeight(int dPort, double weight) throws ConsistentHashException {
+        return changeMembership(Map.of(), Set.of(), Map.of(dPort, weight));
+    }
+
+    /**
+     * 批量成员变更，离开节点的虚拟节点直接交给最终成员(包括新加入节点)，只生成一个迁移计划，不修改hash环
+     * @param joins
+     * @param leaves
+     * @param weights
+     * @return
+     * @throws ConsistentHashException
+     */
+    @Override
+    public synchronized TransferPlan changeMembership(Map<Integer, Double> joins, Set<Integer> leaves,
+                                                      Map<Integer, Double> weights) throws ConsistentHashException {
+        PlacementEngine.checkMembershipChange(workingMembers(), joins, leaves, weights);
+        this.weights.putAll(joins);
+        this.weights.putAll(weights);
+        TransferPlan plan = plan(new TreeSet<>(joins.keySet()), new TreeSet<>(leaves));
+        plan.weights.putAll(joins);
+        plan.weights.putAll(weights);
+        return plan;
+    }
+
+    /**
+     * 按权重重新计算每个节点应持有的虚拟节点个数，只移动差额部分：
+     * 离开节点的虚拟节点必须移出，超出目标个数的节点移出多余部分，交给低于目标个数的节点，移出部分按字节数挑选，只迁移超出份额的字节。
+     * 移入节点已持有虚拟节点中某个文件的其它副本时视为冲突，优先挑选不冲突的节点，避免同一节点持有同一文件的多个副本；
+     * 离开节点的虚拟节点找不到不冲突的节点时整体移入冲突最少的节点，冲突的文件再逐个改放到不持有它的节点上。
+     * 冲突个数由ConflictIndex一次建立、随转移增量更新，每次判断只需一次数组读取
+     * @param joins
+     * @param leaves
+     * @return
+     */
+    private TransferPlan plan(Set<Integer> joins, Set<Integer> leaves) {
+        List<Integer> members = workingMembers();
+        members.removeAll(leaves);
+        for (int dPort : joins) {
+            if (!members.contains(dPort)) members.add(dPort);
+        }
+        int[] owners = pendingOwners == null ? ring().copyOwners() : pendingOwners;
+        int[] before = owners.clone();
+        int[] targetCounts = targetCounts(members, owners.length);
+        for (int dPort : members) ownerIndex(dPort);
+        int[] deficits = new int[ownerPorts.length]; // 正数表示还需移入的个数，负数表示可以移出的个数
+        boolean[] active = new boolean[ownerPorts.length];
+        for (int owner : owners) deficits[owner]--;
+        int[] recipients = new int[members.size()];
+        for (int i = 0; i < members.size(); i++) {
+            int owner = ownerIndex(members.get(i));
+            active[owner] = true;
+            deficits[owner] += targetCounts[i];
+            recipients[i] = owner;
+        }
+        TransferPlan plan = new TransferPlan(ring().epoch, joins, leaves);
+        ConflictIndex conflictIndex = new ConflictIndex(owners, ownerPorts.length);
+        boolean[] moved = new boolean[owners.length];
+        int rePick = 0;
+        int cursor = 0;
+        // 离开节点的虚拟节点必须移出
+        for (int i = 0; i < owners.length; i++) {
+            if (active[owners[i]]) continue;
+            int target = -1;
+            int fallback = -1;
+            int fallbackConflicts = Integer.MAX_VALUE;
+            for (int k = 0; k < recipients.length; k++) {
+                int owner = recipients[(cursor + k) % recipients.length];
+                int conflictCount = conflictIndex.conflicts(i, owner);
+                if (conflictCount == 0 && deficits[owner] > 0) {
+                    target = owner;
+                    break;
+                }
+                if (conflictCount > 0) rePick++;
+                // 没有不冲突且仍需移入的节点时，选冲突文件最少的节点，冲突的文件由separateReplicas改放
+                if (conflictCount < fallbackConflicts) {
+                    fallback = owner;
+                    fallbackConflicts = conflictCount;
+                }
             }
-            if (-count > waitingList.size()) {
-                throw new ConsistentHashException("transfer virtual dstore calculating fault");
+            if (target < 0) target = fallback;
+            cursor++;
+            moved[i] = true;
+            transfer(plan, owners, i, target, deficits, conflictIndex);
+        }
+        // 超出目标个数的节点移出多余的虚拟节点，本次已移动过的不再移动。
+        // 每次挑选字节数最接近"剩余多出字节数/剩余多出个数"的虚拟节点，移出的字节数恰好是超出按个数分摊份额的部分，
+        // 既不多迁移，也不会因为只挑小的虚拟节点而留下字节数不均
+        long totalBytes = 0;
+        long[] ownerBytes = new long[ownerPorts.length];
+        for (int i = 0; i < owners.length; i++) {
+            totalBytes += conflictIndex.bytes(i);
+            ownerBytes[owners[i]] += conflictIndex.bytes(i);
+        }
+        for (int donor = 0; donor < ownerPorts.length; donor++) {
+            if (!active[donor] || deficits[donor] >= 0) continue;
+            int[] candidates = candidatesOf(donor, owners, moved, conflictIndex);
+            boolean[] taken = new boolean[candidates.length];
+            int targetCount = 0;
+            for (int i = 0; i < recipients.length; i++) {
+                if (recipients[i] == donor) targetCount = targetCounts[i];
+            }
+            long targetBytes = totalBytes * targetCount / owners.length;
+            int remaining = candidates.length;
+            while (deficits[donor] < 0 && remaining > 0) {
+                long ideal = Math.max(0, ownerBytes[donor] - targetBytes) / -deficits[donor];
+                int pick = nearest(candidates, taken, ideal, conflictIndex);
+                taken[pick] = true;
+                remaining--;
+                int i = candidates[pick];
+                int target = -1;
+                for (int k = 0; k < recipients.length; k++) {
+                    int owner = recipients[(cursor + k) % recipients.length];
+                    if (deficits[owner] <= 0) continue;
+                    if (conflictIndex.conflicts(i, owner) > 0) {
+                        rePick++;
+                        continue;
+                    }
+                    target = owner;
+                    break;
+                }
+                if (target < 0) continue;
+                cursor++;
+                ownerBytes[donor] -= conflictIndex.bytes(i);
+                ownerBytes[target] += conflictIndex.bytes(i);
+                transfer(plan, owners, i, target, deficits, conflictIndex);
             }
-            dPortCapacityMap.put(tmpDPort, count);
-            transferMap.put(tmpDPort, new ArrayList<>());
         }
-        dPortPos = 0;
-        int rePick = 0;
-        // 将问题节点的虚拟节点，分配到正常运行的节点上
-        for (int i = 0; i<waitingList.size(); i++){
-            VirtualDstore transferVD = waitingList.get(i);
-            List<VirtualDstore> backupVDs = new ArrayList<>();
-            for (String filename:transferVD.files){
-                backupVDs.addAll(fileVDstoreMap.get(filename));
+        separateReplicas(plan, before, owners, active);
+        // 算法性能监控
+        rePicks.add(rePick);
+        plan.recordMetrics();
+        pendingOwners = owners;
+        pendingTransitions.incrementAndGet();
+        return plan;
+    }
+
+    /**
+     * 本次移动过的虚拟节点中，两个副本落在同一节点上的文件，把移动过的那个副本改放到从主虚拟节点顺时针找到的第一个
+     * 不持有该文件的成员的虚拟节点上，保证每个文件的副本位于不同节点。
+     * 改放过副本或有多次迁移的文件（离开阶段移入的节点又在移出阶段移出其原有副本）按规划前后的持有节点重新生成迁移，
+     * 每个迁移都从原持有节点发往新持有节点，不会发给自己或已持有该文件的节点
+     * @param plan
+     * @param before 规划前的归属
+     * @param owners 规划后的归属
+     * @param active 规划后的成员
+     */
+    private void separateReplicas(TransferPlan plan, int[] before, int[] owners, boolean[] active) {
+        HashRing ring = ring();
+        Map<Integer, int[]> plannedIndices = new HashMap<>(); // file id -> VD indices after relocations in this plan
+        for (int index = 0; index < owners.length; index++) {
+            if (owners[index] == before[index]) continue;
+            for (int fileId : virtualDstores[index].files.toArray()) {
+                int[] indices = plannedIndices.get(fileId);
+                if (indices == null && fileId < fileVirtualDstores.length) indices = fileVirtualDstores[fileId];
+                if (indices == null || !sharesOwner(indices, index, owners)) continue;
+                int free = -1;
+                int cursor = indices[0];
+                for (int step = 0; step < ring.size() && free < 0; step++) {
+                    if (active[owners[cursor]] && !containsOwnerOf(indices, owners, owners[cursor])) free = cursor;
+                    cursor = ring.next(cursor);
+                }
+                if (free < 0) continue; // 成员不足r个
+                indices = indices.clone();
+                for (int k = 0; k < indices.length; k++) {
+                    if (indices[k] == index) indices[k] = free;
+                }
+                plannedIndices.put(fileId, indices);
+                plan.fileRelocations.add(new TransferPlan.FileRelocation(fileId, index, free));
+            }
+        }
+        relocatedReplicas.add(plan.fileRelocations.size());
+        Map<Integer, Integer> moveCounts = new HashMap<>();
+        for (TransferPlan.FileMove move : plan.moves) moveCounts.merge(move.fileId, 1, Integer::sum);
+        Map<Integer, List<TransferPlan.FileMove>> replacements = new HashMap<>();
+        moveCounts.forEach((fileId, count) -> {
+            if (count < 2 && !plannedIndices.containsKey(fileId)) return;
+            int[] indices = fileVirtualDstores[fileId];
+            Set<Integer> sources = new LinkedHashSet<>();
+            for (int index : indices) sources.add(ownerPorts[before[index]]);
+            Set<Integer> targets = new LinkedHashSet<>();
+            for (int index : plannedIndices.getOrDefault(fileId, indices)) targets.add(ownerPorts[owners[index]]);
+            Set<Integer> kept = new HashSet<>(sources);
+            kept.retainAll(targets);
+            sources.removeAll(kept);
+            targets.removeAll(kept);
+            List<TransferPlan.FileMove> fileMoves = new ArrayList<>();
+            // 原有副本已重复时新持有节点多于原持有节点，多出的由controller按副本数不足补齐
+            Iterator<Integer> from = sources.iterator();
+            for (int to : targets) {
+                if (!from.hasNext()) break;
+                fileMoves.add(new TransferPlan.FileMove(fileId, from.next(), to));
             }
-            if (!backupVDs.isEmpty()) {
-                // 遇到冲突的虚拟节点，首选不是跳过，而是优先分配，避免死锁
-                while (Utils.containsAny(realVirtualDstoreMap.get(dPortsList.get(dPortPos)), backupVDs)) {
-                    dPortPos = (dPortPos + 1) % dPortCapacityMap.size();
+            replacements.put(fileId, fileMoves);
+        });
+        if (!replacements.isEmpty()) plan.replaceMoves(replacements, fileSizes);
+    }
+
+    /**
+     * 虚拟节点index与文件的其它副本是否属于同一节点
+     */
+    private static boolean sharesOwner(int[] indices, int index, int[] owners) {
+        for (int other : indices) {
+            if (other != index && owners[other] == owners[index]) return true;
+        }
+        return false;
+    }
+
+    private static boolean containsOwnerOf(int[] indices, int[] owners, int owner) {
+        for (int index : indices) {
+            if (owners[index] == owner) return true;
+        }
+        return false;
+    }
+
+    /**
+     * 节点持有且本次未移动过的虚拟节点，按字节数升序
+     * @param donor
+     * @param owners
+     * @param moved
+     * @param conflictIndex
+     * @return 虚拟节点下标
+     */
+    private static int[] candidatesOf(int donor, int[] owners, boolean[] moved, ConflictIndex conflictIndex) {
+        List<Integer> candidates = new ArrayList<>();
+        for (int i = 0; i < owners.length; i++) {
+            if (owners[i] == donor && !moved[i]) candidates.add(i);
+        }
+        candidates.sort(Comparator.comparingLong(conflictIndex::bytes));
+        return candidates.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * 在按字节数升序的候选中二分查找最接近ideal且未被挑选过的位置
+     * @param candidates
+     * @param taken
+     * @param ideal
+     * @param conflictIndex
+     * @return 候选数组下标，调用方保证仍有未挑选的候选
+     */
+    private static int nearest(int[] candidates, boolean[] taken, long ideal, ConflictIndex conflictIndex) {
+        int low = 0, high = candidates.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (conflictIndex.bytes(candidates[mid]) < ideal) low = mid + 1;
+            else high = mid;
+        }
+        int left = low - 1, right = low;
+        while (left >= 0 && taken[left]) left--;
+        while (right < candidates.length && taken[right]) right++;
+        if (left < 0) return right;
+        if (right >= candidates.length) return left;
+        return ideal - conflictIndex.bytes(candidates[left]) <= conflictIndex.bytes(candidates[right]) - ideal ? left : right;
+    }
+
+    /**
+     * 将虚拟节点转移给目标节点，记录虚拟节点中所有文件的迁移
+     * @param plan
+     * @param owners
+     * @param index
+     * @param target
+     * @param deficits
+     * @param conflictIndex
+     */
+    private void transfer(TransferPlan plan, int[] owners, int index, int target, int[] deficits, ConflictIndex conflictIndex) {
+        int source = owners[index];
+        int from = ownerPorts[source];
+        int to = ownerPorts[target];
+        deficits[source]++;
+        deficits[target]--;
+        owners[index] = target;
+        VirtualDstore virtualDstore = virtualDstores[index];
+        plan.virtualDstoreTargets.computeIfAbsent(to, k -> new ArrayList<>()).add(virtualDstore);
+        IntToLongFunction fileSizes = this.fileSizes;
+        virtualDstore.files.forEach(fileId -> {
+            plan.addMove(fileId, from, to, fileSizes.applyAsLong(fileId));
+            conflictIndex.moved(fileId, index, source, target);
+        });
+    }
+
+    /**
+     * 规划期间的冲突计数：conflicts[index * ownerCount + owner]为虚拟节点index中有多少文件的其它副本位于实际节点owner上，
+     * 对所有文件扫描一次建立，O(文件数 * r^2)；虚拟节点转移时只更新与其共享文件的虚拟节点，O(迁移文件数 * r)。
+     * 只在持有ConsistentHash锁时使用
+     */
+    private final class ConflictIndex {
+        private final int ownerCount;
+        private final int[] conflicts;
+        private final long[] bytes; // 虚拟节点持有的字节数
+
+        ConflictIndex(int[] owners, int ownerCount) {
+            this.ownerCount = ownerCount;
+            conflicts = new int[owners.length * ownerCount];
+            bytes = new long[owners.length];
+            IntToLongFunction fileSizes = ConsistentHash.this.fileSizes;
+            for (int fileId = 0; fileId < fileVirtualDstores.length; fileId++) {
+                int[] indices = fileVirtualDstores[fileId];
+                if (indices == null) continue;
+                long size = fileSizes.applyAsLong(fileId);
+                for (int index : indices) {
+                    bytes[index] += size;
+                    for (int other : indices) {
+                        if (other != index) conflicts[index * ownerCount + owners[other]]++;
+                    }
                 }
             }
-            int targetDPort = dPortsList.get(dPortPos);
-            if (dPortCapacityMap.get(targetDPort) < 0){
-                transferMap.get(targetDPort).add(transferVD);
-                dPortCapacityMap.put(targetDPort, dPortCapacityMap.get(targetDPort) + 1);
-            }else {
-                transferMap.get(targetDPort).add(transferVD);
-                waitingList.add(transferMap.get(targetDPort).removeFirst());
-                rePick++;
+        }
+
+        int conflicts(int index, int owner) {
+            return conflicts[index * ownerCount + owner];
+        }
+
+        long bytes(int index) {
+            return bytes[index];
+        }
+
+        /**
+         * 文件所在的虚拟节点index从source转移到target
+         * @param fileId
+         * @param index
+         * @param source
+         * @param target
+         */
+        void moved(int fileId, int index, int source, int target) {
+            int[] indices = fileId < fileVirtualDstores.length ? fileVirtualDstores[fileId] : null;
+            if (indices == null) return; // 规划期间新存储的文件，由过期位置核对处理
+            for (int other : indices) {
+                if (other == index) continue;
+                conflicts[other * ownerCount + source]--;
+                conflicts[other * ownerCount + target]++;
             }
-            dPortPos = (dPortPos + 1) % dPortCapacityMap.size();
         }
-        System.out.printf("rePick is %d\n", rePick);
-        return transferMap;
     }
 
     /**
-     * 移除问题节点后置处理
-     * @param transferMap
+     * 文件迁移完成后提交计划，以一次原子替换发布新的hash环快照
+     * @param plan
      */
-    public void afterRemoveDstore(Map<Integer, List<VirtualDstore>> transferMap){
-        for (Map.Entry<Integer, List<VirtualDstore>> entry: transferMap.entrySet()){
-            realVirtualDstoreMap.get(entry.getKey()).addAll(entry.getValue());
+    @Override
+    public synchronized void commit(TransferPlan plan) {
+        for (TransferPlan.FileRelocation relocation : plan.fileRelocations) relocate(relocation);
+        int[] owners = ring().copyOwners();
+        for (Map.Entry<Integer, List<VirtualDstore>> entry: plan.virtualDstoreTargets.entrySet()){
+            int owner = ownerIndex(entry.getKey());
             for (VirtualDstore virtualDstore:entry.getValue()){
-                virtualDstore.dPort = entry.getKey();
+                owners[virtualDstore.index] = owner;
             }
         }
+        List<Integer> members = getDPorts();
+        members.removeAll(plan.leaves);
+        for (int dPort : plan.joins) {
+            if (!members.contains(dPort)) members.add(dPort);
+        }
+        publish(owners, toArray(members));
+        if (pendingTransitions.decrementAndGet() <= 0) {
+            pendingTransitions.set(0);
+            pendingMembers = null;
+            pendingOwners = null;
+        }
+    }
+
+    /**
+     * 更新改放副本的文件与虚拟节点的对应关系，规划后已删除或重新存储的文件跳过
+     * @param relocation
+     */
+    private void relocate(TransferPlan.FileRelocation relocation) {
+        int fileId = relocation.fileId;
+        int[] indices = fileId < fileVirtualDstores.length ? fileVirtualDstores[fileId] : null;
+        if (indices == null) return;
+        for (int k = 0; k < indices.length; k++) {
+            if (indices[k] != relocation.fromIndex) continue;
+            int[] relocated = indices.clone();
+            relocated[k] = relocation.toIndex;
+            fileVirtualDstores[fileId] = relocated;
+            virtualDstores[relocation.fromIndex].files.remove(fileId);
+            virtualDstores[relocation.toIndex].files.add(fileId);
+            return;
+        }
     }
 
+    @Override
+    public long getEpoch() {
+        return ring().epoch;
+    }
 
-    public Map<Integer, List<String>> getDPortFilesMap() {
-        Map<Integer, List<String>> map = new HashMap<>();
-        for (Map.Entry<Integer, List<VirtualDstore>> entry : realVirtualDstoreMap.entrySet()){
-            List<String> files = new ArrayList<>();
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public synchronized Map<Integer, IntHashSet> getDPortFilesMap() {
+        Map<Integer, IntHashSet> map = new HashMap<>();
+        for (Map.Entry<Integer, List<VirtualDstore>> entry : realVirtualDstoreMap(ring()).entrySet()){
+            IntHashSet files = new IntHashSet();
             for (VirtualDstore virtualDstore:entry.getValue()){
-                if (!virtualDstore.files.isEmpty()) files.addAll(virtualDstore.files);
+                virtualDstore.files.copyTo(files);
             }
             map.put(entry.getKey(), files);
         }
         return map;
     }
 
-    public List<String> getDPortFiles(int dPort){
-        List<String> files = new ArrayList<>();
-        for (VirtualDstore virtualDstore:realVirtualDstoreMap.get(dPort)){
-            if (!virtualDstore.files.isEmpty()) files.addAll(virtualDstore.files);
+    public synchronized IntHashSet getDPortFiles(int dPort){
+        IntHashSet files = new IntHashSet();
+        List<VirtualDstore> virtualDstoreList = realVirtualDstoreMap(ring()).get(dPort);
+        if (virtualDstoreList == null) return files;
+        for (VirtualDstore virtualDstore:virtualDstoreList){
+            virtualDstore.files.copyTo(files);
         }
         return files;
     }
@@ -333,33 +954,31 @@ public class ConsistentHash {
         for (int i = 0;i<10;i++){
             store(String.format("file%d", i), consistentHash);
         }
-        Map<Integer, List<String>> dPortFilesMap = consistentHash.getDPortFilesMap();
+        Map<Integer, IntHashSet> dPortFilesMap = consistentHash.getDPortFilesMap();
 
-        Map<Integer, List<VirtualDstore>> addDstore = consistentHash.addDstore(9000);
-        for (Map.Entry<Integer, List<VirtualDstore>> entry:addDstore.entrySet()){
-            List<String> files = new ArrayList<>();
-            for (VirtualDstore virtualDstore:entry.getValue()){
-                if (!virtualDstore.files.isEmpty()) files.addAll(virtualDstore.files);
-            }
-            System.out.printf("%d transfer files count is %s\n", entry.getKey(), files.size());
-            System.out.println(files);
+        TransferPlan addPlan = consistentHash.addDstore(9000);
+        for (Map.Entry<Integer, IntHashSet> entry:addPlan.getTargetFilesMap().entrySet()){
+            System.out.printf("%d transfer files count is %s\n", entry.getKey(), entry.getValue().size());
+            System.out.println(consistentHash.fileNames(entry.getValue()));
         }
-        Map<Integer, List<VirtualDstore>> removeDstore = consistentHash.removeDstore(8001);
-        for (Map.Entry<Integer, List<VirtualDstore>> entry:removeDstore.entrySet()){
-            List<String> files = new ArrayList<>();
-            for (VirtualDstore virtualDstore:entry.getValue()){
-                if (!virtualDstore.files.isEmpty()) files.addAll(virtualDstore.files);
-            }
-            System.out.printf("%d transfer files count is %s\n", entry.getKey(), files.size());
-            System.out.println(files);
+        TransferPlan removePlan = consistentHash.removeDstore(8001);
+        for (Map.Entry<Integer, IntHashSet> entry:removePlan.getTargetFilesMap().entrySet()){
+            System.out.printf("%d transfer files count is %s\n", entry.getKey(), entry.getValue().size());
+            System.out.println(consistentHash.fileNames(entry.getValue()));
         }
         int a = 0;
 
     }
 
+    private List<String> fileNames(IntHashSet files) {
+        List<String> names = new ArrayList<>();
+        files.forEach(fileId -> names.add(fileIds.nameOf(fileId)));
+        return names;
+    }
+
     public static void store(String filename, ConsistentHash consistentHash) throws ConsistentHashException {
-        List<VirtualDstore> list = consistentHash.getStoreTarget(filename, 2);
-        consistentHash.afterStoreTargetFile(filename, list);
+        Placement placement = consistentHash.getStoreTarget(filename, 2);
+        consistentHash.afterStoreTargetFile(consistentHash.fileIds.intern(filename), placement);
     }
 
 }
@@ -1,21 +1,57 @@
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.SocketTimeoutException;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
 public class Controller {
     private static final Logger logger = Logger.getLogger(Controller.class.getName());
-    private ConcurrentHashMap<Integer, List<String>> dPortsFileMap = new ConcurrentHashMap<>();
+    private static final Metrics.Histogram requestMillis = Metrics.histogram("controller.request.millis");
+    private static final Metrics.Histogram rebalancedMillis = Metrics.histogram("controller.rebalanced.millis");
+    private static final Set<String> BLOCKING_COMMANDS = Set.of(Protocol.JOIN_TOKEN, Protocol.WEIGHT_TOKEN,
+            Protocol.LIST_TOKEN, Protocol.LIST_PAGE_TOKEN); // 等待dstore或快照加载，NIO前端在工作线程上执行
+    private static final LongAdder storeTimeouts = Metrics.counter("controller.store.timeouts");
+    private static final LongAdder removeTimeouts = Metrics.counter("controller.remove.timeouts");
+    private static final LongAdder rebalancedFailures = Metrics.counter("controller.rebalanced.failures");
+    private static final Metrics.Histogram snapshotWriteMillis = Metrics.histogram("controller.snapshot.write.millis");
+    private static final Metrics.Histogram snapshotLoadMillis = Metrics.histogram("controller.snapshot.load.millis");
+    private static final LongAdder snapshotFaults = Metrics.counter("controller.snapshot.faults"); // 后台加载完成前按文件名从快照中读取的次数
+    private ConcurrentHashMap<Integer, IntHashSet> dPortsFileMap = new ConcurrentHashMap<>(); // file ids per dstore, guarded by the set itself
     private ServerSocket service;
     private int cPort;
     private int r;
     private int timeout;
     private int rebalancedPeriod;
     private ConcurrentHashMap<String, ControllerFileWrapper> fileMap = new ConcurrentHashMap<>(); // only contains stored dStore port, including the lost files
-    private ConsistentHash consistentHash = new ConsistentHash();
+    private ConcurrentSkipListSet<String> completedFiles = new ConcurrentSkipListSet<>(); // names of STORE_COMPLETE files, sorted for LIST paging
+    private FileIdDictionary fileIds = new FileIdDictionary(); // filename <-> int id, shared with placementEngine
+    private PlacementEngine placementEngine = PlacementEngine.of(Config.placementEngine, fileIds);
+    private IntHashSet misplacedFiles = new IntHashSet(); // file ids stored on a stale hash ring epoch or left by failed transfers, guarded by itself
+    private ConcurrentHashMap<Integer, Long> dPortCapacityMap = new ConcurrentHashMap<>(); // advertised capacity in bytes
+    private ConcurrentHashMap<Integer, Double> dPortWeightMap = new ConcurrentHashMap<>(); // advertised weight, default 1
+    private ConcurrentHashMap<Integer, Double> pendingWeights = new ConcurrentHashMap<>(); // weight changes waiting for rebalanced
+    private ConcurrentHashMap<Integer, Double> pendingJoins = new ConcurrentHashMap<>(); // joined dstores waiting for rebalanced, with weight
+    private ExecutorService dstoreRequests = Executors.newCachedThreadPool(); // REMOVE fan-out to dstores and STORE/REMOVE completions, threads are reused
+    private TimerWheel timerWheel = new TimerWheel("controller timer wheel", 10, 512); // ack timeouts of STORE and REMOVE
+    private CompletionRegistry<Integer> storeCompletions = new CompletionRegistry<>("STORE", timerWheel); // file id -> waiting for r STORE_ACKs
+    private CompletionRegistry<Integer> removeCompletions = new CompletionRegistry<>("REMOVE", timerWheel); // file id -> waiting for REMOVE_ACKs
+    private DstoreConnectionPool dstoreConnections; // pooled connections to dstores
+    private ConcurrentHashMap<Integer, DstoreJournalView> journalViews = new ConcurrentHashMap<>(); // files each dstore actually holds, from its journal
+    private boolean reconciled; // 上次重平衡没有发现任何差异，且每个文件都有r个不同的正常节点持有，guarded by this
+    private AntiEntropy antiEntropy; // compares merkle digests of the files each dstore should hold
+    private RebalanceScheduler rebalanceScheduler; // runs rebalanced periodically and on events, with retries
+    private TransferScheduler transferScheduler = new TransferScheduler(Config.rebalanceMaxTransfers, Config.rebalanceDstoreTransfers,
+            Config.rebalanceBytesPerSecond, Config.rebalanceDstoreBytesPerSecond); // orders and throttles REBALANCE commands
+    private RemoveBatcher removeBatcher; // coalesces REMOVEs per dstore into REMOVE_BATCH
+    private DstoreLoadTracker dstoreLoad = new DstoreLoadTracker(); // bytes and files per dstore, for bounded-load placement
+    private volatile ControllerSnapshot snapshot; // snapshot being loaded in background, null once loaded
+    private CountDownLatch snapshotLoaded = new CountDownLatch(1); // released when all snapshot records are loaded
 
 
     public static void main(String[] args) throws IOException {
@@ -37,27 +73,50 @@ public class Controller {
         this.r = r;
         this.timeout = timeout;
         this.rebalancedPeriod = rebalancedPeriod;
+        this.dstoreConnections = new DstoreConnectionPool(timeout, Config.dstorePoolSize, Math.max(1, timeout / 2));
+        this.removeBatcher = new RemoveBatcher(dstoreConnections, timerWheel, dstoreRequests, Config.removeBatchMillis, Config.removeBatchSize);
+        this.rebalanceScheduler = new RebalanceScheduler(this::rebalanced, Config.rebalanceDebounceMillis, Config.rebalanceDebounceMaxMillis,
+                Config.rebalanceBackoffMillis, Config.rebalanceBackoffMaxMillis);
+        this.antiEntropy = new AntiEntropy(dstoreConnections, fileIds, HashFunction.of(Config.hashFunction), Config.antiEntropyDepth,
+                this::storeInProgress);
+        placementEngine.setFileSizes(fileId -> { // 迁移规划按文件大小统计并尽量减少迁移字节数
+            ControllerFileWrapper controllerFileWrapper = fileOf(fileId);
+            return controllerFileWrapper == null ? 0 : controllerFileWrapper.fileSize;
+        });
+        // 查询时计算的负载和均衡度指标
+        Metrics.gauge("dstore.count", () -> dstoreLoad.getDPorts().size());
+        Metrics.gauge("dstore.bytes.stddev", () -> loadStats(true).stdDev);
+        Metrics.gauge("dstore.bytes.maxOverMean", () -> maxOverMean(loadStats(true)));
+        Metrics.gauge("dstore.files.stddev", () -> loadStats(false).stdDev);
+        Metrics.gauge("dstore.files.maxOverMean", () -> maxOverMean(loadStats(false)));
+        Metrics.gauge("ring.virtualDstoreSkew", () -> placementEngine.virtualDstoreSkew());
+        Metrics.gauge("files.count", () -> fileMap.size());
+        Metrics.gauge("controller.pending.stores", () -> storeCompletions.size());
+        Metrics.gauge("controller.pending.removes", () -> removeCompletions.size());
+        restoreSnapshot();
+        ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "controller maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // 关闭空闲过久的dstore连接，dstore读超时后也会关闭它们
+        maintenance.scheduleWithFixedDelay(dstoreConnections::evictIdle, Math.max(1, timeout / 2), Math.max(1, timeout / 2), TimeUnit.MILLISECONDS);
+        if (!Config.snapshotFile.isEmpty() && Config.snapshotPeriod > 0) {
+            // 定时写入快照
+            maintenance.scheduleWithFixedDelay(this::writeSnapshot, Config.snapshotPeriod, Config.snapshotPeriod, TimeUnit.MILLISECONDS);
+        }
+        if (Config.antiEntropyPeriod > 0) {
+            // 定时核对各dstore的摘要，发现不一致时立即重平衡
+            maintenance.scheduleWithFixedDelay(this::antiEntropy, Config.antiEntropyPeriod, Config.antiEntropyPeriod, TimeUnit.MILLISECONDS);
+        }
         if (!Config.skipRebalanced) {
-            Timer timer = new Timer();
-            // 定时执行rebalanced
-            TimerTask timerTask = new TimerTask() {
-                @Override
-                public void run() {
-                    try {
-                        int count = 0;
-                        while (!rebalanced(null)) {
-                            count++;
-                            if (count > 5){
-                                throw new RuntimeException();
-                            }
-                        }
-                        ;
-                    } catch (ConsistentHashException e) {
-                        logger.warning("rebalanced fault");
-                    }
-                }
-            };
-            timer.schedule(timerTask, this.rebalancedPeriod, this.rebalancedPeriod);
+            // 定时执行rebalanced，事件触发的重平衡不受影响
+            rebalanceScheduler.schedulePeriodic(this.rebalancedPeriod);
+        }
+        if (Config.controllerIoThreads > 0) {
+            new ControllerServer(this.cPort, Config.controllerIoThreads, msg -> BLOCKING_COMMANDS.contains(msg.split(" ", 2)[0]),
+                    (msg, connection) -> dispatch(msg, connection, connection.errorPortsMap, connection.lastLoadPort)).serve();
+            return;
         }
         service = new ServerSocket(this.cPort);
         while (true) {
@@ -89,10 +148,7 @@ public class Controller {
                                 continue;
                             }
                             if (msg != null && !msg.isEmpty()) {
-                                logger.info(String.format("handle msg %s on %s", msg, Thread.currentThread().getName()));
-                                long startTime = System.currentTimeMillis();
-                                handle(msg, tmpService, errorPortsMap, lastLoadPort);
-                                System.out.printf("msg %s cost time %d\n", msg, System.currentTimeMillis() - startTime);
+                                dispatch(msg, tmpService, errorPortsMap, lastLoadPort);
                             }
                             if (msg == null) tmpService.close(); // receive EOF
                         }
@@ -112,236 +168,573 @@ public class Controller {
     }
 
     /**
-     * 重平衡
-     * @param newDPort
+     * 重平衡，pendingJoins中所有等待加入的节点、失效节点和权重变化在同一次重平衡中处理，只由rebalanceScheduler调用
+     * @param cancelled 取消后不再下发剩余的迁移命令，未执行的文件记入misplacedFiles
      * @return
      * @throws ConsistentHashException
      */
-    private synchronized boolean rebalanced(Integer newDPort) throws ConsistentHashException {
+    private synchronized boolean rebalanced(BooleanSupplier cancelled) throws ConsistentHashException {
+        awaitSnapshotLoaded(); // 文件记录全部加载前，与dstore实际持有的文件比较会误删文件
         long startTime = System.currentTimeMillis();
         logger.info("==================== start rebalanced ====================");
-        ExecutorService executorService = Executors.newFixedThreadPool(dPortsFileMap.size());
-        Map<Integer, List<String>> dPortStoredFilesMap = new ConcurrentHashMap<>();
-        Map<Integer, List<String>> dPortTransFilesMap = new HashMap<>(); // Map<target dPort, filenames to be moved to new dPort>
-        Map<Integer, List<String>> dPortRemoveFilesMap = new ConcurrentHashMap<>(); // Map<target dPort, files to be removed>
-        Map<String, List<Integer>> storedFileMap = new ConcurrentHashMap<>();
-        for (String filename:fileMap.keySet()){
-            storedFileMap.put(filename, new ArrayList<>());
-        }
+        List<Callable<Void>> journalRequests = new ArrayList<>();
+        Map<Integer, IntHashSet> dPortStoredFilesMap = new ConcurrentHashMap<>();
+        Map<Integer, IntHashSet> dPortTransFilesMap = new HashMap<>(); // Map<target dPort, file ids to be moved to new dPort>
+        Map<Integer, IntHashSet> dPortRemoveFilesMap = new HashMap<>(); // Map<target dPort, file ids to be removed>
         List<Integer> errorDPorts = new ArrayList<>();
-        // 获取所有dstore持有的文件列表，并记录有问题的节点
+        AtomicBoolean journalChanged = new AtomicBoolean();
+        // 按变更日志增量更新每个dstore持有的文件，只传输上次核对之后的存储和删除，并记录有问题的节点
         for (int dPort: dPortsFileMap.keySet()){
-            dPortTransFilesMap.put(dPort, new ArrayList<>()); // init
-            dPortRemoveFilesMap.put(dPort, new ArrayList<>()); //init
-            executorService.submit(() -> {
+            dPortTransFilesMap.put(dPort, new IntHashSet()); // init
+            dPortRemoveFilesMap.put(dPort, new IntHashSet()); //init
+            DstoreJournalView journalView = journalViews.computeIfAbsent(dPort, k -> new DstoreJournalView());
+            journalRequests.add(() -> {
                 try {
-                    Communication communication = new Communication(dPort, timeout);
-                    communication.send(Protocol.LIST_TOKEN);
-                    String receivedMsg = communication.receive();
+                    String receivedMsg = dstoreConnections.execute(dPort, communication -> {
+                        communication.send(journalView.request());
+                        return communication.receive();
+                    });
+                    if (receivedMsg == null) throw new IOException("connection closed");
                     String[] substrings = receivedMsg.split(" ");
                     String protocol = substrings[0];
-                    if (protocol.equals(Protocol.LIST_TOKEN)){
-                        List<String> storedFiles = new ArrayList<>();
-                        for (int i = 1; i<substrings.length; i++){
-                            String filename = substrings[i];
-                            storedFileMap.get(filename).add(dPort);
-                            storedFiles.add(filename);
-                        }
-                        dPortStoredFilesMap.put(dPort, storedFiles);
+                    if (protocol.equals(Protocol.JOURNAL_TOKEN) && substrings.length >= 4){
+                        if (journalView.apply(substrings, fileIds)) journalChanged.set(true);
+                        dPortStoredFilesMap.put(dPort, journalView.files());
                     }else {
                         throw new SocketTimeoutException("unexpected response");
                     }
-                    communication.close();
                 } catch (IOException e) {
                     logger.info(String.format("dPort %d is breakdown", dPort));
                     synchronized (errorDPorts){
                         errorDPorts.add(dPort);
                     }
                 }
+                return null;
             });
         }
-        executorService.shutdown();
         try {
-            executorService.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+            dstoreRequests.invokeAll(journalRequests, timeout, TimeUnit.MILLISECONDS);
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
         }
+        // 所有dstore都没有新的变更，且上次核对已没有差异时，本次核对不会产生任何迁移
+        if (reconciled && !journalChanged.get() && errorDPorts.isEmpty() && pendingJoins.isEmpty() && pendingWeights.isEmpty()
+                && dPortStoredFilesMap.keySet().equals(dPortsFileMap.keySet()) && misplacedFilesEmpty()) {
+            logger.info("==================== end rebalanced, no change since last rebalanced ====================");
+            rebalancedMillis.record(System.currentTimeMillis() - startTime);
+            return true;
+        }
+        // Map<file id, dPorts actually holding the file>
+        Map<Integer, List<Integer>> storedFileMap = new HashMap<>();
+        for (Map.Entry<Integer, IntHashSet> entry : dPortStoredFilesMap.entrySet()) {
+            entry.getValue().forEach(fileId -> storedFileMap.computeIfAbsent(fileId, k -> new ArrayList<>()).add(entry.getKey()));
+        }
         for (int errorDPort: errorDPorts){
-            List<String> filenames = dPortsFileMap.get((Integer) errorDPort);
-            for (String filename:filenames){
-                fileMap.get(filename).Dstore.remove((Integer) errorDPort);
+            IntHashSet fileIdSet = dPortsFileMap.get((Integer) errorDPort);
+            synchronized (fileIdSet) {
+                fileIdSet.forEach(fileId -> {
+                    ControllerFileWrapper controllerFileWrapper = fileOf(fileId);
+                    if (controllerFileWrapper != null) controllerFileWrapper.Dstore.remove((Integer) errorDPort);
+                });
             }
             dPortsFileMap.remove((Integer) errorDPort);
+            dstoreLoad.removeDstore(errorDPort);
+            dstoreConnections.removeDstore(errorDPort);
+            journalViews.remove(errorDPort);
+            antiEntropy.removeDstore(errorDPort);
         }
             // deal with storage files lost and excluded
-        Map<Integer, List<String>> dPortLostFiles = new HashMap<>();
         // 获取存储节点中缺少或多余的文件
-        for (Map.Entry<Integer, List<String>> entry: dPortsFileMap.entrySet()){
-            List<String> filenameIntersection = new ArrayList<>(entry.getValue());
-            filenameIntersection.retainAll(dPortStoredFilesMap.getOrDefault(entry.getKey(), new ArrayList<>()));
-            List<String> shouldStoredFilenames = new ArrayList<>(entry.getValue());
-            shouldStoredFilenames.removeAll(filenameIntersection); // delta -> lost files
-            List<String> realStoredFilenames = new ArrayList<>(dPortStoredFilesMap.getOrDefault(entry.getKey(), new ArrayList<>()));
-            realStoredFilenames.removeAll(filenameIntersection);
-            dPortTransFilesMap.get(entry.getKey()).addAll(shouldStoredFilenames); // fix lost files
-            dPortLostFiles.put(entry.getKey(), shouldStoredFilenames);
-            dPortRemoveFilesMap.get(entry.getKey()).addAll(realStoredFilenames);
+        for (Map.Entry<Integer, IntHashSet> entry: dPortsFileMap.entrySet()){
+            IntHashSet realStoredFiles = dPortStoredFilesMap.getOrDefault(entry.getKey(), new IntHashSet());
+            IntHashSet transFiles = dPortTransFilesMap.get(entry.getKey());
+            IntHashSet removeFiles = dPortRemoveFilesMap.get(entry.getKey());
+            if (transFiles == null || removeFiles == null) continue; // joined during listing
+            synchronized (entry.getValue()) {
+                // 存储中的文件由确认或超时处理：列出变更日志之后才到达的STORE_ACK，或者dstore已存储但STORE_ACK尚未到达
+                entry.getValue().forEach(fileId -> {
+                    if (!realStoredFiles.contains(fileId) && !storeInProgress(fileId)) transFiles.add(fileId); // fix lost files
+                });
+                realStoredFiles.forEach(fileId -> {
+                    if (!entry.getValue().contains(fileId) && !storeInProgress(fileId)) removeFiles.add(fileId);
+                });
+            }
         }
         // to remove lost file from list, update fileMap
-        for (Map.Entry<Integer, List<String>> entry:dPortTransFilesMap.entrySet()){
-            for (String filename:entry.getValue()){
-                fileMap.get(filename).Dstore.remove(entry.getKey());
+        for (Map.Entry<Integer, IntHashSet> entry:dPortTransFilesMap.entrySet()){
+            IntHashSet fileIdSet = dPortsFileMap.get(entry.getKey());
+            entry.getValue().forEach(fileId -> {
+                ControllerFileWrapper controllerFileWrapper = fileOf(fileId);
+                if (controllerFileWrapper != null && controllerFileWrapper.Dstore.remove(entry.getKey())) {
+                    dstoreLoad.remove(entry.getKey(), controllerFileWrapper.fileSize);
+                }
+                synchronized (fileIdSet) {
+                    fileIdSet.remove(fileId); // added back when the file is sent again
+                }
+            });
+        }
+        // 本次加入的节点，包括等待锁期间到达的其它加入请求
+        Map<Integer, Double> joins = new TreeMap<>();
+        for (Map.Entry<Integer, Double> entry : pendingJoins.entrySet()) {
+            joins.put(entry.getKey(), entry.getValue());
+            pendingJoins.remove(entry.getKey(), entry.getValue());
+        }
+        // 运行时权重变化，按新权重重新分配
+        Map<Integer, Double> weights = new HashMap<>();
+        for (Map.Entry<Integer, Double> entry : pendingWeights.entrySet()) {
+            if (dPortsFileMap.containsKey(entry.getKey()) && !joins.containsKey(entry.getKey())) {
+                weights.put(entry.getKey(), entry.getValue());
             }
+            pendingWeights.remove(entry.getKey(), entry.getValue());
+        }
+        // 移除、加入和权重变化合并为一个计划，每个文件最多迁移一次，hash环只变更一次
+        List<TransferPlan> plans = new ArrayList<>();
+        if (!errorDPorts.isEmpty() || !joins.isEmpty() || !weights.isEmpty()) {
+            plans.add(placementEngine.changeMembership(joins, new HashSet<>(errorDPorts), weights));
         }
-        List<Map<Integer, List<VirtualDstore>>> removeDPortTransVDsMaps = new ArrayList<>(); // Map<target dPort, VDs waiting to moved to new dPort>
         for (int errorDPort: errorDPorts){
-            Map<Integer, List<VirtualDstore>> removeDPortTransVDsMap = new HashMap<>();
-            removeDPortTransVDsMap = consistentHash.removeDstore(errorDPort);
-            removeDPortTransVDsMaps.add(removeDPortTransVDsMap);
             dPortTransFilesMap.remove((Integer) errorDPort);
             dPortRemoveFilesMap.remove((Integer) errorDPort);
         }
-        // make sure that remove dstore and fix lost file is handle before add dstore
-        // got dPortLostFiles & errorDPorts
-//        List<VirtualDstore> moveToNewDStore = new ArrayList<>(); // TODO: in theory we don't need moveTONewDStore
-        Map<Integer, List<VirtualDstore>> addDPortTransVDMap = new HashMap<>();
-        if (newDPort != null) {
-            addDPortTransVDMap = consistentHash.addDstore(newDPort); // Map<dPort contained VD, VD need to be trans to new dPort>
-//            for (Map.Entry<Integer, List<VirtualDstore>> entry : addDPortTransVDMap.entrySet()) {
-//                for (VirtualDstore addVD : entry.getValue()){
-//                    if (removeVDsDPortMap.containsKey(addVD)){
-//                        for (Map<Integer, List<VirtualDstore>> removeDPortTransVDsMap: removeDPortTransVDsMaps){
-//                            moveToNewDStore.add(addVD);
-//                            removeDPortTransVDsMap.get(removeVDsDPortMap.get(addVD)).remove(addVD);
-//                        }
-//                    }
-//                }
-//            }
-            for (int errorDPort: errorDPorts){
-                assert !addDPortTransVDMap.containsKey(errorDPort);
-                addDPortTransVDMap.remove(errorDPort);
-            }
-        }
-        for (Map<Integer, List<VirtualDstore>> dPortTransVDsMap:removeDPortTransVDsMaps){
-            for (Map.Entry<Integer, List<VirtualDstore>> entry: dPortTransVDsMap.entrySet()){
-                List<String> filenames = new ArrayList<>();
-                for (VirtualDstore virtualDstore:entry.getValue()){
-                    if (!virtualDstore.files.isEmpty()){
-                        filenames.addAll(virtualDstore.files);
-                    }
-                }
-                dPortTransFilesMap.get(entry.getKey()).addAll(filenames);
-            }
+        for (int dPort : joins.keySet()) {
+            dPortsFileMap.putIfAbsent(dPort, new IntHashSet());
         }
+        // 核对存储位置过期的文件，将其移动到计划提交后对应的节点上，这些文件不再按计划迁移
+        IntHashSet reconciledFiles = reconcileMisplacedFiles(plans, storedFileMap, dPortTransFilesMap, dPortRemoveFilesMap);
         // got dPortTransFilesMap & dPortRemoveFilesMap
         // it's time to trans files
         // notice info update and sync
         Map<Integer, TransDStore> transDStores = new HashMap<>();
         for (int dPort: dPortStoredFilesMap.keySet()){
-            TransDStore transDStore = new TransDStore(dPort);
+            TransDStore transDStore = new TransDStore(dPort, fileIds);
             transDStores.put(dPort, transDStore);
         }
-        for (Map.Entry<Integer, List<String>> entry:dPortTransFilesMap.entrySet()){
-            for (String filename:entry.getValue()){
-                int containedDPort = storedFileMap.get(filename).getFirst();
-                List<Integer> targetDPorts = transDStores.get(containedDPort).sendFiles.getOrDefault(filename, new ArrayList<>());
-                targetDPorts.add(entry.getKey());
-                transDStores.get(containedDPort).sendFiles.put(filename, targetDPorts);
-            }
-        }
-        for (Map.Entry<Integer, List<String>> entry: dPortRemoveFilesMap.entrySet()){
-            transDStores.get(entry.getKey()).removeFiles.addAll(entry.getValue());
-        }
-        if (newDPort!=null) {
-//            for (VirtualDstore virtualDstore : moveToNewDStore) {
-//                for (String filename : virtualDstore.files) {
-//                    List<Integer> dPorts = fileMap.get(filename).Dstore;
-//                    dPorts.removeAll(errorDPorts);
-//                    List<Integer> targetDPorts = transDStores.get(dPorts.getFirst()).sendFiles.getOrDefault(filename, new ArrayList<>());
-//                    targetDPorts.add(newDPort);
-//                    transDStores.get(dPorts.getFirst()).sendFiles.put(filename, targetDPorts);
-//                }
-//            }
-            // 处理新增节点的文件转移
-            for (Map.Entry<Integer, List<VirtualDstore>> entry: addDPortTransVDMap.entrySet()){
-                // trans addDPortTransVDMap to transDStore
-                for (VirtualDstore virtualDstore:entry.getValue()){
-                    if (virtualDstore.files.isEmpty()) continue;
-                    TransDStore target = transDStores.get(entry.getKey());
-                    for (String filename: virtualDstore.files){
-                        List<Integer> targetDPorts = target.sendFiles.getOrDefault(filename, new ArrayList<>());
-                        targetDPorts.add(newDPort);
-                        target.sendFiles.put(filename, targetDPorts);
-                    }
-                    target.removeFiles.addAll(virtualDstore.files);
+        for (TransferPlan plan : plans) {
+            logger.info(String.format("transfer plan joins %s leaves %s moves %d files %d bytes",
+                    plan.joins, plan.leaves, plan.getMovedFiles(), plan.getMovedBytes()));
+            applyMoves(plan, reconciledFiles, storedFileMap, transDStores, dPortTransFilesMap);
+        }
+        for (Map.Entry<Integer, IntHashSet> entry:dPortTransFilesMap.entrySet()){
+            entry.getValue().forEach(fileId -> {
+                List<Integer> containedDPorts = storedFileMap.getOrDefault(fileId, Collections.emptyList());
+                if (containedDPorts.isEmpty()) {
+                    logger.warning(String.format("no replica of %s is available", fileIds.nameOf(fileId)));
+                    return;
+                }
+                if (containedDPorts.contains(entry.getKey())) return;
+                // 由已分配发送最少的副本节点发送，分散迁移负载
+                int containedDPort = Collections.min(containedDPorts, Comparator.comparingInt(dPort -> transDStores.get(dPort).sendFiles.size()));
+                transDStores.get(containedDPort).sendFiles.computeIfAbsent(fileId, k -> new ArrayList<>()).add(entry.getKey());
+            });
+        }
+        for (Map.Entry<Integer, IntHashSet> entry: dPortRemoveFilesMap.entrySet()){
+            TransDStore transDStore = transDStores.get(entry.getKey());
+            if (transDStore != null) transDStore.removeFiles.addAll(entry.getValue());
+        }
+        // 拆分为小命令按优先级调度，先发送文件，全部结束后再删除，发送失败的文件保留原副本
+        List<TransferScheduler.Transfer> sends = new ArrayList<>();
+        List<TransferScheduler.Transfer> deletes = new ArrayList<>();
+        splitTransfers(transDStores, sends, deletes);
+        List<TransferScheduler.Transfer> failedTransfers = new ArrayList<>(transferScheduler.run(sends, this::rebalanceTransfer, cancelled));
+        IntHashSet failedFiles = new IntHashSet();
+        for (TransferScheduler.Transfer transfer : failedTransfers) {
+            for (int fileId : transfer.command.sendFiles.keySet()) failedFiles.add(fileId);
+        }
+        for (TransferScheduler.Transfer transfer : deletes) {
+            failedFiles.forEach(transfer.command.removeFiles::remove);
+        }
+        deletes.removeIf(transfer -> transfer.command.removeFiles.isEmpty());
+        failedTransfers.addAll(transferScheduler.run(deletes, this::rebalanceTransfer, cancelled));
+        for (TransferPlan plan : plans) {
+            placementEngine.commit(plan);
+        }
+        // 失败的迁移仍由原节点持有，与提交后的hash环不一致，交给之后的重平衡按当前快照核对
+        if (!failedTransfers.isEmpty()) {
+            synchronized (misplacedFiles) {
+                for (TransferScheduler.Transfer transfer : failedTransfers) {
+                    for (int fileId : transfer.command.sendFiles.keySet()) misplacedFiles.add(fileId);
+                    transfer.command.removeFiles.forEach(misplacedFiles::add);
                 }
             }
         }
-        executorService = Executors.newFixedThreadPool(transDStores.size());
-        List<Integer> rebalancedDPorts = new ArrayList<>();
-        List<Integer> faultRebalancedDPorts = new ArrayList<>();
-        // 遍历当前可运行节点，完成文件转移和删除操作
-        for (Map.Entry<Integer, TransDStore> entry: transDStores.entrySet()){
-            if (entry.getValue().removeFiles.isEmpty() && entry.getValue().sendFiles.isEmpty()){
-                continue;
+        boolean isSuccess = failedTransfers.isEmpty();
+        // 计划和迁移都没有差异时，再核对每个文件仍有r个不同的正常节点持有
+        reconciled = isSuccess && plans.isEmpty() && transDStores.values().stream()
+                .allMatch(transDStore -> transDStore.removeFiles.isEmpty() && transDStore.sendFiles.isEmpty())
+                && markUnderReplicatedFiles() == 0;
+        if (isSuccess) {
+            logger.info("==================== end rebalanced successfully ====================");
+        }else {
+            rebalancedFailures.increment();
+            logger.info("==================== end rebalanced failed ====================");
+        }
+        rebalancedMillis.record(System.currentTimeMillis() - startTime);
+        return isSuccess;
+    }
+
+    /**
+     * 把每个dstore的rebalance命令按优先级拆分，副本不足的文件先于迁移，单条命令发送的字节数不超过Config.rebalanceChunkBytes
+     * @param transDStores
+     * @param sends 发送文件的命令
+     * @param deletes 删除文件的命令，每个dstore一条
+     */
+    private void splitTransfers(Map<Integer, TransDStore> transDStores, List<TransferScheduler.Transfer> sends,
+                                List<TransferScheduler.Transfer> deletes) {
+        long seq = 0;
+        for (TransDStore transDStore : transDStores.values()) {
+            int dPort = transDStore.getSourceDPort();
+            Map<TransferScheduler.Priority, TransDStore> chunks = new EnumMap<>(TransferScheduler.Priority.class);
+            Map<TransferScheduler.Priority, Long> chunkBytes = new EnumMap<>(TransferScheduler.Priority.class);
+            for (Map.Entry<Integer, List<Integer>> entry : transDStore.sendFiles.entrySet()) {
+                ControllerFileWrapper controllerFileWrapper = fileOf(entry.getKey());
+                long bytes = 0;
+                TransferScheduler.Priority priority = TransferScheduler.Priority.MOVE;
+                if (controllerFileWrapper != null) {
+                    bytes = controllerFileWrapper.fileSize * entry.getValue().size();
+                    synchronized (controllerFileWrapper) {
+                        if (controllerFileWrapper.Dstore.size() < r) priority = TransferScheduler.Priority.REPAIR;
+                    }
+                }
+                TransDStore chunk = chunks.get(priority);
+                if (chunk != null && chunkBytes.get(priority) + bytes > Config.rebalanceChunkBytes) {
+                    sends.add(new TransferScheduler.Transfer(priority, chunk, chunkBytes.get(priority), seq++));
+                    chunk = null;
+                }
+                if (chunk == null) {
+                    chunk = new TransDStore(dPort, fileIds);
+                    chunks.put(priority, chunk);
+                    chunkBytes.put(priority, 0L);
+                }
+                chunk.sendFiles.put(entry.getKey(), entry.getValue());
+                chunkBytes.merge(priority, bytes, Long::sum);
             }
-            executorService.submit(() -> {
-                try {
-                    Communication communication = new Communication(entry.getKey(), timeout);
-                    String sendMsg = String.join(" ", Protocol.REBALANCE_TOKEN, entry.getValue().generateCommand());
-                    logger.info(String.format("rebalanced %d with %s", entry.getKey(), sendMsg));
-                    communication.send(sendMsg);
-                    String receivedMsg = communication.receive();
-                    String[] substrings = receivedMsg.split(" ");
-                    String protocol = substrings[0];
-                    if (protocol.equals(Protocol.REBALANCE_COMPLETE_TOKEN)){
-                        rebalancedDPorts.add(entry.getKey());
-                        dPortsFileMap.get(entry.getKey()).removeAll(entry.getValue().removeFiles);
-                        for (String removeFile:entry.getValue().removeFiles){
-                            ControllerFileWrapper controllerFileWrapper = fileMap.get(removeFile);
-                            controllerFileWrapper.Dstore.remove((Integer) entry.getKey());
-                        }
-                        for (Map.Entry<String, List<Integer>> entry1:entry.getValue().sendFiles.entrySet()){
-                            for (int dPort:entry1.getValue()){
-                                dPortsFileMap.get(dPort).add(entry1.getKey());
-                            }
-                            ControllerFileWrapper controllerFileWrapper = fileMap.get(entry1.getKey());
-                            controllerFileWrapper.Dstore.addAll(entry1.getValue());
-                        }
-                    }else {
-                        throw new SocketTimeoutException("unexpected response");
+            for (Map.Entry<TransferScheduler.Priority, TransDStore> entry : chunks.entrySet()) {
+                sends.add(new TransferScheduler.Transfer(entry.getKey(), entry.getValue(), chunkBytes.get(entry.getKey()), seq++));
+            }
+            if (!transDStore.removeFiles.isEmpty()) {
+                TransDStore chunk = new TransDStore(dPort, fileIds);
+                chunk.removeFiles.addAll(transDStore.removeFiles);
+                deletes.add(new TransferScheduler.Transfer(TransferScheduler.Priority.DELETE, chunk, 0, seq++));
+            }
+        }
+    }
+
+    /**
+     * 执行一条rebalance命令，完成后更新文件记录
+     * @param transfer
+     * @return 是否收到REBALANCE_COMPLETE
+     */
+    private boolean rebalanceTransfer(TransferScheduler.Transfer transfer) {
+        try {
+            String sendMsg = String.join(" ", Protocol.REBALANCE_TOKEN, transfer.command.generateCommand());
+            logger.info(String.format("rebalanced %d with %s", transfer.dPort(), sendMsg));
+            String receivedMsg = dstoreConnections.execute(transfer.dPort(), communication -> {
+                communication.send(sendMsg);
+                return communication.receive();
+            });
+            if (receivedMsg == null) throw new IOException("connection closed");
+            String[] substrings = receivedMsg.split(" ");
+            String protocol = substrings[0];
+            if (!protocol.equals(Protocol.REBALANCE_COMPLETE_TOKEN)) throw new SocketTimeoutException("unexpected response");
+            IntHashSet fileIdSet = dPortsFileMap.get(transfer.dPort());
+            transfer.command.removeFiles.forEach(removeFile -> {
+                synchronized (fileIdSet) {
+                    fileIdSet.remove(removeFile);
+                }
+                ControllerFileWrapper controllerFileWrapper = fileOf(removeFile);
+                if (controllerFileWrapper == null) return;
+                synchronized (controllerFileWrapper) {
+                    if (controllerFileWrapper.Dstore.remove((Integer) transfer.dPort())) {
+                        dstoreLoad.remove(transfer.dPort(), controllerFileWrapper.fileSize);
                     }
-                    communication.close();
-                } catch (SocketTimeoutException e) {
-                    faultRebalancedDPorts.add(entry.getKey());
-                    logger.warning(String.format("%d rebalanced fault", entry.getKey()));
-                } catch (IOException e) {
-                    logger.warning("socket io error");
                 }
             });
+            for (Map.Entry<Integer, List<Integer>> entry : transfer.command.sendFiles.entrySet()) {
+                for (int dPort : entry.getValue()) {
+                    IntHashSet targetFileIdSet = dPortsFileMap.get(dPort);
+                    synchronized (targetFileIdSet) {
+                        targetFileIdSet.add(entry.getKey());
+                    }
+                }
+                ControllerFileWrapper controllerFileWrapper = fileOf(entry.getKey());
+                if (controllerFileWrapper == null) continue;
+                synchronized (controllerFileWrapper) {
+                    for (int dPort : entry.getValue()) {
+                        if (controllerFileWrapper.Dstore.contains(dPort)) continue;
+                        controllerFileWrapper.Dstore.add(dPort);
+                        dstoreLoad.add(dPort, controllerFileWrapper.fileSize);
+                    }
+                }
+            }
+            return true;
+        } catch (SocketTimeoutException e) {
+            logger.warning(String.format("%d rebalanced fault", transfer.dPort()));
+        } catch (IOException e) {
+            logger.warning(String.format("%d rebalanced socket io error", transfer.dPort()));
+        }
+        return false;
+    }
+
+    /**
+     * 反熵核对，与重平衡互斥，避免把迁移中途的状态当作不一致；确认不一致时按摘要修正该dstore的变更日志视图，
+     * 并触发一次不走快速路径的重平衡
+     */
+    private synchronized void antiEntropy() {
+        if (snapshotLoaded.getCount() > 0) return; // 文件记录尚未加载完
+        for (Map.Entry<Integer, IntHashSet> entry : dPortsFileMap.entrySet()) {
+            int[] expected;
+            synchronized (entry.getValue()) {
+                expected = entry.getValue().toArray();
+            }
+            try {
+                antiEntropy.check(entry.getKey(), expected, (dPort, held, missing) -> {
+                    DstoreJournalView journalView = journalViews.get(dPort);
+                    if (journalView != null) journalView.correct(held, missing);
+                    reconciled = false;
+                    rebalanceScheduler.trigger("anti-entropy", false);
+                });
+            } catch (IOException | RuntimeException e) {
+                // 失效的dstore由重平衡处理
+                logger.info(String.format("anti-entropy with dstore %d error: %s", entry.getKey(), e.getMessage()));
+            }
         }
-        executorService.shutdown();
+    }
+
+    private boolean storeInProgress(int fileId) {
+        ControllerFileWrapper controllerFileWrapper = fileOf(fileId);
+        return controllerFileWrapper != null && controllerFileWrapper.status == DstoreFileStatus.STORE_IN_PROGRESS;
+    }
+
+    private boolean misplacedFilesEmpty() {
+        synchronized (misplacedFiles) {
+            return misplacedFiles.isEmpty();
+        }
+    }
+
+    /**
+     * 核对每个文件记录的持有节点：不同的正常节点不足r个(节点不足r个时为全部节点)的文件记入misplacedFiles，由下次重平衡补足。
+     * 没有正常节点持有的文件无法补足，跳过
+     * @return 副本不足的文件数
+     */
+    private int markUnderReplicatedFiles() {
+        int expected = Math.min(r, dPortsFileMap.size());
+        int underReplicated = 0;
+        for (ControllerFileWrapper controllerFileWrapper : fileMap.values()) {
+            if (controllerFileWrapper.status != DstoreFileStatus.STORE_COMPLETE) continue;
+            long liveDPorts;
+            synchronized (controllerFileWrapper) {
+                liveDPorts = controllerFileWrapper.Dstore.stream().distinct().filter(dPortsFileMap::containsKey).count();
+            }
+            if (liveDPorts == 0 || liveDPorts >= expected) continue;
+            synchronized (misplacedFiles) {
+                misplacedFiles.add(controllerFileWrapper.fileId);
+            }
+            underReplicated++;
+        }
+        if (underReplicated > 0) logger.info(String.format("%d files are under-replicated", underReplicated));
+        return underReplicated;
+    }
+
+    /**
+     * 文件编号对应的文件信息，只在协议边界之外使用
+     * @param fileId
+     * @return 文件不存在时为null
+     */
+    private ControllerFileWrapper fileOf(int fileId) {
+        return fileMap.get(fileIds.nameOf(fileId));
+    }
+
+    /**
+     * 按文件名查找文件信息，快照尚未加载完时从快照中按需读取
+     * @param filename
+     * @return 文件不存在时为null
+     */
+    private ControllerFileWrapper lookupFile(String filename) {
+        ControllerFileWrapper controllerFileWrapper = fileMap.get(filename);
+        ControllerSnapshot snapshot = this.snapshot;
+        if (controllerFileWrapper != null || snapshot == null) return controllerFileWrapper;
+        ControllerSnapshot.Record record = snapshot.lookup(filename);
+        if (record == null) return null;
+        snapshotFaults.increment();
+        return installSnapshotFile(snapshot, record);
+    }
+
+    /**
+     * 从快照恢复：成员和hash环立即恢复，文件记录由后台线程逐条加载，
+     * 加载期间按文件名的请求从快照中按需读取，LIST和重平衡等待加载完成
+     */
+    private void restoreSnapshot() {
+        ControllerSnapshot snapshot = null;
+        long startTime = System.currentTimeMillis();
         try {
-            executorService.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+            if (!Config.snapshotFile.isEmpty()) snapshot = ControllerSnapshot.open(Path.of(Config.snapshotFile));
+            if (snapshot != null) {
+                if (!snapshot.engine.equals(placementEngine.name()) || !snapshot.hashFunction.equalsIgnoreCase(Config.hashFunction)
+                        || snapshot.r != r) {
+                    throw new ConsistentHashException(String.format("snapshot of %s %s r=%d does not match the configuration",
+                            snapshot.engine, snapshot.hashFunction, snapshot.r));
+                }
+                placementEngine.restoreState(snapshot.state, r);
+            }
+        } catch (IOException | ConsistentHashException e) {
+            logger.warning(String.format("ignore snapshot %s: %s", Config.snapshotFile, e.getMessage()));
+            closeSnapshot(snapshot);
+            snapshot = null;
+        }
+        if (snapshot == null) {
+            snapshotLoaded.countDown();
+            return;
+        }
+        PlacementState state = snapshot.state;
+        for (int i = 0; i < state.members.length; i++) {
+            dPortsFileMap.put(state.members[i], new IntHashSet());
+            dPortWeightMap.put(state.members[i], state.weights[i]);
+            dstoreLoad.addDstore(state.members[i]);
+        }
+        logger.info(String.format("restored %d dstores on epoch %d from snapshot in %d ms, loading %d files",
+                state.members.length, state.epoch, System.currentTimeMillis() - startTime, snapshot.fileCount));
+        this.snapshot = snapshot;
+        ControllerSnapshot loading = snapshot;
+        Thread loader = new Thread(() -> {
+            try {
+                for (int i = 0; i < loading.fileCount; i++) installSnapshotFile(loading, loading.record(i));
+                logger.info(String.format("loaded %d files from snapshot in %d ms", loading.fileCount, System.currentTimeMillis() - startTime));
+            } catch (RuntimeException e) {
+                logger.warning(String.format("snapshot loading fault: %s", e));
+            } finally {
+                this.snapshot = null;
+                closeSnapshot(loading);
+                snapshotLoadMillis.record(System.currentTimeMillis() - startTime);
+                snapshotLoaded.countDown();
+            }
+        });
+        loader.setName("controller snapshot loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /**
+     * 恢复快照中的一个文件，由后台加载和按需读取共同调用，每个文件只恢复一次。
+     * 重启后已经出现过的文件名(例如被重新存储后又失败)以内存中的状态为准，不再恢复
+     * @param snapshot
+     * @param record
+     * @return
+     */
+    private ControllerFileWrapper installSnapshotFile(ControllerSnapshot snapshot, ControllerSnapshot.Record record) {
+        synchronized (snapshot) {
+            if (fileIds.idOf(record.fileName) != -1) return fileMap.get(record.fileName);
+            int fileId = fileIds.intern(record.fileName);
+            List<Integer> dPorts = new ArrayList<>();
+            for (int dPort : record.dPorts) dPorts.add(dPort);
+            ControllerFileWrapper controllerFileWrapper = new ControllerFileWrapper(fileId, record.fileName, record.fileSize,
+                    dPorts, DstoreFileStatus.STORE_COMPLETE);
+            placementEngine.restoreFile(fileId, record.placement);
+            for (int dPort : record.dPorts) {
+                IntHashSet fileIdSet = dPortsFileMap.get(dPort);
+                if (fileIdSet == null) continue;
+                synchronized (fileIdSet) {
+                    fileIdSet.add(fileId);
+                }
+                dstoreLoad.add(dPort, record.fileSize);
+            }
+            fileMap.put(record.fileName, controllerFileWrapper);
+            completedFiles.add(record.fileName);
+            return controllerFileWrapper;
+        }
+    }
+
+    private static void closeSnapshot(ControllerSnapshot snapshot) {
+        if (snapshot == null) return;
+        try {
+            snapshot.close();
+        } catch (IOException e) {
+            logger.warning("snapshot close error");
+        }
+    }
+
+    private void awaitSnapshotLoaded() {
+        try {
+            snapshotLoaded.await();
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
         }
-        //TODO after
-        for (Map<Integer, List<VirtualDstore>> map:removeDPortTransVDsMaps){
-            consistentHash.afterRemoveDstore(map);
+    }
+
+    /**
+     * 写入快照，与重平衡互斥，此时没有进行中的迁移计划；只保存存储完成的文件
+     */
+    private synchronized void writeSnapshot() {
+        PlacementState state = placementEngine.exportState();
+        if (state == null || snapshotLoaded.getCount() > 0) return; // 尚未初始化，或快照尚未加载完，避免覆盖
+        long startTime = System.currentTimeMillis();
+        List<ControllerSnapshot.Record> records = new ArrayList<>();
+        for (ControllerFileWrapper controllerFileWrapper : fileMap.values()) {
+            if (controllerFileWrapper.status != DstoreFileStatus.STORE_COMPLETE) continue;
+            int[] placement = placementEngine.placementOf(controllerFileWrapper.fileId);
+            if (placement == null) continue;
+            int[] dPorts;
+            synchronized (controllerFileWrapper) {
+                dPorts = controllerFileWrapper.Dstore.stream().mapToInt(Integer::intValue).toArray();
+            }
+            records.add(new ControllerSnapshot.Record(controllerFileWrapper.fileName, controllerFileWrapper.fileSize, dPorts, placement));
         }
-        if (newDPort!=null) {
-            // TODO: store file changed info into consistentHash.fileVDstoreMap
-            consistentHash.afterAddDstore(newDPort, addDPortTransVDMap);
+        try {
+            ControllerSnapshot.write(Path.of(Config.snapshotFile), placementEngine.name(), Config.hashFunction, r, state, records);
+            snapshotWriteMillis.record(System.currentTimeMillis() - startTime);
+            logger.info(String.format("snapshot of %d files on epoch %d written to %s", records.size(), state.epoch, Config.snapshotFile));
+        } catch (IOException e) {
+            logger.warning(String.format("snapshot writing error: %s", e.getMessage()));
         }
-        boolean isSuccess = faultRebalancedDPorts.isEmpty();
-        if (isSuccess) {
-            logger.info("==================== end rebalanced successfully ====================");
-        }else {
-            logger.info("==================== end rebalanced failed ====================");
+    }
+
+    /**
+     * 将迁移计划转换为rebalance命令：原副本所在节点正常且确实持有文件时由其发送并删除，
+     * 否则(原节点已失效或为新增副本)交给任一持有文件的节点发送。
+     * 目标节点已持有该文件(包括发给自己)的迁移不下发，原副本保留，文件记入misplacedFiles由下次重平衡补足副本
+     * @param plan
+     * @param reconciledFiles 已按计划提交后的位置核对的文件，跳过
+     * @param storedFileMap
+     * @param transDStores
+     * @param dPortTransFilesMap
+     */
+    private void applyMoves(TransferPlan plan, IntHashSet reconciledFiles, Map<Integer, List<Integer>> storedFileMap,
+                            Map<Integer, TransDStore> transDStores, Map<Integer, IntHashSet> dPortTransFilesMap) {
+        for (TransferPlan.FileMove move : plan.moves) {
+            if (fileOf(move.fileId) == null || reconciledFiles.contains(move.fileId)) continue;
+            List<Integer> containedDPorts = storedFileMap.getOrDefault(move.fileId, Collections.emptyList());
+            if (move.to == move.from || containedDPorts.contains(move.to)) {
+                logger.warning(String.format("skip transfer of %s from %d to %d already holding it",
+                        fileIds.nameOf(move.fileId), move.from, move.to));
+                synchronized (misplacedFiles) {
+                    misplacedFiles.add(move.fileId);
+                }
+                continue;
+            }
+            TransDStore source = transDStores.get(move.from);
+            if (source != null && containedDPorts.contains(move.from)) {
+                source.sendFiles.computeIfAbsent(move.fileId, k -> new ArrayList<>()).add(move.to);
+                source.removeFiles.add(move.fileId);
+            } else {
+                dPortTransFilesMap.computeIfAbsent(move.to, k -> new IntHashSet()).add(move.fileId);
+            }
         }
-        System.out.printf("rebalanced cost %d\n", System.currentTimeMillis() - startTime);
-        return isSuccess;
+    }
+
+    /**
+     * 处理一条命令并记录耗时，两种前端共用
+     * @param msg
+     * @param channel
+     * @param errorPortsMap
+     * @param lastLoadPort
+     * @throws IOException
+     * @throws ConsistentHashException
+     */
+    private void dispatch(String msg, MessageChannel channel, Map<String, List<Integer>> errorPortsMap,
+                          Map<String, Integer> lastLoadPort) throws IOException, ConsistentHashException {
+        logger.info(String.format("handle msg %s on %s", msg, Thread.currentThread().getName()));
+        long startTime = System.currentTimeMillis();
+        handle(msg, channel, errorPortsMap, lastLoadPort);
+        requestMillis.record(System.currentTimeMillis() - startTime);
     }
 
     /**
@@ -353,7 +746,7 @@ public class Controller {
      * @throws IOException
      * @throws ConsistentHashException
      */
-    private void handle(String msg, Communication tmpService,
+    private void handle(String msg, MessageChannel tmpService,
                         Map<String, List<Integer>> errorPortsMap,
                         Map<String, Integer> lastLoadPort
                         ) throws IOException, ConsistentHashException {
@@ -363,28 +756,111 @@ public class Controller {
         switch (protocol) {
             case Protocol.JOIN_TOKEN -> { // join
                 int dPort = Integer.parseInt(substrings[1]);
-                Communication tmpClient = new Communication(dPort, this.timeout);
-                tmpClient.send(Protocol.JOIN_TOKEN);
-                tmpClient.close();
+                // 旧版本dstore不携带容量和权重
+                if (substrings.length > 2) dPortCapacityMap.put(dPort, Long.parseLong(substrings[2]));
+                double weight = substrings.length > 3 ? Double.parseDouble(substrings[3]) : 1.0;
+                if (weight <= 0) {
+                    logger.warning(String.format("invalid weight %s of %d, use 1", substrings[3], dPort));
+                    weight = 1.0;
+                }
+                Double previousWeight = dPortWeightMap.put(dPort, weight);
+                dstoreLoad.addDstore(dPort);
+                logger.info(String.format("dstore %d joins with capacity %d weight %.2f", dPort, dPortCapacityMap.getOrDefault(dPort, -1L), weight));
+                dstoreConnections.removeDstore(dPort); // 重新加入的dstore是新进程，旧连接已失效
+                dstoreConnections.execute(dPort, communication -> {
+                    communication.send(Protocol.JOIN_TOKEN);
+                    return Boolean.TRUE;
+                });
+                if (dPortsFileMap.containsKey(dPort)) {
+                    // 已是成员(例如从快照恢复)，只按需更新权重
+                    logger.info(String.format("dstore %d rejoins", dPort));
+                    if (dPortsFileMap.size() >= r && previousWeight != null && previousWeight != weight) {
+                        pendingWeights.put(dPort, weight);
+                        rebalanceScheduler.trigger("weight", true);
+                    }
+                    return;
+                }
                 if (dPortsFileMap.size() == r - 1) {
                     List<Integer> dPorts = new ArrayList<>(dPortsFileMap.keySet());
                     dPorts.add(dPort);
-                    consistentHash.initConsistentHash(dPorts);
+                    placementEngine.init(dPorts, dPortWeightMap, r);
                 } else if (dPortsFileMap.size() >= r) {
-                    rebalanced(dPort);
+                    // 由重平衡加入hash环和dPortsFileMap，同时到达的多个加入合并为一次
+                    pendingJoins.put(dPort, weight);
+                    rebalanceScheduler.trigger("join", true);
+                    return;
                 }
-                dPortsFileMap.put(dPort, new ArrayList<>());
+                dPortsFileMap.putIfAbsent(dPort, new IntHashSet());
+            }
+            case Protocol.WEIGHT_TOKEN -> { // runtime weight change
+                int dPort = Integer.parseInt(substrings[1]);
+                double weight = Double.parseDouble(substrings[2]);
+                if (weight <= 0 || !dPortsFileMap.containsKey(dPort)) {
+                    logger.warning(String.format("ignore weight %s of %d", substrings[2], dPort));
+                    return;
+                }
+                dPortWeightMap.put(dPort, weight);
+                if (dPortsFileMap.size() >= r) {
+                    pendingWeights.put(dPort, weight);
+                    rebalanceScheduler.trigger("weight", true);
+                }
+            }
+            case Protocol.METRICS_TOKEN -> { // runtime metrics, one line of name=value
+                SortedMap<String, String> snapshot = Metrics.snapshot();
+                for (int dPort : dstoreLoad.getDPorts()) {
+                    snapshot.put(String.format("dstore.%d.bytes", dPort), Long.toString(dstoreLoad.getBytes(dPort)));
+                    snapshot.put(String.format("dstore.%d.files", dPort), Long.toString(dstoreLoad.getFiles(dPort)));
+                }
+                String metrics = snapshot.entrySet().stream()
+                        .map(entry -> entry.getKey() + "=" + entry.getValue()).collect(Collectors.joining(" "));
+                tmpService.send(String.join(" ", Protocol.METRICS_TOKEN, metrics));
             }
             case Protocol.LIST_TOKEN -> { // list
                 if (dPortsFileMap.size() < r) {
                     tmpService.send(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
                     return;
                 }
-                String files = String.join(" ", getFileByStatus(DstoreFileStatus.STORE_COMPLETE));
+                awaitSnapshotLoaded();
+                String files = String.join(" ", completedFiles);
                 logger.info(String.format("stored files are %s", files));
                 String sendMsg = String.join(" ", new String[]{Protocol.LIST_TOKEN, files});
                 tmpService.send(sendMsg);
             }
+            case Protocol.LIST_PAGE_TOKEN -> { // LIST_PAGE limit [prefix=...] [after=...]
+                if (dPortsFileMap.size() < r) {
+                    tmpService.send(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+                    return;
+                }
+                int requestedLimit;
+                try {
+                    requestedLimit = Integer.parseInt(substrings[1]);
+                } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                    tmpService.send(Protocol.ERROR_MALFORMED_REQUEST_TOKEN);
+                    return;
+                }
+                awaitSnapshotLoaded();
+                int limit = Math.max(1, Math.min(requestedLimit, Config.listPageMax));
+                String prefix = "";
+                String after = null;
+                for (int i = 2; i < substrings.length; i++) {
+                    if (substrings[i].startsWith("prefix=")) prefix = substrings[i].substring("prefix=".length());
+                    else if (substrings[i].startsWith("after=")) after = substrings[i].substring("after=".length());
+                }
+                // 从前缀或游标处开始沿有序索引读取一页，代价与页大小成正比
+                NavigableSet<String> tail = after != null && after.compareTo(prefix) >= 0
+                        ? completedFiles.tailSet(after, false) : completedFiles.tailSet(prefix, true);
+                List<String> page = new ArrayList<>(limit);
+                boolean more = false;
+                for (String filename : tail) {
+                    if (!filename.startsWith(prefix)) break;
+                    if (page.size() == limit) {
+                        more = true;
+                        break;
+                    }
+                    page.add(filename);
+                }
+                tmpService.send(String.join(" ", Protocol.LIST_PAGE_TOKEN, more ? "1" : "0", String.join(" ", page)));
+            }
             case Protocol.STORE_TOKEN -> { // store
                 if (dPortsFileMap.size() < r) {
                     tmpService.send(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
@@ -392,58 +868,65 @@ public class Controller {
                 }
                 String filename = substrings[1];
                 int filesize = Integer.parseInt((substrings[2]));
-                if (fileMap.containsKey(filename) && fileMap.get(filename).status != DstoreFileStatus.REMOVE_COMPLETE) {
-                    logger.warning(String.format("file %s already exist", filename));
-                    tmpService.send(Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
-                    return;
-                }
-                if (filesize > 100000) {
-                    logger.warning("filesize is oversize");
-                    tmpService.send(Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
+                String rejection = storeRejection(filename, filesize);
+                if (rejection != null) {
+                    tmpService.send(rejection);
                     return;
                 }
-                List<VirtualDstore> targetVDs = consistentHash.getStoreTarget(filename, r);
 //            List<Integer> dstore = getStorePorts(filename, filesize);
-                List<Integer> dstore = new ArrayList<>();
-                for (VirtualDstore virtualDstore : targetVDs) {
-                    dstore.add(virtualDstore.dPort);
-                }
-                ControllerFileWrapper controllerFileWrapper = new ControllerFileWrapper(filename, filesize, new ArrayList<>(), DstoreFileStatus.STORE_IN_PROGRESS);
+                Placement placement = storeTarget(filename);
+                ControllerFileWrapper controllerFileWrapper = new ControllerFileWrapper(fileIds.intern(filename), filename, filesize, new ArrayList<>(), DstoreFileStatus.STORE_IN_PROGRESS);
                 fileMap.put(filename, controllerFileWrapper);
-                String dstorePorts = String.join(" ", dstore.stream().map(Object::toString).toArray(String[]::new));
+                // 先登记再回复，STORE_ACK可能在回复发出后立即到达；处理线程不等待，由第r个STORE_ACK或超时结束
+                // 收尾要取放置算法的锁，交给dstoreRequests执行，不占用时间轮和I/O线程
+                storeCompletions.register(controllerFileWrapper.fileId, timeout)
+                        .whenCompleteAsync((ignored, e) -> afterStore(controllerFileWrapper, placement, tmpService, e), dstoreRequests);
+                String dstorePorts = String.join(" ", Arrays.stream(placement.dPorts).mapToObj(String::valueOf).toArray(String[]::new));
                 String sendMsg = String.join(" ", new String[]{Protocol.STORE_TO_TOKEN, dstorePorts});
                 tmpService.send(sendMsg);
-                // waiting for dstore msg
-                try {
-                    ControllerFileWrapper tmpCFW = fileMap.get(filename);
-                    synchronized (tmpCFW) {
-                        tmpCFW.wait(timeout);
-                        if (tmpCFW.status != DstoreFileStatus.STORE_COMPLETE){
-                            fileMap.remove(filename);
-//                            tmpService.close();
-                            logger.warning(String.format("store file %s error", filename));
-                            return;
-                        }
+            }
+            case Protocol.STORE_BATCH_TOKEN -> { // STORE_BATCH filename1 size1 filename2 size2 ...
+                if (dPortsFileMap.size() < r) {
+                    tmpService.send(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+                    return;
+                }
+                int count = (substrings.length - 1) / 2;
+                String[] targets = new String[count]; // 每个文件逗号分隔的存储位置，或拒绝的原因
+                List<CompletableFuture<Boolean>> results = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    String filename = substrings[1 + 2 * i];
+                    int filesize = Integer.parseInt(substrings[2 + 2 * i]);
+                    String rejection = storeRejection(filename, filesize);
+                    if (rejection != null) {
+                        targets[i] = rejection;
+                        results.add(CompletableFuture.completedFuture(false));
+                        continue;
                     }
-                    consistentHash.afterStoreTargetFile(filename, targetVDs);
-                    tmpService.send(Protocol.STORE_COMPLETE_TOKEN);
-                } catch (InterruptedException e) {
-                    logger.warning("thread waiting error");
+                    Placement placement = storeTarget(filename);
+                    ControllerFileWrapper controllerFileWrapper = new ControllerFileWrapper(fileIds.intern(filename), filename, filesize, new ArrayList<>(), DstoreFileStatus.STORE_IN_PROGRESS);
+                    fileMap.put(filename, controllerFileWrapper);
+                    results.add(storeCompletions.register(controllerFileWrapper.fileId, timeout)
+                            .handleAsync((ignored, e) -> finishStore(controllerFileWrapper, placement, e), dstoreRequests));
+                    targets[i] = Arrays.stream(placement.dPorts).mapToObj(String::valueOf).collect(Collectors.joining(","));
                 }
+                tmpService.send(String.join(" ", Protocol.STORE_BATCH_TO_TOKEN, String.join(" ", targets)));
+                // 回复存储位置之后再汇总，全部被拒绝时结果不会先于STORE_BATCH_TO发出
+                CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).thenRun(() -> {
+                    String stored = results.stream().map(result -> result.join()
+                            ? Protocol.STORE_BATCH_STORED : Protocol.STORE_BATCH_FAILED).collect(Collectors.joining(" "));
+                    try {
+                        tmpService.send(String.join(" ", Protocol.STORE_BATCH_COMPLETE_TOKEN, stored));
+                    } catch (IOException e) {
+                        logger.warning("fail to reply STORE_BATCH_COMPLETE");
+                    }
+                });
             }
             case Protocol.STORE_ACK_TOKEN -> { // dstore ack store
-                String filename = substrings[1];
-                int dPort = Integer.parseInt(substrings[2]);
-                dPortsFileMap.get(dPort).add(filename);
-                ControllerFileWrapper tmpCFW = fileMap.get(filename);
-                synchronized (tmpCFW) {
-                    List<Integer> storedPorts = tmpCFW.Dstore;
-                    storedPorts.add(dPort);
-                    if (storedPorts.size() == r) {
-                        tmpCFW.status = DstoreFileStatus.STORE_COMPLETE;
-                        tmpCFW.notifyAll();
-                    }
-                }
+                storeAcked(substrings[1], Integer.parseInt(substrings[2]));
+            }
+            case Protocol.STORE_BATCH_ACK_TOKEN -> { // STORE_BATCH_ACK dPort filename1 filename2 ...
+                int dPort = Integer.parseInt(substrings[1]);
+                for (int i = 2; i < substrings.length; i++) storeAcked(substrings[i], dPort);
             }
             case Protocol.LOAD_TOKEN -> { // load file
                 String filename = substrings[1];
@@ -451,7 +934,7 @@ public class Controller {
                     tmpService.send(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
                     return;
                 }
-                ControllerFileWrapper tmpCFW = fileMap.getOrDefault(filename, null);
+                ControllerFileWrapper tmpCFW = lookupFile(filename);
                 if (tmpCFW == null || tmpCFW.status != DstoreFileStatus.STORE_COMPLETE) {
                     tmpService.send(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
                     return;
@@ -471,12 +954,14 @@ public class Controller {
             }
             case Protocol.RELOAD_TOKEN -> {
                 String filename = substrings[1];
+                // 客户端从上次选择的dstore读取失败，副本可能已丢失，尽快核对而不是等到下一个周期
+                rebalanceScheduler.trigger("reload", false);
                 if (!errorPortsMap.containsKey(filename)){
                     List<Integer> tmp = new ArrayList<>();
                     tmp.add(lastLoadPort.get(filename));
                     errorPortsMap.put(filename, tmp);
                 }
-                ControllerFileWrapper tmpCFW = fileMap.getOrDefault(filename, null);
+                ControllerFileWrapper tmpCFW = lookupFile(filename);
                 assert tmpCFW != null;
                 int filesize = tmpCFW.fileSize;
                 int selectedPort = selectLoadPort(tmpCFW, errorPortsMap.get(filename));
@@ -495,102 +980,285 @@ public class Controller {
                     return;
                 }
                 String filename = substrings[1];
-                ControllerFileWrapper tmpCFW = fileMap.getOrDefault(filename, null);
+                ControllerFileWrapper tmpCFW = lookupFile(filename);
                 if (tmpCFW == null || tmpCFW.status != DstoreFileStatus.STORE_COMPLETE) {
                     tmpService.send(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
                     return;
                 }
                 tmpCFW.status = DstoreFileStatus.REMOVE_IN_PROGRESS;
-                List<Thread> threads = new ArrayList<>();
-                for (int dPort : tmpCFW.Dstore) {
-                    Thread thread = new Thread() {
-                        {
-                            setName(String.format("controller %d %d", cPort, dPort));
-                        }
-
-                        @Override
-                        public void run() {
-                            try {
-                                Communication tmpClient = new Communication(dPort, timeout);
-                                String sendMsg = String.join(" ", new String[]{Protocol.REMOVE_TOKEN, filename});
-                                tmpClient.send(sendMsg);
-                                String receiveMsg = tmpClient.receive();
-                                if ((receiveMsg.contains(Protocol.REMOVE_ACK_TOKEN)
-                                        || receiveMsg.contains(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN))
-                                        && receiveMsg.contains(filename)) {
-                                    dPortsFileMap.get(Integer.valueOf(dPort)).remove(filename);
-                                    synchronized (tmpCFW) {
-                                        tmpCFW.Dstore.remove(Integer.valueOf(dPort)); // it's the reason why don't start threads in the loop
-                                        if (tmpCFW.Dstore.isEmpty()) {
-                                            tmpCFW.status = DstoreFileStatus.REMOVE_COMPLETE;
-                                            tmpCFW.notifyAll();
-                                        }
-                                    }
-                                } else {
-                                    throw new RuntimeException("not the expected response");
-                                }
-                            } catch (SocketTimeoutException e) {
-                                logger.warning(String.format("not receive response of REMOVE command from %d", dPort));
-                            } catch (IOException e) {
-                                throw new RuntimeException(e);
-                            }
-                        }
-                    };
-                    threads.add(thread);
+                completedFiles.remove(filename);
+                removeCompletions.register(tmpCFW.fileId, timeout)
+                        .whenCompleteAsync((ignored, e) -> afterRemove(tmpCFW, tmpService, e), dstoreRequests);
+                // 先复制节点列表再提交，回复到达时会从tmpCFW.Dstore中删除
+                List<Integer> dPorts = new ArrayList<>(tmpCFW.Dstore);
+                if (dPorts.isEmpty()) { // 所有副本都已丢失
+                    tmpCFW.status = DstoreFileStatus.REMOVE_COMPLETE;
+                    removeCompletions.complete(tmpCFW.fileId);
                 }
-                Thread tmpServiceThread = new Thread() {
-                    {
-                        setName(String.format("controller %d %d", cPort, tmpService.getTargetPort()));
-                    }
+                // 同一dstore的删除在短窗口内合并为一条REMOVE_BATCH
+                for (int dPort : dPorts) removeBatcher.remove(dPort, filename, () -> removeAcked(tmpCFW, dPort));
+            }
+        }
+    }
 
-                    @Override
-                    public void run() {
-                        try {
-                            synchronized (tmpCFW) {
-                                while (tmpCFW.status != DstoreFileStatus.REMOVE_COMPLETE) {
-                                    tmpCFW.wait();
-                                    logger.info(String.format("Thread %s has been notified", Thread.currentThread().getName()));
-                                }
-                            }
-                            tmpService.send(Protocol.REMOVE_COMPLETE_TOKEN);
-                            logger.info(String.format("successfully remove file %s", filename));
-                        } catch (InterruptedException e) {
-                            logger.warning("thread waiting error");
-                        } catch (IOException e) {
-                            throw new RuntimeException(e);
-                        }
-                    }
-                };
-                tmpServiceThread.start();
-                for (Thread thread : threads) thread.start();
-                try {
-                    tmpServiceThread.join(timeout);
-                    consistentHash.removeFile(filename);
-                    logger.info(String.format("successfully remove file %s", filename));
-                } catch (InterruptedException e) { // don't receive enough ACKs
-                    logger.warning(String.format("REMOVE command is timeout, fail dstore ports are %s", tmpCFW.Dstore.stream().map(Object::toString).collect(Collectors.joining(" "))));
-                }
+    /**
+     * 检查文件能否存储
+     * @param filename
+     * @param filesize
+     * @return 拒绝时回复的错误，可以存储时为null
+     */
+    private String storeRejection(String filename, int filesize) {
+        ControllerFileWrapper existing = lookupFile(filename);
+        if (existing != null && existing.status != DstoreFileStatus.REMOVE_COMPLETE) {
+            logger.warning(String.format("file %s already exist", filename));
+            return Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN;
+        }
+        if (filesize > 100000) {
+            logger.warning("filesize is oversize");
+            return Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN;
+        }
+        return null;
+    }
+
+    /**
+     * 计算存储位置，有界负载模式下跳过字节数或文件数超过平均值c倍的节点
+     * @param filename
+     * @return
+     * @throws ConsistentHashException
+     */
+    private Placement storeTarget(String filename) throws ConsistentHashException {
+        return Config.boundedLoadFactor > 0
+                ? placementEngine.getStoreTarget(filename, r, dPort -> dstoreLoad.isOverloaded(dPort, Config.boundedLoadFactor))
+                : placementEngine.getStoreTarget(filename, r);
+    }
+
+    /**
+     * dstore确认存储了文件的一个副本，第r个确认完成STORE
+     * @param filename
+     * @param dPort
+     */
+    private void storeAcked(String filename, int dPort) {
+        ControllerFileWrapper tmpCFW = fileMap.get(filename);
+        IntHashSet fileIdSet = dPortsFileMap.get(dPort);
+        if (tmpCFW == null || fileIdSet == null) { // STORE已超时撤销
+            logger.warning(String.format("unexpected STORE_ACK of %s from %d", filename, dPort));
+            return;
+        }
+        synchronized (fileIdSet) {
+            fileIdSet.add(tmpCFW.fileId);
+        }
+        boolean stored = false;
+        synchronized (tmpCFW) {
+            List<Integer> storedPorts = tmpCFW.Dstore;
+            storedPorts.add(dPort);
+            dstoreLoad.add(dPort, tmpCFW.fileSize);
+            if (storedPorts.size() == r) {
+                tmpCFW.status = DstoreFileStatus.STORE_COMPLETE;
+                completedFiles.add(filename);
+                stored = true;
             }
         }
+        if (stored) storeCompletions.complete(tmpCFW.fileId);
     }
 
-    private String sendAndReceiveToDstore(int dPort, String sendMsg) throws IOException {
-        Communication tmpClient = new Communication(dPort, this.timeout);
-        tmpClient.send(sendMsg);
-        String receiveMsg = tmpClient.receive(); // handle SocketTimeoutException outside on diff condition
-        tmpClient.close();
-        tmpClient = null; // GC instance
-        return receiveMsg;
+    /**
+     * STORE结束：收到全部副本的确认后回复客户端
+     * @param tmpCFW
+     * @param placement
+     * @param tmpService
+     * @param error 超时时为TimeoutException
+     */
+    private void afterStore(ControllerFileWrapper tmpCFW, Placement placement, MessageChannel tmpService, Throwable error) {
+        if (!finishStore(tmpCFW, placement, error)) return;
+        try {
+            tmpService.send(Protocol.STORE_COMPLETE_TOKEN);
+        } catch (IOException e) {
+            logger.warning(String.format("fail to reply STORE_COMPLETE of %s", tmpCFW.fileName));
+        }
     }
 
-    private List<String> getFileByStatus(DstoreFileStatus status) {
-        List<String> fileNames = new ArrayList<>();
-        for (ControllerFileWrapper controllerFileWrapper : fileMap.values()) {
-            if (controllerFileWrapper.status == status) {
-                fileNames.add(controllerFileWrapper.fileName);
+    /**
+     * 收到全部副本的确认后同步放置算法，超时则撤销本次存储
+     * @param tmpCFW
+     * @param placement
+     * @param error 超时时为TimeoutException
+     * @return 是否存储成功
+     */
+    private boolean finishStore(ControllerFileWrapper tmpCFW, Placement placement, Throwable error) {
+        boolean stored;
+        synchronized (tmpCFW) {
+            stored = tmpCFW.status == DstoreFileStatus.STORE_COMPLETE; // 超时与最后一个STORE_ACK同时发生时以状态为准
+        }
+        if (!stored) {
+            storeTimeouts.increment();
+            fileMap.remove(tmpCFW.fileName, tmpCFW);
+            synchronized (tmpCFW) {
+                for (int dPort : tmpCFW.Dstore) dstoreLoad.remove(dPort, tmpCFW.fileSize);
+            }
+            logger.warning(String.format("store file %s error: %s", tmpCFW.fileName, error == null ? "not stored" : error.getMessage()));
+            return false;
+        }
+        if (placementEngine.afterStoreTargetFile(tmpCFW.fileId, placement)) {
+            // hash环在计算存储位置后发生了变更，交给下一次重平衡核对
+            logger.info(String.format("placement of file %s computed on epoch %d is stale", tmpCFW.fileName, placement.epoch));
+            synchronized (misplacedFiles) {
+                misplacedFiles.add(tmpCFW.fileId);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * dstore确认删除了文件的一个副本(或副本本就不存在)，全部副本确认后完成REMOVE
+     * @param tmpCFW
+     * @param dPort
+     */
+    private void removeAcked(ControllerFileWrapper tmpCFW, int dPort) {
+        IntHashSet fileIdSet = dPortsFileMap.get(dPort);
+        if (fileIdSet != null) {
+            synchronized (fileIdSet) {
+                fileIdSet.remove(tmpCFW.fileId);
             }
         }
-        return fileNames;
+        boolean removed = false;
+        synchronized (tmpCFW) {
+            if (tmpCFW.Dstore.remove(Integer.valueOf(dPort))) {
+                dstoreLoad.remove(dPort, tmpCFW.fileSize);
+            }
+            if (tmpCFW.Dstore.isEmpty()) {
+                tmpCFW.status = DstoreFileStatus.REMOVE_COMPLETE;
+                removed = true;
+            }
+        }
+        if (removed) removeCompletions.complete(tmpCFW.fileId);
+    }
+
+    /**
+     * REMOVE结束：无论是否收到全部确认都从放置算法中移除文件，全部确认时回复客户端
+     * @param tmpCFW
+     * @param tmpService
+     * @param error 超时时为TimeoutException
+     */
+    private void afterRemove(ControllerFileWrapper tmpCFW, MessageChannel tmpService, Throwable error) {
+        try {
+            placementEngine.removeFile(tmpCFW.fileId);
+        } catch (ConsistentHashException e) {
+            logger.warning(String.format("remove file %s from placement fault", tmpCFW.fileName));
+        }
+        if (error != null) { // don't receive enough ACKs
+            removeTimeouts.increment();
+            List<Integer> failDPorts;
+            synchronized (tmpCFW) {
+                failDPorts = new ArrayList<>(tmpCFW.Dstore);
+            }
+            logger.warning(String.format("REMOVE command is timeout, fail dstore ports are %s", failDPorts.stream().map(Object::toString).collect(Collectors.joining(" "))));
+            return;
+        }
+        try {
+            tmpService.send(Protocol.REMOVE_COMPLETE_TOKEN);
+            logger.info(String.format("successfully remove file %s", tmpCFW.fileName));
+        } catch (IOException e) {
+            logger.warning(String.format("fail to reply REMOVE_COMPLETE of %s", tmpCFW.fileName));
+        }
+    }
+
+    /**
+     * 核对存储位置过期的文件：计算位置后hash环发生变更的存储，以及失败或被取消的迁移
+     * @param plans 本次的迁移计划，按计划提交后的位置核对
+     * @param storedFileMap
+     * @param dPortTransFilesMap
+     * @param dPortRemoveFilesMap
+     * @return 核对的文件，不再按计划迁移
+     */
+    private IntHashSet reconcileMisplacedFiles(List<TransferPlan> plans,
+                                               Map<Integer, List<Integer>> storedFileMap,
+                                               Map<Integer, IntHashSet> dPortTransFilesMap,
+                                               Map<Integer, IntHashSet> dPortRemoveFilesMap) {
+        IntHashSet misplaced = new IntHashSet();
+        synchronized (misplacedFiles) {
+            misplacedFiles.forEach(misplaced::add);
+            misplacedFiles.clear();
+        }
+        IntHashSet reconciled = new IntHashSet();
+        if (misplaced.isEmpty()) return reconciled;
+        Map<Integer, List<TransferPlan.FileMove>> plannedMoves = new HashMap<>(); // file id -> moves of misplaced files
+        for (TransferPlan plan : plans) {
+            for (TransferPlan.FileMove move : plan.moves) {
+                if (misplaced.contains(move.fileId)) plannedMoves.computeIfAbsent(move.fileId, k -> new ArrayList<>()).add(move);
+            }
+        }
+        misplaced.forEach(fileId -> {
+            ControllerFileWrapper controllerFileWrapper = fileOf(fileId);
+            if (controllerFileWrapper == null || controllerFileWrapper.status != DstoreFileStatus.STORE_COMPLETE
+                    || storedFileMap.getOrDefault(fileId, Collections.emptyList()).isEmpty()) {
+                return;
+            }
+            List<Integer> expectedDPorts = new ArrayList<>(placementEngine.getFileDPorts(fileId));
+            for (TransferPlan.FileMove move : plannedMoves.getOrDefault(fileId, Collections.emptyList())) {
+                expectedDPorts.remove((Integer) move.from);
+                if (!expectedDPorts.contains(move.to)) expectedDPorts.add(move.to);
+            }
+            // 放置位置中重复或已失效的节点不算副本，不足r个时先由已持有的节点补足，再由字节数最少的其它节点补足
+            expectedDPorts = new ArrayList<>(new LinkedHashSet<>(expectedDPorts));
+            expectedDPorts.removeIf(dPort -> !dPortsFileMap.containsKey(dPort));
+            List<Integer> containedDPorts = storedFileMap.get(fileId);
+            List<Integer> candidates = new ArrayList<>(dPortsFileMap.keySet());
+            candidates.removeAll(expectedDPorts);
+            candidates.sort(Comparator.comparing((Integer dPort) -> !containedDPorts.contains(dPort))
+                    .thenComparingLong(dstoreLoad::getBytes));
+            for (int i = 0; expectedDPorts.size() < r && i < candidates.size(); i++) {
+                expectedDPorts.add(candidates.get(i));
+            }
+            for (int dPort : expectedDPorts) {
+                if (!dPortsFileMap.containsKey(dPort) || controllerFileWrapper.Dstore.contains(dPort)) continue;
+                if (containedDPorts.contains(dPort)) {
+                    // 迁移已完成但确认超时的副本直接记入，不再作为多余文件删除
+                    IntHashSet removeFiles = dPortRemoveFilesMap.get(dPort);
+                    if (removeFiles != null) removeFiles.remove(fileId);
+                    IntHashSet fileIdSet = dPortsFileMap.get(dPort);
+                    synchronized (fileIdSet) {
+                        fileIdSet.add(fileId);
+                    }
+                    synchronized (controllerFileWrapper) {
+                        controllerFileWrapper.Dstore.add(dPort);
+                        dstoreLoad.add(dPort, controllerFileWrapper.fileSize);
+                    }
+                } else {
+                    dPortTransFilesMap.computeIfAbsent(dPort, k -> new IntHashSet()).add(fileId);
+                }
+            }
+            for (int dPort : controllerFileWrapper.Dstore) {
+                IntHashSet removeFiles = dPortRemoveFilesMap.get(dPort);
+                if (removeFiles != null && !expectedDPorts.contains(dPort)) {
+                    removeFiles.add(fileId);
+                }
+            }
+            reconciled.add(fileId);
+            logger.info(String.format("reconcile file %s to %s", controllerFileWrapper.fileName, expectedDPorts));
+        });
+        return reconciled;
+    }
+
+    /**
+     * 各节点字节数或文件数的分布
+     * @param bytes true为字节数，false为文件数
+     * @return
+     */
+    private HashDistributionReport.Stats loadStats(boolean bytes) {
+        long[] values = dstoreLoad.getDPorts().stream()
+                .mapToLong(dPort -> bytes ? dstoreLoad.getBytes(dPort) : dstoreLoad.getFiles(dPort)).toArray();
+        return HashDistributionReport.Stats.of(values);
+    }
+
+    private static double maxOverMean(HashDistributionReport.Stats stats) {
+        return stats.mean == 0 ? 0 : stats.max / stats.mean;
+    }
+
+    private String sendAndReceiveToDstore(int dPort, String sendMsg) throws IOException {
+        return dstoreConnections.execute(dPort, communication -> {
+            communication.send(sendMsg);
+            return communication.receive(); // handle SocketTimeoutException outside on diff condition
+        });
     }
 
     @Deprecated
@@ -607,7 +1275,10 @@ public class Controller {
         for (int i = 0; i < r; i++) {
             int dPort = dPorts.get((beginIndex + i) % dPorts.size());
             selectedDPorts.add(dPort);
-            dPortsFileMap.get(dPort).add(filename);
+            IntHashSet fileIdSet = dPortsFileMap.get(dPort);
+            synchronized (fileIdSet) {
+                fileIdSet.add(fileIds.intern(filename));
+            }
         }
         logger.info(String.format("store file %s to %s", filename, selectedDPorts.stream().map(Object::toString).collect(Collectors.joining(" "))));
         return selectedDPorts;
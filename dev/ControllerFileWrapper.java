@@ -6,12 +6,14 @@ import java.util.List;
  *
  */
 public class ControllerFileWrapper {
+    final int fileId; // FileIdDictionary中的编号
     String fileName;
     int fileSize;
     List<Integer> Dstore;
     DstoreFileStatus status;
 
-    public ControllerFileWrapper(String fileName, int fileSize, List<Integer> dstore, DstoreFileStatus status) {
+    public ControllerFileWrapper(int fileId, String fileName, int fileSize, List<Integer> dstore, DstoreFileStatus status) {
+        this.fileId = fileId;
         this.fileName = fileName;
         this.fileSize = fileSize;
         Dstore = dstore;
@@ -0,0 +1,338 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+
+/**
+ * 基于Selector的controller前端，代替每个连接一个线程：调用线程负责接收连接，少量I/O线程负责所有连接的读写。
+ * 每个连接是一个状态机，按行解析文本协议，同一连接上的命令按到达顺序逐条处理，与原先的读一行、处理一行等价；
+ * 可能阻塞的命令交给工作线程执行，其余命令直接在I/O线程上处理。回复写入连接的发送队列，写不完时由I/O线程在可写时继续发送
+ */
+public class ControllerServer {
+    private static final Logger logger = Logger.getLogger(ControllerServer.class.getName());
+    private static final int READ_BUFFER_BYTES = 8192;
+    private static final int MAX_PENDING = 64; // 单个连接排队的命令超过该值时暂停读取
+    private final int port;
+    private final Handler handler;
+    private final Predicate<String> blocking;
+    private final IoThread[] ioThreads;
+    private final ExecutorService workers;
+    private final AtomicInteger connections = new AtomicInteger();
+
+    /**
+     * 命令处理
+     */
+    interface Handler {
+        void handle(String msg, Connection connection) throws IOException, ConsistentHashException;
+    }
+
+    /**
+     * 初始化
+     * @param port 监听端口
+     * @param ioThreadCount I/O线程数
+     * @param blocking 判断一行命令是否可能阻塞，阻塞的命令在工作线程上执行
+     * @param handler
+     * @throws IOException
+     */
+    public ControllerServer(int port, int ioThreadCount, Predicate<String> blocking, Handler handler) throws IOException {
+        this.port = port;
+        this.handler = handler;
+        this.blocking = blocking;
+        AtomicInteger workerCount = new AtomicInteger();
+        this.workers = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, String.format("controller %d worker %d", port, workerCount.incrementAndGet()));
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.ioThreads = new IoThread[Math.max(1, ioThreadCount)];
+        for (int i = 0; i < ioThreads.length; i++) {
+            ioThreads[i] = new IoThread(String.format("controller %d io %d", port, i));
+            ioThreads[i].start();
+        }
+        Metrics.gauge("controller.connections", connections::get);
+    }
+
+    /**
+     * 在调用线程上接收连接，依次分配给I/O线程，不会返回
+     * @throws IOException
+     */
+    public void serve() throws IOException {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            logger.info(String.format("listening on: %d with %d io threads", port, ioThreads.length));
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                Connection connection = new Connection(channel, ioThreads[next]);
+                next = (next + 1) % ioThreads.length;
+                connections.incrementAndGet();
+                logger.info(String.format("established on %d with %d", port, connection.getTargetPort()));
+                connection.ioThread.register(connection);
+            }
+        }
+    }
+
+    /**
+     * 单个I/O线程，持有一个Selector
+     */
+    private static class IoThread extends Thread {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>(); // 其它线程提交的注册和兴趣集变更
+
+        IoThread(String name) throws IOException {
+            super(name);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        void register(Connection connection) {
+            execute(() -> {
+                try {
+                    connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (ClosedChannelException e) {
+                    connection.close();
+                }
+            });
+        }
+
+        /**
+         * 在I/O线程上执行，SelectionKey只在I/O线程上修改
+         * @param task
+         */
+        void execute(Runnable task) {
+            if (Thread.currentThread() == this) {
+                task.run();
+                return;
+            }
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) task.run();
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while (iterator.hasNext()) {
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isWritable()) connection.flush();
+                            if (key.isValid() && key.isReadable()) connection.read();
+                        } catch (IOException | CancelledKeyException e) {
+                            logger.info(String.format("connection with %d is broken", connection.getTargetPort()));
+                            connection.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    logger.warning(String.format("selector error on %s", getName()));
+                }
+            }
+        }
+    }
+
+    /**
+     * 一个客户端或dstore连接的状态：读缓冲、未处理完的命令队列和待发送的回复
+     */
+    class Connection implements MessageChannel {
+        final SocketChannel channel;
+        final IoThread ioThread;
+        SelectionKey key; // only touched on ioThread
+        final Map<String, List<Integer>> errorPortsMap = new HashMap<>(); // RELOAD状态，同一时刻只有一条命令在处理
+        final Map<String, Integer> lastLoadPort = new HashMap<>();
+        private final int targetPort;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_BYTES); // only touched on ioThread
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream(); // only touched on ioThread
+        private final Deque<String> pending = new ArrayDeque<>(); // guarded by this
+        private final Deque<ByteBuffer> writes = new ArrayDeque<>(); // guarded by this
+        private boolean handling; // 是否有命令正在处理，guarded by this
+        private boolean readPaused; // guarded by this
+        private boolean eof; // 对端已关闭输出，处理完排队的命令后关闭，guarded by this
+        private boolean closed; // guarded by this
+
+        Connection(SocketChannel channel, IoThread ioThread) {
+            this.channel = channel;
+            this.ioThread = ioThread;
+            this.targetPort = channel.socket().getPort();
+        }
+
+        /**
+         * 可读：读出所有完整的行放入命令队列
+         * @throws IOException
+         */
+        private void read() throws IOException {
+            readBuffer.clear();
+            int count = channel.read(readBuffer);
+            if (count < 0) {
+                synchronized (this) {
+                    eof = true;
+                    if (!handling && pending.isEmpty() && writes.isEmpty()) close();
+                }
+                if (key.isValid()) key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                return;
+            }
+            readBuffer.flip();
+            while (readBuffer.hasRemaining()) {
+                byte b = readBuffer.get();
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                byte[] bytes = line.toByteArray();
+                line.reset();
+                int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+                offer(new String(bytes, 0, length, StandardCharsets.UTF_8));
+            }
+        }
+
+        private void offer(String msg) {
+            synchronized (this) {
+                if (msg.isEmpty() || closed) return;
+                pending.add(msg);
+                if (pending.size() >= MAX_PENDING && !readPaused) {
+                    readPaused = true;
+                    setInterest(SelectionKey.OP_READ, false);
+                }
+                if (handling) return;
+                handling = true;
+            }
+            drain(false);
+        }
+
+        /**
+         * 逐条处理排队的命令，每个连接同一时刻只有一个线程在处理；
+         * 在I/O线程上遇到可能阻塞的命令时转交工作线程，由工作线程继续处理后续命令
+         * @param onWorker 当前是否在工作线程上
+         */
+        private void drain(boolean onWorker) {
+            while (true) {
+                String msg;
+                synchronized (this) {
+                    if (closed || pending.isEmpty()) {
+                        handling = false;
+                        if (eof && !closed && writes.isEmpty()) close();
+                        return;
+                    }
+                    msg = pending.poll();
+                    resumeRead();
+                    if (!onWorker && blocking.test(msg)) {
+                        workers.execute(() -> {
+                            process(msg);
+                            drain(true);
+                        });
+                        return;
+                    }
+                }
+                process(msg);
+            }
+        }
+
+        private void resumeRead() {
+            if (readPaused && pending.size() < MAX_PENDING / 2) {
+                readPaused = false;
+                setInterest(SelectionKey.OP_READ, true);
+            }
+        }
+
+        private void process(String msg) {
+            try {
+                handler.handle(msg, this);
+            } catch (IOException e) {
+                logger.warning("controller socket sync io error");
+                close();
+            } catch (ConsistentHashException e) {
+                logger.warning("consistent hash executing fault");
+                close();
+            } catch (RuntimeException e) {
+                logger.warning(String.format("handle msg %s fault: %s", msg, e));
+                close();
+            }
+        }
+
+        /**
+         * 回复一行，先尝试直接写出，写不完的部分排队并关注可写事件；可在任意线程调用
+         * @param msg
+         * @throws IOException
+         */
+        @Override
+        public void send(String msg) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap((msg + "\n").getBytes(StandardCharsets.UTF_8));
+            synchronized (this) {
+                if (closed) throw new IOException("connect error");
+                if (writes.isEmpty()) {
+                    channel.write(buffer);
+                    if (!buffer.hasRemaining()) {
+                        logger.info(String.format("send message: %s", msg));
+                        return;
+                    }
+                }
+                writes.add(buffer);
+                setInterest(SelectionKey.OP_WRITE, true);
+            }
+            logger.info(String.format("send message: %s", msg));
+        }
+
+        /**
+         * 可写：继续发送排队的回复
+         * @throws IOException
+         */
+        private void flush() throws IOException {
+            synchronized (this) {
+                while (!writes.isEmpty()) {
+                    ByteBuffer buffer = writes.peek();
+                    channel.write(buffer);
+                    if (buffer.hasRemaining()) return;
+                    writes.poll();
+                }
+                setInterest(SelectionKey.OP_WRITE, false);
+                if (eof && !handling && pending.isEmpty()) close();
+            }
+        }
+
+        private void setInterest(int op, boolean enabled) {
+            ioThread.execute(() -> {
+                if (key == null || !key.isValid()) return;
+                key.interestOps(enabled ? key.interestOps() | op : key.interestOps() & ~op);
+            });
+        }
+
+        /**
+         * 关闭连接，尚未发送的回复直接丢弃
+         */
+        void close() {
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+                pending.clear();
+                writes.clear();
+            }
+            connections.decrementAndGet();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.warning("connect error with closing");
+            }
+            logger.info(String.format("connection with %d is closed", targetPort));
+        }
+
+        @Override
+        public int getTargetPort() {
+            return targetPort;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * controller元数据的二进制快照，内存映射读写。
+ * 依次为：文件头(魔数、版本、总长度、放置算法、hash函数、副本数)，放置算法的成员状态(epoch、成员和权重，
+ * hash环还包括虚拟节点位置、归属和ownerPorts)，按文件名hash升序排列的索引(hash, 记录偏移)，以及每个文件一条记录
+ * (文件大小、文件名、实际持有的dPort、放置信息)。
+ * 打开时只解析文件头和成员状态，文件记录按需读取：lookup在索引上二分查找，不需要先解析全部记录
+ */
+public class ControllerSnapshot implements Closeable {
+    static final int MAGIC = 0x44534348; // "DSCH"
+    static final int VERSION = 1;
+    private static final HashFunction indexHash = new Murmur3HashFunction(); // 固定的索引hash，与Config.hashFunction无关
+    private static final int INDEX_ENTRY_BYTES = 12;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer; // 只使用绝对位置读取，可以被多个线程并发读取
+    final String engine;
+    final String hashFunction;
+    final int r;
+    final PlacementState state;
+    final int fileCount;
+    private final int indexOffset;
+
+    /**
+     * 快照中的一个文件
+     */
+    static class Record {
+        final String fileName;
+        final int fileSize;
+        final int[] dPorts; // 实际持有文件的节点
+        final int[] placement; // PlacementEngine.placementOf的结果
+
+        Record(String fileName, int fileSize, int[] dPorts, int[] placement) {
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+            this.dPorts = dPorts;
+            this.placement = placement;
+        }
+
+        private int bytes(byte[] name) {
+            return 4 + 2 + name.length + 2 + 4 * dPorts.length + 2 + 4 * placement.length;
+        }
+    }
+
+    private ControllerSnapshot(FileChannel channel, MappedByteBuffer buffer) throws IOException {
+        this.channel = channel;
+        this.buffer = buffer;
+        if (buffer.limit() < 12 || buffer.getInt(0) != MAGIC) throw new IOException("not a controller snapshot");
+        if (buffer.getInt(4) != VERSION) throw new IOException(String.format("unsupported snapshot version %d", buffer.getInt(4)));
+        if (buffer.getInt(8) != buffer.limit()) throw new IOException("truncated snapshot");
+        int[] position = {12};
+        engine = readString(position);
+        hashFunction = readString(position);
+        r = readInt(position);
+        long epoch = buffer.getLong(position[0]);
+        position[0] += 8;
+        int[] members = readInts(position);
+        double[] weights = new double[members.length];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = buffer.getDouble(position[0]);
+            position[0] += 8;
+        }
+        int[] positions = null, owners = null, ownerPorts = null;
+        if (buffer.get(position[0]++) != 0) {
+            positions = readInts(position);
+            owners = readInts(position);
+            ownerPorts = readInts(position);
+        }
+        state = new PlacementState(epoch, members, weights, positions, owners, ownerPorts);
+        fileCount = readInt(position);
+        indexOffset = position[0];
+    }
+
+    /**
+     * 映射快照文件，只解析文件头和成员状态
+     * @param path
+     * @return 文件不存在时为null
+     * @throws IOException 格式不正确
+     */
+    public static ControllerSnapshot open(Path path) throws IOException {
+        if (!Files.exists(path)) return null;
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new ControllerSnapshot(channel, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e instanceof IOException ? (IOException) e : new IOException("corrupted snapshot", e);
+        }
+    }
+
+    /**
+     * 按索引顺序读取第i条记录
+     * @param i
+     * @return
+     */
+    public Record record(int i) {
+        return readRecord(buffer.getInt(indexOffset + i * INDEX_ENTRY_BYTES + 8));
+    }
+
+    /**
+     * 在索引上二分查找文件名，只读取hash相同的记录
+     * @param fileName
+     * @return 不存在时为null
+     */
+    public Record lookup(String fileName) {
+        long hash = indexHash.hash64(fileName);
+        int low = 0, high = fileCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (Long.compareUnsigned(hashAt(mid), hash) < 0) low = mid + 1;
+            else high = mid;
+        }
+        for (int i = low; i < fileCount && hashAt(i) == hash; i++) {
+            Record record = record(i);
+            if (record.fileName.equals(fileName)) return record;
+        }
+        return null;
+    }
+
+    private long hashAt(int i) {
+        return buffer.getLong(indexOffset + i * INDEX_ENTRY_BYTES);
+    }
+
+    private Record readRecord(int offset) {
+        int[] position = {offset};
+        int fileSize = readInt(position);
+        String fileName = readString(position);
+        int[] dPorts = readShortInts(position);
+        int[] placement = readShortInts(position);
+        return new Record(fileName, fileSize, dPorts, placement);
+    }
+
+    private int readInt(int[] position) {
+        int value = buffer.getInt(position[0]);
+        position[0] += 4;
+        return value;
+    }
+
+    private int[] readInts(int[] position) {
+        int[] values = new int[readInt(position)];
+        for (int i = 0; i < values.length; i++) values[i] = readInt(position);
+        return values;
+    }
+
+    private int[] readShortInts(int[] position) {
+        int[] values = new int[Short.toUnsignedInt(buffer.getShort(position[0]))];
+        position[0] += 2;
+        for (int i = 0; i < values.length; i++) values[i] = readInt(position);
+        return values;
+    }
+
+    private String readString(int[] position) {
+        byte[] bytes = new byte[Short.toUnsignedInt(buffer.getShort(position[0]))];
+        buffer.get(position[0] + 2, bytes);
+        position[0] += 2 + bytes.length;
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 写入快照：先完整写入同目录下的临时文件并刷盘，再原子替换，读者不会看到写了一半的快照
+     * @param path
+     * @param engine 放置算法名
+     * @param hashFunction hash函数名
+     * @param r
+     * @param state 放置算法的成员状态
+     * @param records
+     * @throws IOException
+     */
+    public static void write(Path path, String engine, String hashFunction, int r, PlacementState state,
+                             List<Record> records) throws IOException {
+        byte[] engineBytes = engine.getBytes(StandardCharsets.UTF_8);
+        byte[] hashFunctionBytes = hashFunction.getBytes(StandardCharsets.UTF_8);
+        byte[][] names = new byte[records.size()][];
+        long size = 12 + 2 + engineBytes.length + 2 + hashFunctionBytes.length + 4 + 8
+                + 4 + 12L * state.members.length + 1 + 4;
+        if (state.positions != null) size += 12 + 4L * (state.positions.length + state.owners.length + state.ownerPorts.length);
+        size += (long) INDEX_ENTRY_BYTES * records.size();
+        int recordsOffset = (int) size;
+        for (int i = 0; i < names.length; i++) {
+            names[i] = records.get(i).fileName.getBytes(StandardCharsets.UTF_8);
+            size += records.get(i).bytes(names[i]);
+        }
+        if (size > Integer.MAX_VALUE) throw new IOException("snapshot is too large");
+        // 索引按文件名hash排序，记录按写入顺序存放
+        long[] hashes = new long[records.size()];
+        Integer[] order = new Integer[records.size()];
+        for (int i = 0; i < order.length; i++) {
+            hashes[i] = indexHash.hash64(records.get(i).fileName);
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compareUnsigned(hashes[a], hashes[b]));
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            out.putInt(MAGIC).putInt(VERSION).putInt((int) size);
+            out.putShort((short) engineBytes.length).put(engineBytes);
+            out.putShort((short) hashFunctionBytes.length).put(hashFunctionBytes);
+            out.putInt(r).putLong(state.epoch);
+            out.putInt(state.members.length);
+            for (int dPort : state.members) out.putInt(dPort);
+            for (double weight : state.weights) out.putDouble(weight);
+            out.put((byte) (state.positions != null ? 1 : 0));
+            if (state.positions != null) {
+                putInts(out, state.positions);
+                putInts(out, state.owners);
+                putInts(out, state.ownerPorts);
+            }
+            out.putInt(records.size());
+            int[] offsets = new int[records.size()];
+            int offset = recordsOffset;
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = offset;
+                offset += records.get(i).bytes(names[i]);
+            }
+            for (int i : order) out.putLong(hashes[i]).putInt(offsets[i]);
+            for (int i = 0; i < names.length; i++) {
+                Record record = records.get(i);
+                out.putInt(record.fileSize);
+                out.putShort((short) names[i].length).put(names[i]);
+                out.putShort((short) record.dPorts.length);
+                for (int dPort : record.dPorts) out.putInt(dPort);
+                out.putShort((short) record.placement.length);
+                for (int index : record.placement) out.putInt(index);
+            }
+            out.force();
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void putInts(MappedByteBuffer out, int[] values) {
+        out.putInt(values.length);
+        for (int value : values) out.putInt(value);
+    }
+
+    /**
+     * 关闭文件，已映射的内容在被回收前仍然可以读取
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -2,16 +2,29 @@
 import java.io.*;
 import java.net.ServerSocket;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 public class Dstore {
     private static final Logger logger = Logger.getLogger(Dstore.class.getName());
+    private static final int ACCEPT_BACKLOG = 4096; // 默认的50在连接突增时会丢弃握手，客户端要等待重传
+    private static final Metrics.Histogram connectionWaitMillis = Metrics.histogram("dstore.connection.waitMillis"); // 虚拟线程模式下等待并发许可的时间
     private ServerSocket service;
     private int dPort;
     private int cPort;
     private int timeout;
     private String fileFolder;
+    private long capacity; // bytes
+    private double weight;
     private Communication controllerCommunication;
+    private final DstoreJournal journal = new DstoreJournal(Config.dstoreJournalCapacity); // stores and deletes, fetched by the controller on rebalanced
+    private final MerkleDigest digest = new MerkleDigest(HashFunction.of(Config.hashFunction), Config.antiEntropyDepth, true); // held files, compared by the controller on anti-entropy rounds
+    private ExecutorService connectionExecutor; // virtual thread per connection, null in platform thread mode
+    private Semaphore connectionPermits; // bounds concurrently handled connections in virtual thread mode
+    private final AtomicInteger queuedConnections = new AtomicInteger(); // accepted, waiting for a permit
+    private final AtomicInteger activeConnections = new AtomicInteger();
 
     public static void main(String[] args) throws IOException {
         if (args.length == 4) {
@@ -20,6 +33,14 @@ public class Dstore {
             int timeout = Integer.parseInt(args[2]);
             String fileFolder = args[3];
             Dstore dstore = new Dstore(dPort, cPort, timeout, fileFolder);
+        } else if (args.length == 6) {
+            int dPort = Integer.parseInt(args[0]);
+            int cPort = Integer.parseInt(args[1]);
+            int timeout = Integer.parseInt(args[2]);
+            String fileFolder = args[3];
+            long capacity = Long.parseLong(args[4]);
+            double weight = Double.parseDouble(args[5]);
+            Dstore dstore = new Dstore(dPort, cPort, timeout, fileFolder, capacity, weight);
         } else {
             // test module
             logger.info("test module");
@@ -28,7 +49,7 @@ public class Dstore {
     }
 
     /**
-     * 初始化
+     * 初始化，容量为存储目录所在磁盘的可用空间，权重为1
      * @param dPort
      * @param cPort
      * @param timeout
@@ -36,14 +57,36 @@ public class Dstore {
      * @throws IOException
      */
     public Dstore(int dPort, int cPort, int timeout, String fileFolder) throws IOException {
+        this(dPort, cPort, timeout, fileFolder, -1, 1.0);
+    }
+
+    /**
+     * 初始化
+     * @param dPort
+     * @param cPort
+     * @param timeout
+     * @param fileFolder
+     * @param capacity 存储容量(字节)，负数表示使用存储目录所在磁盘的可用空间
+     * @param weight 权重，controller按权重分配存储份额
+     * @throws IOException
+     */
+    public Dstore(int dPort, int cPort, int timeout, String fileFolder, long capacity, double weight) throws IOException {
         this.dPort = dPort;
         this.cPort = cPort;
         this.timeout = timeout;
         this.fileFolder = fileFolder;
         FileUtils.createFolder(this.fileFolder);
-        service = new ServerSocket(dPort);
+        this.capacity = capacity < 0 ? new File(this.fileFolder).getUsableSpace() : capacity;
+        this.weight = weight;
+        Metrics.gauge("dstore.connections.queued", queuedConnections::get);
+        Metrics.gauge("dstore.connections.active", activeConnections::get);
+        if (Config.dstoreVirtualThreads) {
+            connectionExecutor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(String.format("dstore %d ", dPort), 0).factory());
+            connectionPermits = new Semaphore(Config.dstoreMaxConnections);
+        }
+        service = new ServerSocket(dPort, ACCEPT_BACKLOG);
         controllerCommunication = new Communication(this.cPort);
-        String sendMsg = String.join(" ", Protocol.JOIN_TOKEN, String.valueOf(dPort));
+        String sendMsg = String.join(" ", Protocol.JOIN_TOKEN, String.valueOf(dPort), String.valueOf(this.capacity), String.valueOf(this.weight));
         controllerCommunication.send(sendMsg);
 //        tmpClient.close();
 //        tmpClient = null; // GC instance
@@ -51,6 +94,27 @@ public class Dstore {
             logger.info(String.format("listening on: %d", dPort));
             Communication tmpService = new Communication(service.accept(), this.dPort, this.timeout);
             logger.info(String.format("established on: %d", dPort));
+            if (connectionExecutor != null) {
+                // 每个连接一个虚拟线程，阻塞的文件和socket读写只挂起虚拟线程；同时处理的连接数受许可限制，其余排队等待
+                queuedConnections.incrementAndGet();
+                long acceptTime = System.currentTimeMillis();
+                connectionExecutor.execute(() -> {
+                    try {
+                        connectionPermits.acquire();
+                    } catch (InterruptedException e) {
+                        queuedConnections.decrementAndGet();
+                        return;
+                    }
+                    queuedConnections.decrementAndGet();
+                    connectionWaitMillis.record(System.currentTimeMillis() - acceptTime);
+                    try {
+                        serve(tmpService);
+                    } finally {
+                        connectionPermits.release();
+                    }
+                });
+                continue;
+            }
             // 每一个线程用于处理一个socket通信
             new Thread(){
                 {
@@ -59,22 +123,41 @@ public class Dstore {
 
                 @Override
                 public void run() {
-                    try {
-                        while (!tmpService.isClosed()) {
-                            String msg = tmpService.receive(); //TODO: handle timeout error
-                            if (msg != null && !msg.isEmpty()) {
-                                handle(msg, tmpService);
-                            }
-                            if (msg == null) tmpService.close(); // receive EOF
-                        }
-                    }catch (IOException e){
-                        logger.warning(Thread.currentThread().getName()+"dstore breakdown");
-                    }
+                    serve(tmpService);
                 }
             }.start();
         }
     }
 
+    /**
+     * 逐条处理一个连接上的命令，直到对端关闭
+     * @param tmpService
+     */
+    private void serve(Communication tmpService) {
+        activeConnections.incrementAndGet();
+        try {
+            while (!tmpService.isClosed()) {
+                String msg = tmpService.receive(); //TODO: handle timeout error
+                if (msg != null && !msg.isEmpty()) {
+                    handle(msg, tmpService);
+                }
+                if (msg == null) tmpService.close(); // receive EOF
+            }
+        }catch (IOException e){
+            logger.warning(Thread.currentThread().getName()+"dstore breakdown");
+        } finally {
+            activeConnections.decrementAndGet();
+            // 读超时后关闭连接，controller连接池中的空闲连接由此得知对端已关闭
+            if (!tmpService.isClosed()) {
+                try {
+                    tmpService.close();
+                } catch (IOException e) {
+                    logger.warning("connect error with closing");
+                }
+            }
+        }
+    }
+
     /**
      * 命令处理
      * @param msg
@@ -87,6 +170,11 @@ public class Dstore {
         String protocol = substrings[0];
         switch (protocol) {
             case Protocol.JOIN_TOKEN -> logger.info(String.format("successful join to controller on %d", dPort));
+            case Protocol.WEIGHT_TOKEN -> {
+                // 运维修改权重，转发给controller按新权重重新分配
+                weight = Double.parseDouble(substrings[1]);
+                controllerCommunication.send(String.join(" ", Protocol.WEIGHT_TOKEN, String.valueOf(dPort), String.valueOf(weight)));
+            }
             case Protocol.STORE_TOKEN -> {
                 String filename = substrings[1];
                 int filesize = Integer.parseInt((substrings[2]));
@@ -94,6 +182,7 @@ public class Dstore {
                 byte[] fileContent = tmpService.receiveContent(filesize);
                 try {
                     FileUtils.storeFile(fileFolder, filename, fileContent);
+                    stored(filename);
                     String sendMsg = String.join(" ", new String[]{Protocol.STORE_ACK_TOKEN, filename, String.valueOf(dPort)});
                     controllerCommunication.send(sendMsg);
 //                    tmpClient.send(sendMsg);
@@ -102,10 +191,32 @@ public class Dstore {
                     logger.warning(String.format("fail storing file %s", filename));
                 }
             }
+            case Protocol.STORE_BATCH_TOKEN -> { // STORE_BATCH filename1 size1 ..., contents follow back to back after ACK
+                tmpService.send(Protocol.ACK_TOKEN);
+                List<String> stored = new ArrayList<>();
+                try {
+                    for (int i = 1; i + 1 < substrings.length; i += 2) {
+                        String filename = substrings[i];
+                        byte[] fileContent = tmpService.receiveContentExactly(Integer.parseInt(substrings[i + 1]));
+                        try {
+                            FileUtils.storeFile(fileFolder, filename, fileContent);
+                            stored(filename);
+                            stored.add(filename);
+                        } catch (IOException e) {
+                            logger.warning(String.format("fail storing file %s", filename));
+                        }
+                    }
+                } finally {
+                    // 一条消息确认本批存储成功的文件，接收中途超时或断开时也确认已写入的部分
+                    if (!stored.isEmpty()) {
+                        controllerCommunication.send(String.join(" ", Protocol.STORE_BATCH_ACK_TOKEN, String.valueOf(dPort), String.join(" ", stored)));
+                    }
+                }
+            }
             case Protocol.LOAD_DATA_TOKEN -> { // load data
                 //TODO: might be terminated
                 String filename = substrings[1];
-                if (!FileUtils.getAllFiles(fileFolder).contains(filename)) {
+                if (!FileUtils.isExist(fileFolder, filename)) {
                     tmpService.close();
                     return;
                 }
@@ -116,7 +227,7 @@ public class Dstore {
             case Protocol.REMOVE_TOKEN -> {
                 //TODO: might be terminated
                 String filename = substrings[1];
-                if (!FileUtils.getAllFiles(fileFolder).contains(filename)) {
+                if (!FileUtils.isExist(fileFolder, filename)) {
                     String sendMsg = String.join(" ", new String[]{Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN, filename});
                     tmpService.send(sendMsg);
                     logger.info(String.format("didn't find the stored file %s", filename));
@@ -124,50 +235,91 @@ public class Dstore {
                 }
                 try {
                     FileUtils.delete(fileFolder, filename);
+                    removed(filename);
                     String sendMsg = String.join(" ", new String[]{Protocol.REMOVE_ACK_TOKEN, filename});
                     tmpService.send(sendMsg);
                 } catch (IOException e) {
                     logger.warning(String.format("fail to delete file %s", filename));
                 }
             }
+            case Protocol.REMOVE_BATCH_TOKEN -> {
+                // 逐个删除，按请求中的顺序回复每个文件的结果
+                String[] results = new String[substrings.length - 1];
+                for (int i = 1; i < substrings.length; i++) {
+                    String filename = substrings[i];
+                    if (!FileUtils.isExist(fileFolder, filename)) {
+                        results[i - 1] = Protocol.REMOVE_BATCH_MISSING;
+                        continue;
+                    }
+                    try {
+                        FileUtils.delete(fileFolder, filename);
+                        removed(filename);
+                        results[i - 1] = Protocol.REMOVE_BATCH_REMOVED;
+                    } catch (IOException e) {
+                        logger.warning(String.format("fail to delete file %s", filename));
+                        results[i - 1] = Protocol.REMOVE_BATCH_FAILED;
+                    }
+                }
+                tmpService.send(String.join(" ", Protocol.REMOVE_BATCH_ACK_TOKEN, String.join(" ", results)));
+            }
+            case Protocol.METRICS_TOKEN -> {
+                String metrics = Metrics.snapshot().entrySet().stream()
+                        .map(entry -> entry.getKey() + "=" + entry.getValue()).collect(Collectors.joining(" "));
+                tmpService.send(String.join(" ", Protocol.METRICS_TOKEN, metrics));
+            }
             case Protocol.LIST_TOKEN -> {
                 List<String> files = FileUtils.getAllFiles(fileFolder);
                 String sendMsg = String.join(" ", Protocol.LIST_TOKEN, String.join(" ", files));
                 tmpService.send(sendMsg);
             }
+            case Protocol.JOURNAL_TOKEN -> { // JOURNAL epoch since
+                tmpService.send(journal.since(Long.parseLong(substrings[1]), Long.parseLong(substrings[2]), () -> FileUtils.getAllFiles(fileFolder)));
+            }
+            case Protocol.DIGEST_TOKEN -> { // DIGEST node1 node2 ...
+                String[] hashes = new String[substrings.length - 1];
+                for (int i = 1; i < substrings.length; i++) hashes[i - 1] = Long.toHexString(digest.node(Integer.parseInt(substrings[i])));
+                tmpService.send(String.join(" ", Protocol.DIGEST_TOKEN, String.join(" ", hashes)));
+            }
+            case Protocol.DIGEST_FILES_TOKEN -> { // DIGEST_FILES leaf1 leaf2 ...
+                List<String> files = new ArrayList<>();
+                for (int i = 1; i < substrings.length; i++) files.addAll(digest.names(Integer.parseInt(substrings[i])));
+                tmpService.send(String.join(" ", Protocol.DIGEST_FILES_TOKEN, String.join(" ", files)));
+            }
             case Protocol.REBALANCE_TOKEN -> {
                 //TODO: rebalanced
                 int pos = 1;
                 int sendFileCount = Integer.parseInt(substrings[pos++]);
                 boolean isFault = false;
                 try {
+                    List<Callable<Boolean>> transfers = new ArrayList<>();
                     for (int i = 0; i < sendFileCount; i++) {
                         String filename = substrings[pos++];
                         int targetDPortCount = Integer.parseInt(substrings[pos++]);
                         for (int j = 0; j < targetDPortCount; j++) {
                             int targetDPort = Integer.parseInt(substrings[pos++]);
-                            Communication tmpClient = new Communication(targetDPort, timeout);
-                            byte[] fileContent = FileUtils.loadFile(fileFolder, filename);
-                            String sendMsg = String.join(" ", Protocol.REBALANCE_STORE_TOKEN, filename, String.valueOf(fileContent.length));
-                            tmpClient.send(sendMsg);
-                            String receiveMsg = tmpClient.receive();
-                            if (receiveMsg.startsWith(Protocol.ACK_TOKEN)) {
-                                tmpClient.sendContent(fileContent);
-                            } else {
-                                isFault = true;
-                            }
-                            tmpClient.close();
+                            transfers.add(() -> sendFile(filename, targetDPort));
+                        }
+                    }
+                    if (connectionExecutor != null) {
+                        // 虚拟线程模式下并发发送，等待全部完成
+                        for (Future<Boolean> future : connectionExecutor.invokeAll(transfers)) {
+                            if (!future.get()) isFault = true;
+                        }
+                    } else {
+                        for (Callable<Boolean> transfer : transfers) {
+                            if (!transfer.call()) isFault = true;
                         }
                     }
                     int deleteFileCount = Integer.parseInt(substrings[pos++]);
                     for (int i = 0;i<deleteFileCount;i++){
                         String filename = substrings[pos++];
                         FileUtils.delete(fileFolder, filename);
+                        removed(filename);
                     }
                     if (!isFault) {
                         tmpService.send(Protocol.REBALANCE_COMPLETE_TOKEN);
                     }
-                }catch (IOException e){
+                }catch (Exception e){
                     logger.warning("rebalanced fault");
                 }
             } case Protocol.REBALANCE_STORE_TOKEN -> {
@@ -177,6 +329,7 @@ public class Dstore {
                 byte[] fileContent = tmpService.receiveContent(filesize);
                 try {
                     FileUtils.storeFile(fileFolder, filename, fileContent);
+                    stored(filename);
                 } catch (IOException e) {
                     logger.warning(String.format("fail storing file %s", filename));
                 }
@@ -184,7 +337,40 @@ public class Dstore {
         }
     }
 
+    /**
+     * 存储文件后记录到变更日志和摘要
+     * @param filename
+     */
+    private void stored(String filename) {
+        journal.stored(filename);
+        digest.add(filename);
+    }
 
+    /**
+     * 删除文件后记录到变更日志和摘要
+     * @param filename
+     */
+    private void removed(String filename) {
+        journal.removed(filename);
+        digest.remove(filename);
+    }
 
-
+    /**
+     * 重平衡时将文件发送给另一个dstore
+     * @param filename
+     * @param targetDPort
+     * @return 对方是否接收
+     * @throws IOException
+     */
+    private boolean sendFile(String filename, int targetDPort) throws IOException {
+        Communication tmpClient = new Communication(targetDPort, timeout);
+        byte[] fileContent = FileUtils.loadFile(fileFolder, filename);
+        String sendMsg = String.join(" ", Protocol.REBALANCE_STORE_TOKEN, filename, String.valueOf(fileContent.length));
+        tmpClient.send(sendMsg);
+        String receiveMsg = tmpClient.receive();
+        boolean accepted = receiveMsg.startsWith(Protocol.ACK_TOKEN);
+        if (accepted) tmpClient.sendContent(fileContent);
+        tmpClient.close();
+        return accepted;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,169 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * dstore两种连接处理模式的对比：每个连接一个平台线程与每个连接一个虚拟线程。
+ * 客户端先建立全部连接并保持，再同时发送LOAD_DATA，统计全部读完的吞吐量、进程内线程数峰值和堆内存增量。
+ * 平台线程的栈不在堆上，线程数峰值乘以线程栈大小(默认1MB)即为额外预留的本地内存
+ */
+public class DstoreConnectionBenchmark {
+    private static final int FILE_BYTES = 16 * 1024;
+    private static final String FILENAME = "payload";
+
+    /**
+     * 启动一个只接收JOIN的controller，返回其端口
+     * @return
+     * @throws IOException
+     */
+    private static int startFakeController() throws IOException {
+        ServerSocket controller = new ServerSocket(0);
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket socket = controller.accept();
+                    Thread.ofVirtual().start(() -> {
+                        try (InputStream in = socket.getInputStream()) {
+                            in.transferTo(OutputStream.nullOutputStream());
+                        } catch (IOException ignored) {
+                        }
+                    });
+                }
+            } catch (IOException ignored) {
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return controller.getLocalPort();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * 在后台启动dstore并写入测试文件，dstore在构造函数中循环接收连接，不会返回
+     * @param virtualThreads
+     * @param folder
+     * @return dstore端口
+     * @throws Exception
+     */
+    private static int startDstore(boolean virtualThreads, String folder) throws Exception {
+        Config.dstoreVirtualThreads = virtualThreads;
+        int cPort = startFakeController();
+        int dPort = freePort();
+        Thread thread = new Thread(() -> {
+            try {
+                new Dstore(dPort, cPort, 60000, folder);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        // 等待dstore清空目录并开始监听
+        for (int i = 0; ; i++) {
+            try {
+                new Socket(InetAddress.getLoopbackAddress(), dPort).close();
+                break;
+            } catch (IOException e) {
+                if (i > 100) throw e;
+                Thread.sleep(50);
+            }
+        }
+        FileUtils.storeFile(folder, FILENAME, new byte[FILE_BYTES]);
+        return dPort;
+    }
+
+    /**
+     * 等待dstore接收全部连接，连接数取自dstore注册的指标
+     * @param connections
+     * @throws InterruptedException
+     */
+    private static void awaitAccepted(int connections) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 60000;
+        while (System.currentTimeMillis() < deadline) {
+            Map<String, String> snapshot = Metrics.snapshot();
+            double accepted = Double.parseDouble(snapshot.get("dstore.connections.active"))
+                    + Double.parseDouble(snapshot.get("dstore.connections.queued"));
+            if (accepted >= connections) return;
+            Thread.sleep(20);
+        }
+    }
+
+    /**
+     * 一轮测量
+     * @param name
+     * @param dPort
+     * @param connections 同时保持的连接数
+     * @return 一行结果
+     * @throws Exception
+     */
+    static String measure(String name, int dPort, int connections) throws Exception {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+        threadMXBean.resetPeakThreadCount();
+        CountDownLatch connected = new CountDownLatch(connections);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger failures = new AtomicInteger();
+        long heapPeak;
+        long startTime;
+        try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < connections; i++) {
+                clients.execute(() -> {
+                    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), dPort)) {
+                        socket.setSoTimeout(60000);
+                        connected.countDown();
+                        start.await();
+                        OutputStream out = socket.getOutputStream();
+                        out.write((Protocol.LOAD_DATA_TOKEN + " " + FILENAME + "\n").getBytes());
+                        out.flush();
+                        if (socket.getInputStream().readNBytes(FILE_BYTES).length != FILE_BYTES) failures.incrementAndGet();
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                        connected.countDown();
+                    }
+                });
+            }
+            connected.await(60, TimeUnit.SECONDS);
+            awaitAccepted(connections - failures.get());
+            heapPeak = runtime.totalMemory() - runtime.freeMemory();
+            startTime = System.nanoTime();
+            start.countDown();
+        }
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        return String.format("%-9s connections=%-6d loads=%,9.0f/s peakThreads=%-6d heap+%,8.1fMB failures=%d",
+                name, connections, (connections - failures.get()) / seconds, threadMXBean.getPeakThreadCount(),
+                (heapPeak - heapBefore) / 1e6, failures.get());
+    }
+
+    /**
+     * @param args [逗号分隔的并发连接数] [虚拟线程模式的并发上限]
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        String[] counts = (args.length > 0 ? args[0] : "1000,5000").split(",");
+        if (args.length > 1) Config.dstoreMaxConnections = Integer.parseInt(args[1]);
+        // 连接数指标按名称注册，后启动的dstore会替换先启动的，因此两种模式依次测量
+        for (boolean virtualThreads : new boolean[]{false, true}) {
+            String name = virtualThreads ? "virtual" : "platform";
+            int dPort = startDstore(virtualThreads, "benchmark_" + name);
+            measure("warmup", dPort, 200);
+            for (String count : counts) System.out.println(measure(name, dPort, Integer.parseInt(count)));
+        }
+        System.exit(0);
+    }
+}
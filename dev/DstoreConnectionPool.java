@@ -0,0 +1,208 @@
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * controller到各个dstore的长连接池，代替每次请求新建并关闭一个socket。
+ * 每个dstore最多maxSize个连接，借出时检查连接是否已关闭、空闲是否过久或残留未读数据；
+ * dstore读取空闲连接超时后会关闭连接，因此空闲时间超过idleMillis的连接直接丢弃，复用的连接在请求前已被对端关闭时换新连接重试一次
+ */
+public class DstoreConnectionPool {
+    private static final Logger logger = Logger.getLogger(DstoreConnectionPool.class.getName());
+    private static final LongAdder connects = Metrics.counter("controller.pool.connects");
+    private static final LongAdder reuses = Metrics.counter("controller.pool.reuses");
+    private static final LongAdder evictions = Metrics.counter("controller.pool.evictions");
+    private static final LongAdder retries = Metrics.counter("controller.pool.retries");
+    private final ConcurrentHashMap<Integer, Slot> slots = new ConcurrentHashMap<>();
+    private final int timeout;
+    private final int maxSize;
+    private final long idleMillis;
+
+    /**
+     * 一次请求
+     * @param <T>
+     */
+    interface Exchange<T> {
+        T apply(Communication communication) throws IOException;
+    }
+
+    /**
+     * 空闲连接及其归还时间
+     */
+    private static final class Idle {
+        final Communication communication;
+        final long releaseTime;
+
+        Idle(Communication communication, long releaseTime) {
+            this.communication = communication;
+            this.releaseTime = releaseTime;
+        }
+    }
+
+    /**
+     * 单个dstore的连接：许可数限制借出的连接数，只有没有空闲连接时才新建，因此打开的连接数不超过maxSize
+     */
+    private final class Slot {
+        final Semaphore permits = new Semaphore(maxSize);
+        final Deque<Idle> idle = new ArrayDeque<>(); // 最近归还的在队首，guarded by this
+    }
+
+    /**
+     * 初始化
+     * @param timeout 连接读超时，也是等待空闲连接的最长时间
+     * @param maxSize 每个dstore的连接数上限
+     * @param idleMillis 空闲连接的保留时间，应小于dstore的读超时
+     */
+    public DstoreConnectionPool(int timeout, int maxSize, long idleMillis) {
+        this.timeout = timeout;
+        this.maxSize = Math.max(1, maxSize);
+        this.idleMillis = idleMillis;
+        Metrics.gauge("controller.pool.idle", () -> slots.values().stream().mapToInt(slot -> {
+            synchronized (slot) {
+                return slot.idle.size();
+            }
+        }).sum());
+    }
+
+    /**
+     * 在一个连接上完成一次请求，成功后连接放回池中，失败时关闭连接；
+     * 复用的连接在请求前已被dstore关闭(收到EOF或连接重置)时换新连接重试一次，读超时不重试
+     * @param dPort
+     * @param exchange 发送命令并读取回复，返回null表示对端已关闭，不需要回复的命令返回任意非null值
+     * @return exchange的返回值
+     * @param <T>
+     * @throws IOException
+     */
+    public <T> T execute(int dPort, Exchange<T> exchange) throws IOException {
+        Slot slot = slots.computeIfAbsent(dPort, k -> new Slot());
+        try {
+            if (!slot.permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                throw new SocketTimeoutException(String.format("connection pool of %d is exhausted", dPort));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted waiting for connection");
+        }
+        try {
+            Communication communication = pollIdle(slot);
+            if (communication != null) {
+                reuses.increment();
+                try {
+                    T result = exchange.apply(communication);
+                    if (result != null) {
+                        release(dPort, slot, communication);
+                        return result;
+                    }
+                } catch (SocketTimeoutException | RuntimeException e) {
+                    close(communication);
+                    throw e;
+                } catch (IOException e) {
+                    // stale connection closed by dstore, fall through to a new one
+                }
+                close(communication);
+                retries.increment();
+            }
+            communication = new Communication(dPort, timeout);
+            connects.increment();
+            try {
+                T result = exchange.apply(communication);
+                if (result == null) {
+                    close(communication);
+                } else {
+                    release(dPort, slot, communication);
+                }
+                return result;
+            } catch (IOException | RuntimeException e) {
+                close(communication);
+                throw e;
+            }
+        } finally {
+            slot.permits.release();
+        }
+    }
+
+    /**
+     * 取出最近归还的健康连接，顺带关闭不可用的连接
+     * @param slot
+     * @return 没有可用连接时为null
+     */
+    private Communication pollIdle(Slot slot) {
+        long now = System.currentTimeMillis();
+        while (true) {
+            Idle idle;
+            synchronized (slot) {
+                idle = slot.idle.pollFirst();
+            }
+            if (idle == null) return null;
+            if (now - idle.releaseTime < idleMillis && isHealthy(idle.communication)) return idle.communication;
+            evictions.increment();
+            close(idle.communication);
+        }
+    }
+
+    private static boolean isHealthy(Communication communication) {
+        if (communication.status != CommunicationStatus.ESTABLISHED || communication.isClosed()) return false;
+        try {
+            return !communication.hasUnreadInput(); // 空闲时收到的数据是迟到的回复，继续使用会读错
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void release(int dPort, Slot slot, Communication communication) {
+        if (communication.status != CommunicationStatus.ESTABLISHED || slots.get(dPort) != slot) { // dstore已离开
+            close(communication);
+            return;
+        }
+        synchronized (slot) {
+            slot.idle.addFirst(new Idle(communication, System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * 关闭空闲过久的连接，由controller定时调用
+     */
+    public void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (Slot slot : slots.values()) {
+            synchronized (slot) {
+                Iterator<Idle> iterator = slot.idle.descendingIterator(); // 最久未用的在队尾
+                while (iterator.hasNext()) {
+                    Idle idle = iterator.next();
+                    if (now - idle.releaseTime < idleMillis) break;
+                    iterator.remove();
+                    evictions.increment();
+                    close(idle.communication);
+                }
+            }
+        }
+    }
+
+    /**
+     * dstore离开时关闭它的空闲连接，借出中的连接在归还时关闭
+     * @param dPort
+     */
+    public void removeDstore(int dPort) {
+        Slot slot = slots.remove(dPort);
+        if (slot == null) return;
+        synchronized (slot) {
+            for (Idle idle : slot.idle) close(idle.communication);
+            slot.idle.clear();
+        }
+    }
+
+    private static void close(Communication communication) {
+        try {
+            communication.close();
+        } catch (IOException e) {
+            logger.warning(String.format("close connection to %d error", communication.getTargetPort()));
+        }
+    }
+}
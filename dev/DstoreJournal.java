@@ -0,0 +1,72 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * dstore的变更日志：每次存储或删除文件后追加一条带序号的记录(+文件名 / -文件名)，只保留最近capacity条。
+ * controller按上次核对到的序号只取之后的记录；序号已被淘汰或dstore重启(纪元不同)时改为返回全部文件
+ */
+public class DstoreJournal {
+    private final long epoch = System.currentTimeMillis(); // 每次启动不同，dstore启动时清空目录
+    private final int capacity;
+    private final ArrayDeque<String> entries = new ArrayDeque<>(); // guarded by this
+    private long seq; // 最后一条记录的序号，guarded by this
+
+    /**
+     * 初始化
+     * @param capacity 保留的记录数
+     */
+    public DstoreJournal(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * 记录存储了文件
+     * @param filename
+     */
+    public void stored(String filename) {
+        append("+" + filename);
+    }
+
+    /**
+     * 记录删除了文件
+     * @param filename
+     */
+    public void removed(String filename) {
+        append("-" + filename);
+    }
+
+    private synchronized void append(String entry) {
+        if (entries.size() == capacity) entries.pollFirst();
+        entries.addLast(entry);
+        seq++;
+    }
+
+    /**
+     * 生成JOURNAL的回复：JOURNAL epoch seq delta|full 记录...
+     * @param knownEpoch controller记录的纪元
+     * @param since controller已核对到的序号
+     * @param files 全部文件，只在需要全量时调用
+     * @return
+     */
+    public String since(long knownEpoch, long since, Supplier<List<String>> files) {
+        long current;
+        synchronized (this) {
+            current = seq;
+            long oldest = seq - entries.size(); // 保留的第一条记录之前的序号
+            if (knownEpoch == epoch && since >= oldest && since <= seq) {
+                List<String> delta = new ArrayList<>((int) (seq - since));
+                Iterator<String> iterator = entries.descendingIterator();
+                for (long i = seq; i > since; i--) delta.add(iterator.next());
+                return String.join(" ", Protocol.JOURNAL_TOKEN, String.valueOf(epoch), String.valueOf(current), "delta",
+                        String.join(" ", delta.reversed()));
+            }
+        }
+        // 先取序号再列目录：列目录期间完成的变更会在下一次增量中重复出现，按顺序应用的结果不变
+        List<String> full = new ArrayList<>();
+        for (String filename : files.get()) full.add("+" + filename);
+        return String.join(" ", Protocol.JOURNAL_TOKEN, String.valueOf(epoch), String.valueOf(current), "full", String.join(" ", full));
+    }
+}
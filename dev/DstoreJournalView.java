@@ -0,0 +1,58 @@
+/**
+ * controller记录的某个dstore实际持有的文件，按该dstore的变更日志增量更新，只在重平衡时访问
+ */
+public class DstoreJournalView {
+    private long epoch; // 0 before the first JOURNAL reply
+    private long seq; // 已应用到的序号
+    private IntHashSet files = new IntHashSet(); // file ids
+
+    /**
+     * 生成JOURNAL请求
+     * @return
+     */
+    public synchronized String request() {
+        return String.join(" ", Protocol.JOURNAL_TOKEN, String.valueOf(epoch), String.valueOf(seq));
+    }
+
+    /**
+     * 应用一条JOURNAL回复：JOURNAL epoch seq delta|full +文件名 -文件名 ...，full时先清空
+     * @param substrings 按空格拆分的回复
+     * @param fileIds
+     * @return 是否有变更
+     */
+    public synchronized boolean apply(String[] substrings, FileIdDictionary fileIds) {
+        boolean full = substrings[3].equals("full");
+        if (full) files = new IntHashSet(substrings.length);
+        for (int i = 4; i < substrings.length; i++) {
+            String entry = substrings[i];
+            if (entry.length() < 2) continue;
+            int fileId = fileIds.intern(entry.substring(1));
+            if (entry.charAt(0) == '+') {
+                files.add(fileId);
+            } else {
+                files.remove(fileId);
+            }
+        }
+        epoch = Long.parseLong(substrings[1]);
+        seq = Long.parseLong(substrings[2]);
+        return full || substrings.length > 4;
+    }
+
+    /**
+     * 按反熵核对的结果修正，下一次重平衡据此比较
+     * @param held dstore持有的文件
+     * @param notHeld dstore没有持有的文件
+     */
+    public synchronized void correct(IntHashSet held, IntHashSet notHeld) {
+        files.addAll(held);
+        notHeld.forEach(files::remove);
+    }
+
+    /**
+     * dstore实际持有的文件，调用方不能修改
+     * @return
+     */
+    public synchronized IntHashSet files() {
+        return files;
+    }
+}
@@ -0,0 +1,93 @@
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 各实际存储节点的负载计数，由controller在存储、删除和重平衡时增量维护，
+ * 用于有界负载放置：字节数或文件数超过平均值c倍的节点在选择存储位置时被跳过
+ */
+public class DstoreLoadTracker {
+    private final Map<Integer, Load> loads = new ConcurrentHashMap<>();
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final AtomicLong totalFiles = new AtomicLong();
+
+    /**
+     * 单个节点的负载
+     */
+    static class Load {
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong files = new AtomicLong();
+    }
+
+    public void addDstore(int dPort) {
+        loads.putIfAbsent(dPort, new Load());
+    }
+
+    /**
+     * 节点失效，负载从总量中扣除
+     * @param dPort
+     */
+    public void removeDstore(int dPort) {
+        Load load = loads.remove(dPort);
+        if (load == null) return;
+        totalBytes.addAndGet(-load.bytes.get());
+        totalFiles.addAndGet(-load.files.get());
+    }
+
+    /**
+     * 节点新增一个文件副本
+     * @param dPort
+     * @param fileSize
+     */
+    public void add(int dPort, long fileSize) {
+        Load load = loads.get(dPort);
+        if (load == null) return;
+        load.bytes.addAndGet(fileSize);
+        load.files.incrementAndGet();
+        totalBytes.addAndGet(fileSize);
+        totalFiles.incrementAndGet();
+    }
+
+    /**
+     * 节点删除一个文件副本
+     * @param dPort
+     * @param fileSize
+     */
+    public void remove(int dPort, long fileSize) {
+        Load load = loads.get(dPort);
+        if (load == null) return;
+        load.bytes.addAndGet(-fileSize);
+        load.files.decrementAndGet();
+        totalBytes.addAndGet(-fileSize);
+        totalFiles.decrementAndGet();
+    }
+
+    /**
+     * 字节数或文件数是否超过平均值的factor倍
+     * @param dPort
+     * @param factor 负载上限系数c，不大于0时不限制
+     * @return
+     */
+    public boolean isOverloaded(int dPort, double factor) {
+        Load load = loads.get(dPort);
+        int count = loads.size();
+        if (factor <= 0 || load == null || count == 0) return false;
+        return load.bytes.get() > factor * totalBytes.get() / count
+                || load.files.get() > factor * totalFiles.get() / count;
+    }
+
+    public Set<Integer> getDPorts() {
+        return loads.keySet();
+    }
+
+    public long getBytes(int dPort) {
+        Load load = loads.get(dPort);
+        return load == null ? 0 : load.bytes.get();
+    }
+
+    public long getFiles(int dPort) {
+        Load load = loads.get(dPort);
+        return load == null ? 0 : load.files.get();
+    }
+}
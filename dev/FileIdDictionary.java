@@ -0,0 +1,52 @@
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 文件名字典，每个文件名只保存一份，首次出现时分配连续的int编号，之后编号不变。
+ * controller和放置算法的内部索引都以编号为键，只在协议边界上转换回文件名
+ */
+public class FileIdDictionary {
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[1024];
+    private int size; // guarded by this
+
+    /**
+     * 获取文件名的编号，首次出现时分配新编号
+     * @param name
+     * @return
+     */
+    public int intern(String name) {
+        Integer id = ids.get(name);
+        if (id != null) return id;
+        synchronized (this) {
+            id = ids.get(name);
+            if (id != null) return id;
+            if (size == names.length) names = Arrays.copyOf(names, size << 1);
+            names[size] = name;
+            ids.put(name, size);
+            return size++;
+        }
+    }
+
+    /**
+     * 文件名的编号
+     * @param name
+     * @return 未分配时为-1
+     */
+    public int idOf(String name) {
+        Integer id = ids.get(name);
+        return id == null ? -1 : id;
+    }
+
+    public String nameOf(int id) {
+        return names[id];
+    }
+
+    /**
+     * 已分配的编号个数，编号范围为[0, size)
+     * @return
+     */
+    public int size() {
+        return ids.size();
+    }
+}
@@ -0,0 +1,133 @@
+import java.util.*;
+
+/**
+ * hash函数分布质量报告，统计文件在虚拟节点和实际存储节点上的分布情况以及hash速度，
+ * 用于挑选速度最快且分布足够均匀的hash函数
+ */
+public class HashDistributionReport {
+    final String hashFunction;
+    final int fileCount;
+    final double nanosPerHash;
+    final Stats virtualDstoreStats;
+    final Stats dstoreStats;
+    final double chiSquare; // 按虚拟节点弧长计算期望值的卡方统计量
+
+    private HashDistributionReport(String hashFunction, int fileCount, double nanosPerHash,
+                                   Stats virtualDstoreStats, Stats dstoreStats, double chiSquare) {
+        this.hashFunction = hashFunction;
+        this.fileCount = fileCount;
+        this.nanosPerHash = nanosPerHash;
+        this.virtualDstoreStats = virtualDstoreStats;
+        this.dstoreStats = dstoreStats;
+        this.chiSquare = chiSquare;
+    }
+
+    /**
+     * 统计给定文件名在一致性hash环上的分布情况
+     * @param consistentHash 已初始化的一致性hash
+     * @param filenames
+     * @return
+     */
+    public static HashDistributionReport measure(ConsistentHash consistentHash, Collection<String> filenames) {
+        HashFunction hashFunction = consistentHash.getHashFunction();
+        HashRing ring = consistentHash.ring();
+        int[] virtualDstoreCounts = new int[ring.size()];
+        long sink = 0;
+        long startTime = System.nanoTime();
+        for (String filename : filenames) {
+            sink += hashFunction.ringHash(filename);
+        }
+        long hashNanos = System.nanoTime() - startTime;
+        for (String filename : filenames) {
+            virtualDstoreCounts[consistentHash.searchNearest(filename)]++;
+        }
+        Map<Integer, Long> dstoreCounts = new TreeMap<>();
+        for (int dPort : consistentHash.getDPorts()) dstoreCounts.put(dPort, 0L);
+        double chiSquare = 0;
+        long previous = -1;
+        for (int i = 0; i < ring.size(); i++) {
+            int dPort = ring.ownerPortOf(i);
+            dstoreCounts.merge(dPort, (long) virtualDstoreCounts[i], Long::sum);
+            // 虚拟节点i负责(previous, positions[i]]区间
+            double expected = (double) filenames.size() * (ring.positionOf(i) - previous) / ((double) Integer.MAX_VALUE + 1);
+            previous = ring.positionOf(i);
+            if (expected > 0) {
+                double delta = virtualDstoreCounts[i] - expected;
+                chiSquare += delta * delta / expected;
+            }
+        }
+        long[] virtualDstoreValues = new long[virtualDstoreCounts.length];
+        for (int i = 0; i < virtualDstoreCounts.length; i++) virtualDstoreValues[i] = virtualDstoreCounts[i];
+        long[] dstoreValues = dstoreCounts.values().stream().mapToLong(Long::longValue).toArray();
+        double nanosPerHash = filenames.isEmpty() ? 0 : (double) hashNanos / filenames.size();
+        if (sink == 42) System.out.print(""); // keep hashing loop alive
+        return new HashDistributionReport(hashFunction.name(), filenames.size(), nanosPerHash,
+                Stats.of(virtualDstoreValues), Stats.of(dstoreValues), chiSquare);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%-9s files=%d %.1fns/hash chi2/V=%.3f | VD %s | Dstore %s",
+                hashFunction, fileCount, nanosPerHash, chiSquare / Math.max(1, virtualDstoreStats.count),
+                virtualDstoreStats, dstoreStats);
+    }
+
+    /**
+     * 分布统计量
+     */
+    static class Stats {
+        final int count;
+        final long min;
+        final long max;
+        final double mean;
+        final double stdDev;
+
+        private Stats(int count, long min, long max, double mean, double stdDev) {
+            this.count = count;
+            this.min = min;
+            this.max = max;
+            this.mean = mean;
+            this.stdDev = stdDev;
+        }
+
+        static Stats of(long[] values) {
+            if (values.length == 0) return new Stats(0, 0, 0, 0, 0);
+            long min = Long.MAX_VALUE, max = Long.MIN_VALUE, sum = 0;
+            for (long value : values) {
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+                sum += value;
+            }
+            double mean = (double) sum / values.length;
+            double variance = 0;
+            for (long value : values) variance += (value - mean) * (value - mean);
+            return new Stats(values.length, min, max, mean, Math.sqrt(variance / values.length));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("min=%d max=%d mean=%.1f std=%.2f max/mean=%.3f",
+                    min, max, mean, stdDev, mean == 0 ? 0 : max / mean);
+        }
+    }
+
+    /**
+     * 对比所有hash函数
+     * @param args [文件数] [实际存储节点数]
+     * @throws ConsistentHashException
+     */
+    public static void main(String[] args) throws ConsistentHashException {
+        int fileCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int dstoreCount = args.length > 1 ? Integer.parseInt(args[1]) : 6;
+        List<Integer> dPorts = new ArrayList<>();
+        for (int i = 0; i < dstoreCount; i++) dPorts.add(8001 + i);
+        List<String> filenames = new ArrayList<>(fileCount);
+        for (int i = 0; i < fileCount; i++) filenames.add(String.format("file_to_store%d", i));
+        for (String name : new String[]{Murmur3HashFunction.NAME, XxHash64Function.NAME, Md5HashFunction.NAME}) {
+            ConsistentHash consistentHash = new ConsistentHash(HashFunction.of(name));
+            consistentHash.initConsistentHash(dPorts);
+            measure(consistentHash, filenames); // warm up
+            System.out.println(measure(consistentHash, filenames));
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * 一致性hash使用的hash函数，实现类必须线程安全，供controller各连接线程并发调用
+ */
+public interface HashFunction {
+
+    /**
+     * 计算64位hash值
+     * @param s
+     * @return
+     */
+    long hash64(String s);
+
+    /**
+     * 计算文件名在hash环上的位置，范围为range(0, MAX)，取64位hash的高31位，不会出现负数
+     * @param s
+     * @return
+     */
+    default int ringHash(String s) {
+        return (int) (hash64(s) >>> 33);
+    }
+
+    String name();
+
+    /**
+     * 根据配置名获取hash函数
+     * @param name murmur3 / xxhash64 / md5
+     * @return
+     */
+    static HashFunction of(String name) {
+        return switch (name.toLowerCase()) {
+            case Murmur3HashFunction.NAME -> new Murmur3HashFunction();
+            case XxHash64Function.NAME -> new XxHash64Function();
+            case Md5HashFunction.NAME -> new Md5HashFunction();
+            default -> throw new IllegalArgumentException(String.format("unknown hash function %s", name));
+        };
+    }
+}
@@ -0,0 +1,238 @@
+import java.util.Arrays;
+
+/**
+ * 基于原始类型数组的hash环，不可变快照
+ * positions为升序排列的虚拟节点hash位置，owners[i]为positions[i]处虚拟节点所属实际存储节点的下标，
+ * ownerPorts[owner]为下标对应的dPort，members为当前正常运行的实际存储节点。
+ * preferences为每个虚拟节点预先计算的副本列表：从该节点起顺时针方向、属于不同实际节点的前replicas个虚拟节点下标。
+ * 查找过程只做二分查找和数组读取，不产生装箱和对象分配；成员变更时生成epoch加一的新快照，读者无需加锁
+ */
+public final class HashRing {
+    final long epoch;
+    final int[] positions;
+    final int[] owners;
+    final int[] ownerPorts;
+    final int[] members;
+    final int replicas;
+    final int[] preferences; // preferences[index * replicas + k]，不足replicas个实际节点时为-1
+
+    /**
+     * 初始化
+     * @param epoch 快照版本号
+     * @param positions 升序排列的虚拟节点位置
+     * @param owners 与positions一一对应的实际节点下标
+     * @param ownerPorts 实际节点下标到dPort的映射
+     * @param members 当前正常运行的dPort
+     * @param replicas 副本个数
+     */
+    public HashRing(long epoch, int[] positions, int[] owners, int[] ownerPorts, int[] members, int replicas) {
+        if (positions.length == 0 || positions.length != owners.length) {
+            throw new IllegalArgumentException("positions and owners must be non-empty and aligned");
+        }
+        for (int i = 1; i < positions.length; i++) {
+            if (positions[i - 1] >= positions[i]) throw new IllegalArgumentException("positions must be strictly ascending");
+        }
+        this.epoch = epoch;
+        this.positions = positions;
+        this.owners = owners;
+        this.ownerPorts = ownerPorts;
+        this.members = members;
+        if (replicas < 1) throw new IllegalArgumentException("replicas must be positive");
+        this.replicas = replicas;
+        this.preferences = new int[positions.length * replicas];
+        // 最后一个虚拟节点直接顺时针遍历，其余节点由后继节点的列表递推得到，总代价O(V*r)
+        walkPreference(positions.length - 1);
+        for (int i = positions.length - 2; i >= 0; i--) {
+            derivePreference(i);
+        }
+    }
+
+    private HashRing(HashRing previous, int[] owners, int[] ownerPorts, int[] members, int[] changedIndices) {
+        this.epoch = previous.epoch + 1;
+        this.positions = previous.positions; // positions never change, share between snapshots
+        this.owners = owners;
+        this.ownerPorts = ownerPorts;
+        this.members = members;
+        this.replicas = previous.replicas;
+        this.preferences = previous.preferences.clone();
+        updatePreferences(changedIndices);
+    }
+
+    /**
+     * 生成下一个版本的快照，传入的数组此后不能再修改
+     * @param owners
+     * @param ownerPorts
+     * @param members
+     * @param changedIndices 所属实际节点发生变化的虚拟节点下标，只重新计算受其影响的弧段
+     * @return
+     */
+    public HashRing next(int[] owners, int[] ownerPorts, int[] members, int[] changedIndices) {
+        if (owners.length != positions.length) throw new IllegalArgumentException("owners must be aligned with positions");
+        return new HashRing(this, owners, ownerPorts, members, changedIndices);
+    }
+
+    /**
+     * 直接顺时针遍历计算副本列表，最坏O(V)，只用于初始化
+     * @param index
+     */
+    private void walkPreference(int index) {
+        int base = index * replicas;
+        int count = 0;
+        int cursor = index;
+        do {
+            if (!containsOwner(base, count, owners[cursor])) {
+                preferences[base + count++] = cursor;
+            }
+            cursor = next(cursor);
+        } while (count < replicas && cursor != index);
+        while (count < replicas) preferences[base + count++] = -1;
+    }
+
+    /**
+     * 由顺时针后继节点的副本列表递推：index自身加上后继列表中不属于同一实际节点的前replicas-1项
+     * 后继列表已包含replicas个不同的实际节点，去掉至多一个后仍足够
+     * @param index
+     */
+    private void derivePreference(int index) {
+        int base = index * replicas;
+        int nextBase = next(index) * replicas;
+        int owner = owners[index];
+        preferences[base] = index;
+        int count = 1;
+        for (int k = 0; k < replicas && count < replicas; k++) {
+            int candidate = preferences[nextBase + k];
+            if (candidate < 0) break;
+            if (owners[candidate] != owner) preferences[base + count++] = candidate;
+        }
+        while (count < replicas) preferences[base + count++] = -1;
+    }
+
+    private boolean containsOwner(int base, int count, int owner) {
+        for (int k = 0; k < count; k++) {
+            if (owners[preferences[base + k]] == owner) return true;
+        }
+        return false;
+    }
+
+    /**
+     * 增量更新副本列表：index的列表只依赖index自身的实际节点、后继节点的列表以及后继列表中各项的实际节点。
+     * 初始只处理实际节点变化的虚拟节点，以及列表中含有这些节点的弧段（逆时针方向连续的一段），
+     * 之后某个列表发生变化时再处理其前驱节点，直到不再变化
+     * @param changedIndices
+     */
+    private void updatePreferences(int[] changedIndices) {
+        if (changedIndices.length == 0) return;
+        int size = positions.length;
+        boolean[] queued = new boolean[size];
+        int[] queue = new int[size];
+        int head = 0, tail = 0, queuedCount = 0;
+        for (int index : changedIndices) {
+            int cursor = index;
+            for (int step = 0; step < size; step++) {
+                if (!queued[cursor]) {
+                    queued[cursor] = true;
+                    queue[tail] = cursor;
+                    tail = tail + 1 == size ? 0 : tail + 1;
+                    queuedCount++;
+                }
+                if (cursor != index && !references(cursor, index)) break;
+                cursor = previous(cursor);
+            }
+        }
+        int[] old = new int[replicas];
+        while (queuedCount > 0) {
+            int index = queue[head];
+            head = head + 1 == size ? 0 : head + 1;
+            queuedCount--;
+            queued[index] = false;
+            int base = index * replicas;
+            System.arraycopy(preferences, base, old, 0, replicas);
+            derivePreference(index);
+            int previous = previous(index);
+            if (!Arrays.equals(preferences, base, base + replicas, old, 0, replicas) && !queued[previous]) {
+                queued[previous] = true;
+                queue[tail] = previous;
+                tail = tail + 1 == size ? 0 : tail + 1;
+                queuedCount++;
+            }
+        }
+    }
+
+    private boolean references(int index, int target) {
+        int base = index * replicas;
+        for (int k = 0; k < replicas; k++) {
+            if (preferences[base + k] == target) return true;
+        }
+        return false;
+    }
+
+    private int previous(int index) {
+        return index == 0 ? positions.length - 1 : index - 1;
+    }
+
+    /**
+     * 顺时针寻找第一个位置不小于hash的虚拟节点下标，超过环尾时回到0
+     * 循环体内只有一次比较和条件赋值，JIT可以生成cmov，避免分支预测失败
+     * @param hash
+     * @return 虚拟节点下标
+     */
+    public int search(int hash) {
+        final int[] pos = positions;
+        int base = 0;
+        int len = pos.length;
+        while (len > 1) {
+            int half = len >>> 1;
+            base = pos[base + half] < hash ? base + half : base;
+            len -= half;
+        }
+        base += pos[base] < hash ? 1 : 0;
+        return base == pos.length ? 0 : base;
+    }
+
+    /**
+     * 顺时针下一个虚拟节点下标
+     * @param index
+     * @return
+     */
+    public int next(int index) {
+        return index + 1 == positions.length ? 0 : index + 1;
+    }
+
+    /**
+     * 虚拟节点的第k个副本所在虚拟节点下标
+     * @param index
+     * @param k
+     * @return 不足k+1个实际节点时为-1
+     */
+    public int preference(int index, int k) {
+        return preferences[index * replicas + k];
+    }
+
+    public int ownerOf(int index) {
+        return owners[index];
+    }
+
+    public int ownerPortOf(int index) {
+        return ownerPorts[owners[index]];
+    }
+
+    public int positionOf(int index) {
+        return positions[index];
+    }
+
+    public int size() {
+        return positions.length;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * 复制owners数组，用于构造下一个快照
+     * @return
+     */
+    public int[] copyOwners() {
+        return owners.clone();
+    }
+}
@@ -0,0 +1,130 @@
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * 非负int的开放寻址hash集合，不装箱，线性探测，删除时后移补位，不使用墓碑。
+ * 非线程安全，由使用方加锁
+ */
+public class IntHashSet {
+    private static final int EMPTY = -1;
+    private int[] slots;
+    private int size;
+    private int mask;
+
+    public IntHashSet() {
+        this(16);
+    }
+
+    public IntHashSet(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        slots = new int[capacity];
+        Arrays.fill(slots, EMPTY);
+        mask = capacity - 1;
+    }
+
+    private static int slot(int value, int mask) {
+        int h = value * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    public boolean add(int value) {
+        if (value < 0) throw new IllegalArgumentException("negative value");
+        int i = slot(value, mask);
+        while (slots[i] != EMPTY) {
+            if (slots[i] == value) return false;
+            i = (i + 1) & mask;
+        }
+        slots[i] = value;
+        if (++size * 4 > slots.length * 3) resize(slots.length << 1);
+        return true;
+    }
+
+    public boolean contains(int value) {
+        int i = slot(value, mask);
+        while (slots[i] != EMPTY) {
+            if (slots[i] == value) return true;
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    public boolean remove(int value) {
+        int i = slot(value, mask);
+        while (slots[i] != EMPTY) {
+            if (slots[i] == value) {
+                shiftBack(i);
+                size--;
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * 删除后将同一探测链上后面的元素前移，保证查找不会提前遇到空位
+     * @param hole
+     */
+    private void shiftBack(int hole) {
+        int i = hole;
+        while (true) {
+            i = (i + 1) & mask;
+            int value = slots[i];
+            if (value == EMPTY) break;
+            int home = slot(value, mask);
+            // home不在(hole, i]区间内时可以移动到hole
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                slots[hole] = value;
+                hole = i;
+            }
+        }
+        slots[hole] = EMPTY;
+    }
+
+    private void resize(int capacity) {
+        int[] old = slots;
+        slots = new int[capacity];
+        Arrays.fill(slots, EMPTY);
+        mask = capacity - 1;
+        for (int value : old) {
+            if (value == EMPTY) continue;
+            int i = slot(value, mask);
+            while (slots[i] != EMPTY) i = (i + 1) & mask;
+            slots[i] = value;
+        }
+    }
+
+    public void addAll(IntHashSet other) {
+        for (int value : other.slots) {
+            if (value != EMPTY) add(value);
+        }
+    }
+
+    public void forEach(IntConsumer consumer) {
+        for (int value : slots) {
+            if (value != EMPTY) consumer.accept(value);
+        }
+    }
+
+    public int[] toArray() {
+        int[] array = new int[size];
+        int count = 0;
+        for (int value : slots) {
+            if (value != EMPTY) array[count++] = value;
+        }
+        return array;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(slots, EMPTY);
+        size = 0;
+    }
+}
@@ -0,0 +1,82 @@
+import java.util.Set;
+
+/**
+ * Jump consistent hash放置算法，不需要hash环和虚拟节点，内存占用只有成员列表。
+ * 第i个副本在去掉前i个副本后剩余的成员中再做一次jump hash，新成员追加在末尾，加入时迁移量最小。
+ * jump hash只能移除最后一个桶，移除中间节点时把最后一个节点换到该位置，会多迁移一份最后节点的数据；
+ * 不支持按容量加权
+ */
+public class JumpConsistentHash extends AbstractPlacementEngine {
+    static final String NAME = "jump";
+
+    public JumpConsistentHash() {
+        this(HashFunction.of(Config.hashFunction), new FileIdDictionary());
+    }
+
+    public JumpConsistentHash(HashFunction hashFunction, FileIdDictionary fileIds) {
+        super(hashFunction, fileIds);
+    }
+
+    /**
+     * Lamping & Veach的jump consistent hash
+     * @param key
+     * @param buckets
+     * @return range(0, buckets)
+     */
+    static int jump(long key, int buckets) {
+        long b = -1;
+        long j = 0;
+        while (j < buckets) {
+            b = j;
+            key = key * 2862933555777941757L + 1;
+            j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+        }
+        return (int) b;
+    }
+
+    @Override
+    protected int[] place(long hash, int r, Membership membership) {
+        int[] dPorts = membership.dPorts;
+        int[] selected = new int[r];
+        int[] chosen = new int[r]; // 已选成员下标，升序
+        for (int i = 0; i < r; i++) {
+            long key = i == 0 ? hash : Murmur3HashFunction.fmix64(hash + i * 0x9E3779B97F4A7C15L);
+            int index = jump(key, dPorts.length - i);
+            // 把剩余成员中的第index个换算为成员列表中的下标
+            int pos = 0;
+            while (pos < i && chosen[pos] <= index) {
+                index++;
+                pos++;
+            }
+            System.arraycopy(chosen, pos, chosen, pos + 1, i - pos);
+            chosen[pos] = index;
+            selected[i] = dPorts[index];
+        }
+        return selected;
+    }
+
+    @Override
+    protected int[] nextMembers(int[] dPorts, Set<Integer> joins, Set<Integer> leaves) {
+        int[] members = dPorts.clone();
+        int size = members.length;
+        for (int dPort : leaves) {
+            for (int i = 0; i < size; i++) {
+                if (members[i] == dPort) {
+                    members[i] = members[--size];
+                    break;
+                }
+            }
+        }
+        int[] result = new int[size + joins.size()];
+        System.arraycopy(members, 0, result, 0, size);
+        for (int dPort : joins) {
+            if (!contains(result, dPort)) result[size++] = dPort;
+        }
+        return size == result.length ? result : java.util.Arrays.copyOf(result, size);
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+}
@@ -0,0 +1,45 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * MD5兼容实现，每个线程持有独立的MessageDigest，保持与旧版本相同的环上位置
+ */
+public class Md5HashFunction implements HashFunction {
+    static final String NAME = "md5";
+    private static final ThreadLocal<MessageDigest> md = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    });
+
+    @Override
+    public long hash64(String s) {
+        byte[] digest = md.get().digest(s.getBytes(StandardCharsets.UTF_8));
+        long h = 0;
+        for (int i = 0; i < 8; i++) {
+            h = (h << 8) | (digest[i] & 0xFF);
+        }
+        return h;
+    }
+
+    /**
+     * 与旧版本Utils.getHash完全相同：平台默认字符集编码，Math.abs(Arrays.hashCode(digest))；
+     * 旧版本中Math.abs(Integer.MIN_VALUE)仍为负数，查找虚拟节点时出错，这里固定映射到0
+     * @param s
+     * @return
+     */
+    @Override
+    public int ringHash(String s) {
+        int hash = Math.abs(Arrays.hashCode(md.get().digest(s.getBytes())));
+        return hash == Integer.MIN_VALUE ? 0 : hash;
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+}
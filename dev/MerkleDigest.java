@@ -0,0 +1,134 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 文件集合的默克尔树：按文件名hash的高位把hash环等分为2^depth段，每段是树的一个叶子，叶子摘要为段内文件64位hash的异或，
+ * 内部节点由两个子节点混合得到。增删一个文件只更新一条路径；比较两份集合时从根开始，只向摘要不同的子树下降。
+ * 节点按堆编号：根为1，节点i的子节点为2i和2i+1，叶子为[leaves, 2*leaves)
+ */
+public final class MerkleDigest {
+    private final HashFunction hashFunction;
+    private final int depth;
+    private final long[] nodes; // index 0 unused
+    private final Set<String>[] names; // 每个叶子的文件名，只在dstore上记录，否则为null
+
+    /**
+     * 初始化空集合
+     * @param hashFunction 与hash环相同的hash函数，叶子即hash环上的一段连续位置
+     * @param depth 树高，叶子数为2^depth
+     * @param recordNames 是否记录每段的文件名，用于去重和回复DIGEST_FILES
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public MerkleDigest(HashFunction hashFunction, int depth, boolean recordNames) {
+        this.hashFunction = hashFunction;
+        this.depth = Math.max(1, Math.min(depth, 20));
+        this.nodes = new long[2 << this.depth];
+        this.names = recordNames ? new Set[1 << this.depth] : null;
+        rebuild(); // 空子树的摘要不为0，与批量构建的结果一致
+    }
+
+    public int leaves() {
+        return 1 << depth;
+    }
+
+    /**
+     * 文件所在的叶子编号(从0开始)
+     * @param hash 文件名的64位hash
+     * @return
+     */
+    public int leafOf(long hash) {
+        return (int) (hash >>> (64 - depth));
+    }
+
+    public long hash64(String filename) {
+        return hashFunction.hash64(filename);
+    }
+
+    /**
+     * 加入文件并更新路径，已存在时不变
+     * @param filename
+     * @return 是否新加入
+     */
+    public synchronized boolean add(String filename) {
+        long hash = hashFunction.hash64(filename);
+        int leaf = leafOf(hash);
+        if (names != null) {
+            if (names[leaf] == null) names[leaf] = new HashSet<>();
+            if (!names[leaf].add(filename)) return false;
+        }
+        nodes[leaves() + leaf] ^= hash;
+        updatePath(leaves() + leaf);
+        return true;
+    }
+
+    /**
+     * 移除文件并更新路径，不存在时不变
+     * @param filename
+     * @return 是否移除
+     */
+    public synchronized boolean remove(String filename) {
+        long hash = hashFunction.hash64(filename);
+        int leaf = leafOf(hash);
+        if (names != null && (names[leaf] == null || !names[leaf].remove(filename))) return false;
+        nodes[leaves() + leaf] ^= hash;
+        updatePath(leaves() + leaf);
+        return true;
+    }
+
+    /**
+     * 批量构建时只修改叶子，全部加入后调用rebuild
+     * @param hash
+     */
+    public synchronized void xorLeaf(long hash) {
+        nodes[leaves() + leafOf(hash)] ^= hash;
+    }
+
+    /**
+     * 由叶子重新计算全部内部节点
+     */
+    public synchronized void rebuild() {
+        for (int i = leaves() - 1; i >= 1; i--) nodes[i] = combine(nodes[2 * i], nodes[2 * i + 1]);
+    }
+
+    private void updatePath(int index) {
+        for (int i = index >>> 1; i >= 1; i >>>= 1) nodes[i] = combine(nodes[2 * i], nodes[2 * i + 1]);
+    }
+
+    /**
+     * 节点摘要
+     * @param index 堆编号
+     * @return
+     */
+    public synchronized long node(int index) {
+        return nodes[index];
+    }
+
+    /**
+     * 叶子中的文件名
+     * @param leaf 叶子编号(从0开始)
+     * @return
+     */
+    public synchronized List<String> names(int leaf) {
+        if (names == null || names[leaf] == null) return new ArrayList<>();
+        return new ArrayList<>(names[leaf]);
+    }
+
+    /**
+     * 混合两个子节点，交换左右会得到不同的结果
+     * @param left
+     * @param right
+     * @return
+     */
+    private static long combine(long left, long right) {
+        long h = Long.rotateLeft(left, 31) ^ right ^ 0x9E3779B97F4A7C15L;
+        // fmix64 of murmur3
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,17 @@
+import java.io.IOException;
+
+/**
+ * 按行收发文本协议的连接，controller处理命令时只通过该接口回复，
+ * 与连接由阻塞socket(Communication)还是Selector(ControllerServer)驱动无关
+ */
+public interface MessageChannel {
+
+    /**
+     * 发送一行消息
+     * @param msg 不含换行符
+     * @throws IOException
+     */
+    void send(String msg) throws IOException;
+
+    int getTargetPort();
+}
@@ -0,0 +1,114 @@
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * 进程内的运行指标，替代请求路径上的System.out.printf。
+ * 计数器基于LongAdder，直方图按2的幂分桶，记录时不加锁、不分配对象；调用方应在静态字段中缓存计数器和直方图，
+ * 避免每次按名称查找。controller通过METRICS命令返回全部指标的快照
+ */
+public final class Metrics {
+    private static final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private static final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private static final Map<String, DoubleSupplier> gauges = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * 获取或创建计数器
+     * @param name
+     * @return
+     */
+    public static LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, k -> new LongAdder());
+    }
+
+    /**
+     * 获取或创建直方图
+     * @param name
+     * @return
+     */
+    public static Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, k -> new Histogram());
+    }
+
+    /**
+     * 注册查询时才计算的指标，同名时替换
+     * @param name
+     * @param supplier
+     */
+    public static void gauge(String name, DoubleSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    /**
+     * 所有指标的当前值，按名称排序；直方图展开为count、mean、p50、p99和max
+     * @return
+     */
+    public static SortedMap<String, String> snapshot() {
+        SortedMap<String, String> snapshot = new TreeMap<>();
+        counters.forEach((name, counter) -> snapshot.put(name, Long.toString(counter.sum())));
+        histograms.forEach((name, histogram) -> histogram.snapshotTo(name, snapshot));
+        gauges.forEach((name, gauge) -> snapshot.put(name, format(gauge.getAsDouble())));
+        return snapshot;
+    }
+
+    static String format(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value) : String.format("%.3f", value);
+    }
+
+    /**
+     * 非负long值的直方图，第i个桶记录[2^(i-1), 2^i)区间，分位数取桶上界，误差不超过一倍
+     */
+    public static final class Histogram {
+        private static final int BUCKETS = 64;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        public void record(long value) {
+            if (value < 0) value = 0;
+            buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+            count.increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        /**
+         * 近似分位数
+         * @param quantile 0到1之间
+         * @return 所在桶的上界，不超过记录过的最大值
+         */
+        public long quantile(double quantile) {
+            long total = count.sum();
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= Math.max(1, rank)) return Math.min(i == 0 ? 0 : (1L << i) - 1, max.get());
+            }
+            return max.get();
+        }
+
+        private void snapshotTo(String name, Map<String, String> snapshot) {
+            long total = count.sum();
+            snapshot.put(name + ".count", Long.toString(total));
+            snapshot.put(name + ".mean", format(total == 0 ? 0 : (double) sum.sum() / total));
+            snapshot.put(name + ".p50", Long.toString(quantile(0.5)));
+            snapshot.put(name + ".p99", Long.toString(quantile(0.99)));
+            snapshot.put(name + ".max", Long.toString(max.get()));
+        }
+    }
+}
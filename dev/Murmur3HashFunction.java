@@ -0,0 +1,93 @@
+/**
+ * MurmurHash3 x64_128，直接按UTF-16LE读取字符，不生成byte[]，取128位结果的低64位
+ */
+public class Murmur3HashFunction implements HashFunction {
+    static final String NAME = "murmur3";
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+    private final long seed;
+
+    public Murmur3HashFunction() {
+        this(0);
+    }
+
+    public Murmur3HashFunction(long seed) {
+        this.seed = seed;
+    }
+
+    @Override
+    public long hash64(String s) {
+        long h1 = seed;
+        long h2 = seed;
+        int length = s.length();
+        int pos = 0;
+        // 每个block为16字节，即8个字符
+        for (; pos + 8 <= length; pos += 8) {
+            long k1 = chars4(s, pos);
+            long k2 = chars4(s, pos + 4);
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+        int tail = length - pos;
+        if (tail > 4) {
+            long k2 = 0;
+            for (int i = tail - 1; i >= 4; i--) k2 = (k2 << 16) | s.charAt(pos + i);
+            h2 ^= mixK2(k2);
+        }
+        if (tail > 0) {
+            long k1 = 0;
+            for (int i = Math.min(tail, 4) - 1; i >= 0; i--) k1 = (k1 << 16) | s.charAt(pos + i);
+            h1 ^= mixK1(k1);
+        }
+        long byteLength = (long) length << 1;
+        h1 ^= byteLength;
+        h2 ^= byteLength;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        h1 += h2;
+        return h1;
+    }
+
+    private static long chars4(String s, int pos) {
+        return (long) s.charAt(pos)
+                | ((long) s.charAt(pos + 1) << 16)
+                | ((long) s.charAt(pos + 2) << 32)
+                | ((long) s.charAt(pos + 3) << 48);
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2;
+        return k1;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= C1;
+        return k2;
+    }
+
+    static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+}
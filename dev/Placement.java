@@ -0,0 +1,17 @@
+import java.util.List;
+
+/**
+ * 一次文件存储位置的计算结果，记录计算时所依据的成员版本，
+ * 存储完成时若成员已发生变更，controller据此发现过期的存储位置
+ */
+public class Placement {
+    public final long epoch;
+    public final List<VirtualDstore> virtualDstores; // 只有hash环使用，其余算法为空
+    public final int[] dPorts;
+
+    public Placement(long epoch, List<VirtualDstore> virtualDstores, int[] dPorts) {
+        this.epoch = epoch;
+        this.virtualDstores = virtualDstores;
+        this.dPorts = dPorts;
+    }
+}
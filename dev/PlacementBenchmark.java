@@ -0,0 +1,151 @@
+import java.util.*;
+
+/**
+ * 放置算法对比：查找速度、内存占用以及成员变更时需要迁移的数据量
+ */
+public class PlacementBenchmark {
+    final String engine;
+    final double nanosPerLookup;
+    final long heapBytes;
+    final long joinMovedBytes;
+    final int joinMovedFiles;
+    final long leaveMovedBytes;
+    final int leaveMovedFiles;
+    final long totalBytes;
+
+    private PlacementBenchmark(String engine, double nanosPerLookup, long heapBytes, long joinMovedBytes, int joinMovedFiles,
+                               long leaveMovedBytes, int leaveMovedFiles, long totalBytes) {
+        this.engine = engine;
+        this.nanosPerLookup = nanosPerLookup;
+        this.heapBytes = heapBytes;
+        this.joinMovedBytes = joinMovedBytes;
+        this.joinMovedFiles = joinMovedFiles;
+        this.leaveMovedBytes = leaveMovedBytes;
+        this.leaveMovedFiles = leaveMovedFiles;
+        this.totalBytes = totalBytes;
+    }
+
+    /**
+     * 对单个放置算法测量
+     * @param name 放置算法名
+     * @param dPorts 初始成员
+     * @param fileSizes 文件名到文件大小
+     * @param r 副本个数
+     * @return
+     * @throws ConsistentHashException
+     */
+    public static PlacementBenchmark measure(String name, List<Integer> dPorts, Map<String, Integer> fileSizes, int r)
+            throws ConsistentHashException {
+        long heapBefore = usedHeap();
+        PlacementEngine engine = build(name, dPorts, fileSizes, r);
+        long heapBytes = usedHeap() - heapBefore;
+        long totalBytes = 0;
+        for (int size : fileSizes.values()) totalBytes += (long) size * r;
+        // 两轮查找，第一轮预热
+        double nanosPerLookup = 0;
+        long sink = 0;
+        for (int round = 0; round < 2; round++) {
+            long startTime = System.nanoTime();
+            for (String filename : fileSizes.keySet()) {
+                sink += engine.getStoreTarget(filename, r).dPorts[0];
+            }
+            nanosPerLookup = (double) (System.nanoTime() - startTime) / Math.max(1, fileSizes.size());
+        }
+        if (sink == 42) System.out.print(""); // keep lookup loop alive
+        int newDPort = dPorts.stream().mapToInt(Integer::intValue).max().orElse(8000) + 1;
+        // 加入和移除都从相同的初始状态规划
+        TransferPlan joinPlan = engine.addDstore(newDPort);
+        PlacementEngine leaveEngine = build(name, dPorts, fileSizes, r);
+        TransferPlan leavePlan = leaveEngine.removeDstore(dPorts.get(dPorts.size() / 2));
+        return new PlacementBenchmark(engine.name(), nanosPerLookup, heapBytes,
+                joinPlan.getMovedBytes(), joinPlan.getMovedFiles(),
+                leavePlan.getMovedBytes(), leavePlan.getMovedFiles(), totalBytes);
+    }
+
+    private static PlacementEngine build(String name, List<Integer> dPorts, Map<String, Integer> fileSizes, int r)
+            throws ConsistentHashException {
+        PlacementEngine engine = PlacementEngine.of(name);
+        engine.init(dPorts, r);
+        FileIdDictionary fileIds = engine.getFileIds();
+        engine.setFileSizes(fileId -> fileSizes.getOrDefault(fileIds.nameOf(fileId), 0));
+        for (String filename : fileSizes.keySet()) {
+            engine.afterStoreTargetFile(fileIds.intern(filename), engine.getStoreTarget(filename, r));
+        }
+        return engine;
+    }
+
+    /**
+     * 按给定的有界负载系数依次存储所有文件，返回节点字节数的最大值与平均值之比
+     * @param name
+     * @param dPorts
+     * @param fileSizes
+     * @param r
+     * @param factor 不大于0时不限制
+     * @return
+     * @throws ConsistentHashException
+     */
+    public static double loadSpread(String name, List<Integer> dPorts, Map<String, Integer> fileSizes, int r, double factor)
+            throws ConsistentHashException {
+        PlacementEngine engine = PlacementEngine.of(name);
+        engine.init(dPorts, r);
+        DstoreLoadTracker dstoreLoad = new DstoreLoadTracker();
+        for (int dPort : dPorts) dstoreLoad.addDstore(dPort);
+        for (Map.Entry<String, Integer> entry : fileSizes.entrySet()) {
+            Placement placement = engine.getStoreTarget(entry.getKey(), r, dPort -> dstoreLoad.isOverloaded(dPort, factor));
+            for (int dPort : placement.dPorts) dstoreLoad.add(dPort, entry.getValue());
+        }
+        long max = 0, total = 0;
+        for (int dPort : dPorts) {
+            max = Math.max(max, dstoreLoad.getBytes(dPort));
+            total += dstoreLoad.getBytes(dPort);
+        }
+        return total == 0 ? 0 : (double) max * dPorts.size() / total;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%-10s %.1fns/lookup heap=%.1fMB | join moved %d files %.1f%% bytes | leave moved %d files %.1f%% bytes",
+                engine, nanosPerLookup, heapBytes / 1048576.0,
+                joinMovedFiles, 100.0 * joinMovedBytes / Math.max(1, totalBytes),
+                leaveMovedFiles, 100.0 * leaveMovedBytes / Math.max(1, totalBytes));
+    }
+
+    /**
+     * 对比所有放置算法
+     * @param args [文件数] [实际存储节点数]
+     * @throws ConsistentHashException
+     */
+    public static void main(String[] args) throws ConsistentHashException {
+        int fileCount = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int dstoreCount = args.length > 1 ? Integer.parseInt(args[1]) : 6;
+        List<Integer> dPorts = new ArrayList<>();
+        for (int i = 0; i < dstoreCount; i++) dPorts.add(8001 + i);
+        Random random = new Random(42);
+        Map<String, Integer> fileSizes = new LinkedHashMap<>();
+        for (int i = 0; i < fileCount; i++) fileSizes.put(String.format("file_to_store%d", i), 1 + random.nextInt(100000));
+        List<PlacementBenchmark> results = new ArrayList<>();
+        List<String> failures = new ArrayList<>();
+        for (String name : new String[]{ConsistentHash.NAME, JumpConsistentHash.NAME, RendezvousHash.NAME}) {
+            try {
+                results.add(measure(name, dPorts, fileSizes, Config.r));
+            } catch (ConsistentHashException e) {
+                failures.add(String.format("%-10s failed: %s", name, e.getMessage()));
+            }
+        }
+        // 理想情况下加入节点迁移1/(n+1)，移除节点迁移1/n
+        System.out.printf("ideal      join %.1f%% bytes | leave %.1f%% bytes\n", 100.0 / (dstoreCount + 1), 100.0 / dstoreCount);
+        for (PlacementBenchmark result : results) System.out.println(result);
+        for (String failure : failures) System.out.println(failure);
+        // 有界负载对字节分布的影响
+        for (String name : new String[]{ConsistentHash.NAME, JumpConsistentHash.NAME, RendezvousHash.NAME}) {
+            System.out.printf("%-10s bytes max/mean unbounded=%.3f c=1.01 %.3f\n", name,
+                    loadSpread(name, dPorts, fileSizes, Config.r, 0), loadSpread(name, dPorts, fileSizes, Config.r, 1.01));
+        }
+    }
+}
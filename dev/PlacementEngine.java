@@ -0,0 +1,243 @@
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntPredicate;
+import java.util.function.IntToLongFunction;
+
+/**
+ * 文件放置算法接口，controller通过该接口决定文件副本存储在哪些实际存储节点上，
+ * 成员变更时先生成迁移计划，文件迁移完成后再提交
+ */
+public interface PlacementEngine {
+    LongAdder boundedRedirects = Metrics.counter("placement.boundedRedirects"); // 有界负载模式下因过载改选节点的次数
+
+    /**
+     * 初始化，所有节点权重相同
+     * @param dPorts
+     * @param r 副本个数
+     * @throws ConsistentHashException
+     */
+    default void init(List<Integer> dPorts, int r) throws ConsistentHashException {
+        init(dPorts, Map.of(), r);
+    }
+
+    /**
+     * 初始化
+     * @param dPorts
+     * @param weights dPort到权重的映射，缺省为1
+     * @param r 副本个数
+     * @throws ConsistentHashException
+     */
+    void init(List<Integer> dPorts, Map<Integer, Double> weights, int r) throws ConsistentHashException;
+
+    /**
+     * 获取文件存储的实际节点
+     * @param filename
+     * @param r
+     * @return
+     * @throws ConsistentHashException
+     */
+    Placement getStoreTarget(String filename, int r) throws ConsistentHashException;
+
+    /**
+     * 有界负载模式下获取文件存储的实际节点，按算法的候选顺序跳过过载节点，
+     * 不过载的节点不足r个时再依次使用过载节点
+     * @param filename
+     * @param r
+     * @param overloaded 判断节点是否过载
+     * @return
+     * @throws ConsistentHashException
+     */
+    Placement getStoreTarget(String filename, int r, IntPredicate overloaded) throws ConsistentHashException;
+
+    /**
+     * 文件存储结束，同步算法内部文件信息
+     * @param fileId 文件名在字典中的编号
+     * @param placement
+     * @return 存储位置是否可能已过期
+     */
+    boolean afterStoreTargetFile(int fileId, Placement placement);
+
+    /**
+     * 移除文件
+     * @param fileId
+     * @throws ConsistentHashException
+     */
+    void removeFile(int fileId) throws ConsistentHashException;
+
+    /**
+     * 设置文件大小的查询方法，迁移计划据此统计迁移字节数，能选择时优先迁移字节数少的文件。
+     * 未设置时每个文件按1字节计
+     * @param fileSizes 文件编号到字节数
+     */
+    void setFileSizes(IntToLongFunction fileSizes);
+
+    /**
+     * 动态添加权重为1的实际存储节点，只生成迁移计划
+     * @param newDPort
+     * @return
+     * @throws ConsistentHashException
+     */
+    default TransferPlan addDstore(int newDPort) throws ConsistentHashException {
+        return addDstore(newDPort, 1.0);
+    }
+
+    /**
+     * 动态添加实际存储节点，只生成迁移计划
+     * @param newDPort
+     * @param weight 节点权重，存储份额与权重成正比
+     * @return
+     * @throws ConsistentHashException
+     */
+    TransferPlan addDstore(int newDPort, double weight) throws ConsistentHashException;
+
+    /**
+     * 运行时修改节点权重，只生成迁移计划
+     * @param dPort
+     * @param weight
+     * @return
+     * @throws ConsistentHashException
+     */
+    TransferPlan setWeight(int dPort, double weight) throws ConsistentHashException;
+
+    /**
+     * 动态移除问题存储节点，只生成迁移计划
+     * @param dPort
+     * @return
+     * @throws ConsistentHashException
+     */
+    TransferPlan removeDstore(int dPort) throws ConsistentHashException;
+
+    /**
+     * 同时处理多个节点的加入、移除和权重变化，只生成一个迁移计划，提交后hash环只发生一次变更，
+     * 每个受影响的文件最多迁移一次(不会先从移除节点迁到存活节点，再迁到新加入节点)
+     * @param joins 新加入节点到权重
+     * @param leaves 移除的节点
+     * @param weights 已有节点的新权重
+     * @return
+     * @throws ConsistentHashException
+     */
+    TransferPlan changeMembership(Map<Integer, Double> joins, Set<Integer> leaves, Map<Integer, Double> weights)
+            throws ConsistentHashException;
+
+    /**
+     * 检查成员变更是否合法
+     * @param members 已规划的成员
+     * @param joins
+     * @param leaves
+     * @param weights
+     * @throws ConsistentHashException
+     */
+    static void checkMembershipChange(List<Integer> members, Map<Integer, Double> joins, Set<Integer> leaves,
+                                      Map<Integer, Double> weights) throws ConsistentHashException {
+        for (Map.Entry<Integer, Double> entry : joins.entrySet()) {
+            if (entry.getValue() <= 0) throw new ConsistentHashException("weight must be positive");
+            if (members.contains(entry.getKey()) || leaves.contains(entry.getKey())) {
+                throw new ConsistentHashException("dPort already exists");
+            }
+        }
+        for (int dPort : leaves) {
+            if (!members.contains(dPort)) throw new ConsistentHashException("unexpected dPort");
+        }
+        if (members.size() - leaves.size() + joins.size() < 1) throw new ConsistentHashException("cannot remove the last dstore");
+        for (Map.Entry<Integer, Double> entry : weights.entrySet()) {
+            if (entry.getValue() <= 0) throw new ConsistentHashException("weight must be positive");
+            if (!members.contains(entry.getKey()) || leaves.contains(entry.getKey())) {
+                throw new ConsistentHashException("unexpected dPort");
+            }
+        }
+    }
+
+    /**
+     * 文件迁移完成后提交计划，之后的存储位置按新的成员计算
+     * @param plan
+     */
+    void commit(TransferPlan plan);
+
+    /**
+     * 各实际节点应当持有的文件编号
+     * @return
+     */
+    Map<Integer, IntHashSet> getDPortFilesMap();
+
+    /**
+     * 文件在当前成员下应当存储的实际节点
+     * @param fileId
+     * @return
+     */
+    List<Integer> getFileDPorts(int fileId);
+
+    /**
+     * 与controller共享的文件名字典
+     * @return
+     */
+    FileIdDictionary getFileIds();
+
+    List<Integer> getDPorts();
+
+    /**
+     * 各节点实际份额与按权重应得份额之比的最大值，1表示完全均匀；不使用虚拟节点的算法份额只由hash决定，视为1
+     * @return
+     */
+    default double virtualDstoreSkew() {
+        return 1.0;
+    }
+
+    /**
+     * 已提交的成员状态，调用方需保证期间没有进行中的迁移计划
+     * @return 尚未初始化时为null
+     */
+    PlacementState exportState();
+
+    /**
+     * 从快照恢复成员状态并清空文件信息，代替init
+     * @param state
+     * @param r 副本个数
+     * @throws ConsistentHashException
+     */
+    void restoreState(PlacementState state, int r) throws ConsistentHashException;
+
+    /**
+     * 写入快照的文件放置信息：hash环为文件所在的虚拟节点下标，其余算法为应当存储的dPort
+     * @param fileId
+     * @return 文件不存在时为null
+     */
+    int[] placementOf(int fileId);
+
+    /**
+     * 按快照中的放置信息恢复文件，不重新计算位置
+     * @param fileId
+     * @param placement placementOf的结果
+     */
+    void restoreFile(int fileId, int[] placement);
+
+    long getEpoch();
+
+    String name();
+
+    /**
+     * 根据配置名获取放置算法，使用独立的文件名字典
+     * @param name ring / jump / rendezvous
+     * @return
+     */
+    static PlacementEngine of(String name) {
+        return of(name, new FileIdDictionary());
+    }
+
+    /**
+     * 根据配置名获取放置算法
+     * @param name ring / jump / rendezvous
+     * @param fileIds 与controller共享的文件名字典
+     * @return
+     */
+    static PlacementEngine of(String name, FileIdDictionary fileIds) {
+        HashFunction hashFunction = HashFunction.of(Config.hashFunction);
+        return switch (name.toLowerCase()) {
+            case ConsistentHash.NAME -> new ConsistentHash(hashFunction, fileIds);
+            case JumpConsistentHash.NAME -> new JumpConsistentHash(hashFunction, fileIds);
+            case RendezvousHash.NAME -> new RendezvousHash(hashFunction, fileIds);
+            default -> throw new IllegalArgumentException(String.format("unknown placement engine %s", name));
+        };
+    }
+}
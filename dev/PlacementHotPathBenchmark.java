@@ -0,0 +1,194 @@
+import com.sun.management.ThreadMXBean;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+/**
+ * 放置算法热点路径的基准测试：getStoreTarget、afterStoreTargetFile、removeFile、addDstore/removeDstore(含提交)以及getDPortFilesMap。
+ * 按虚拟节点数、实际存储节点数、副本数和常驻文件数组合参数，每项先预热再测量多轮，
+ * 输出每次操作的平均耗时、最短一轮的耗时以及每次操作在当前线程上分配的字节数
+ */
+public class PlacementHotPathBenchmark {
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURE_ITERATIONS = 5;
+    private static final int FILE_BATCH = 10000; // afterStoreTargetFile/removeFile每轮操作的文件数
+    private static final int LOOKUP_BATCH = 100000; // getStoreTarget每轮最多查找的文件数
+    private static final ThreadMXBean threadMXBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /**
+     * 被测操作
+     */
+    private interface Operation {
+        void run(int i) throws ConsistentHashException;
+    }
+
+    /**
+     * 一项测量结果
+     */
+    static class Result {
+        final String operation;
+        final String params;
+        final double nanosPerOp;
+        final double minNanosPerOp;
+        final double bytesPerOp;
+
+        Result(String operation, String params, double nanosPerOp, double minNanosPerOp, double bytesPerOp) {
+            this.operation = operation;
+            this.params = params;
+            this.nanosPerOp = nanosPerOp;
+            this.minNanosPerOp = minNanosPerOp;
+            this.bytesPerOp = bytesPerOp;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-22s %-46s %,14.1f ns/op  min %,14.1f ns/op  %,12.1f B/op",
+                    operation, params, nanosPerOp, minNanosPerOp, bytesPerOp);
+        }
+    }
+
+    /**
+     * 预热后测量，setup在每轮开始前执行且不计入耗时和分配
+     * @param operation
+     * @param params
+     * @param batch 每轮操作次数
+     * @param iterations 测量轮数
+     * @param setup
+     * @param op
+     * @return
+     * @throws ConsistentHashException
+     */
+    private static Result measure(String operation, String params, int batch, int iterations,
+                                  Operation setup, Operation op) throws ConsistentHashException {
+        long totalNanos = 0, totalBytes = 0, minNanos = Long.MAX_VALUE;
+        for (int iteration = 0; iteration < WARMUP_ITERATIONS + iterations; iteration++) {
+            setup.run(iteration);
+            long bytesBefore = threadMXBean.getCurrentThreadAllocatedBytes();
+            long startTime = System.nanoTime();
+            for (int i = 0; i < batch; i++) op.run(i);
+            long nanos = System.nanoTime() - startTime;
+            long bytes = threadMXBean.getCurrentThreadAllocatedBytes() - bytesBefore;
+            if (iteration < WARMUP_ITERATIONS) continue;
+            totalNanos += nanos;
+            totalBytes += bytes;
+            minNanos = Math.min(minNanos, nanos);
+        }
+        long ops = (long) batch * iterations;
+        return new Result(operation, params, (double) totalNanos / ops, (double) minNanos / batch, (double) totalBytes / ops);
+    }
+
+    /**
+     * 对一组参数测量全部操作
+     * @param engineName
+     * @param virtualDstoreCount
+     * @param dstoreCount
+     * @param r
+     * @param fileCount 常驻文件数
+     * @return
+     * @throws ConsistentHashException
+     */
+    public static List<Result> run(String engineName, int virtualDstoreCount, int dstoreCount, int r, int fileCount)
+            throws ConsistentHashException {
+        Config.virtualDstoreCount = virtualDstoreCount;
+        String params = String.format("%s V=%d n=%d r=%d files=%d", engineName, virtualDstoreCount, dstoreCount, r, fileCount);
+        List<Integer> dPorts = new ArrayList<>();
+        for (int i = 0; i < dstoreCount; i++) dPorts.add(8001 + i);
+        PlacementEngine engine = PlacementEngine.of(engineName);
+        engine.init(dPorts, r);
+        FileIdDictionary fileIds = engine.getFileIds();
+        String[] filenames = new String[fileCount];
+        for (int i = 0; i < fileCount; i++) {
+            filenames[i] = String.format("file_to_store%d", i);
+            engine.afterStoreTargetFile(fileIds.intern(filenames[i]), engine.getStoreTarget(filenames[i], r));
+        }
+        List<Result> results = new ArrayList<>();
+        long[] sink = new long[1];
+        int lookups = Math.max(1, Math.min(fileCount, LOOKUP_BATCH));
+        results.add(measure("getStoreTarget", params, lookups, MEASURE_ITERATIONS, i -> {},
+                i -> sink[0] += engine.getStoreTarget(filenames[i], r).dPorts[0]));
+        // 新文件的编号和存储位置预先计算，只测量同步内部文件信息的开销
+        int[] newFileIds = new int[FILE_BATCH];
+        Placement[] placements = new Placement[FILE_BATCH];
+        for (int i = 0; i < FILE_BATCH; i++) {
+            String filename = String.format("new_file%d", i);
+            newFileIds[i] = fileIds.intern(filename);
+            placements[i] = engine.getStoreTarget(filename, r);
+        }
+        boolean[] stored = new boolean[1];
+        Operation storeAll = i -> {
+            if (stored[0]) return;
+            for (int k = 0; k < FILE_BATCH; k++) engine.afterStoreTargetFile(newFileIds[k], placements[k]);
+            stored[0] = true;
+        };
+        Operation removeAll = i -> {
+            if (!stored[0]) return;
+            for (int k = 0; k < FILE_BATCH; k++) engine.removeFile(newFileIds[k]);
+            stored[0] = false;
+        };
+        results.add(measure("afterStoreTargetFile", params, FILE_BATCH, MEASURE_ITERATIONS, removeAll, i -> {
+            engine.afterStoreTargetFile(newFileIds[i], placements[i]);
+            stored[0] = true;
+        }));
+        results.add(measure("removeFile", params, FILE_BATCH, MEASURE_ITERATIONS, storeAll, i -> {
+            engine.removeFile(newFileIds[i]);
+            stored[0] = false;
+        }));
+        removeAll.run(0);
+        // 加入和移除交替进行，保持集群规模不变
+        int newDPort = 8001 + dstoreCount;
+        boolean[] joined = new boolean[1];
+        results.add(measure("addDstore+commit", params, 1, MEASURE_ITERATIONS * 2, i -> {
+            if (joined[0]) engine.commit(engine.removeDstore(newDPort));
+            joined[0] = false;
+        }, i -> {
+            engine.commit(engine.addDstore(newDPort));
+            joined[0] = true;
+        }));
+        results.add(measure("removeDstore+commit", params, 1, MEASURE_ITERATIONS * 2, i -> {
+            if (!joined[0]) engine.commit(engine.addDstore(newDPort));
+            joined[0] = true;
+        }, i -> {
+            engine.commit(engine.removeDstore(newDPort));
+            joined[0] = false;
+        }));
+        results.add(measure("getDPortFilesMap", params, 1, MEASURE_ITERATIONS * 2, i -> {},
+                i -> sink[0] += engine.getDPortFilesMap().size()));
+        if (sink[0] == 42) System.out.print(""); // keep results alive
+        return results;
+    }
+
+    private static int[] parseList(String[] args, int index, int[] defaults) {
+        if (args.length <= index) return defaults;
+        return Arrays.stream(args[index].split(",")).mapToInt(Integer::parseInt).toArray();
+    }
+
+    /**
+     * 逗号分隔的参数取所有组合，例如 java PlacementHotPathBenchmark ring 1000,10000 6,24 3 10000,1000000
+     * @param args [放置算法] [虚拟节点数] [实际存储节点数] [副本数] [常驻文件数]
+     * @throws ConsistentHashException
+     */
+    public static void main(String[] args) throws ConsistentHashException {
+        String[] engineNames = args.length > 0 ? args[0].split(",") : new String[]{ConsistentHash.NAME};
+        int[] virtualDstoreCounts = parseList(args, 1, new int[]{1000, 10000});
+        int[] dstoreCounts = parseList(args, 2, new int[]{6, 24});
+        int[] rs = parseList(args, 3, new int[]{3});
+        int[] fileCounts = parseList(args, 4, new int[]{10000, 100000});
+        int originalVirtualDstoreCount = Config.virtualDstoreCount;
+        List<Result> results = new ArrayList<>();
+        for (String engineName : engineNames) {
+            for (int virtualDstoreCount : virtualDstoreCounts) {
+                for (int dstoreCount : dstoreCounts) {
+                    for (int r : rs) {
+                        for (int fileCount : fileCounts) {
+                            if (dstoreCount < r) continue;
+                            results.addAll(run(engineName, virtualDstoreCount, dstoreCount, r, fileCount));
+                        }
+                    }
+                }
+            }
+        }
+        Config.virtualDstoreCount = originalVirtualDstoreCount;
+        results.sort(Comparator.comparing((Result result) -> result.operation));
+        for (Result result : results) System.out.println(result);
+    }
+}
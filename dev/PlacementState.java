@@ -0,0 +1,21 @@
+/**
+ * 放置算法已提交的成员状态，用于写入controller快照和重启后恢复。
+ * positions、owners和ownerPorts只有hash环使用，其余算法为null
+ */
+public class PlacementState {
+    public final long epoch;
+    public final int[] members; // 成员顺序与getDPorts()一致，jump等算法的位置依赖该顺序
+    public final double[] weights; // 与members一一对应
+    public final int[] positions;
+    public final int[] owners;
+    public final int[] ownerPorts;
+
+    public PlacementState(long epoch, int[] members, double[] weights, int[] positions, int[] owners, int[] ownerPorts) {
+        this.epoch = epoch;
+        this.members = members;
+        this.weights = weights;
+        this.positions = positions;
+        this.owners = owners;
+        this.ownerPorts = ownerPorts;
+    }
+}
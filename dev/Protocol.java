@@ -3,28 +3,46 @@ public class Protocol {
 
     // messages sent by Clients
     public final static String LIST_TOKEN = "LIST"; // also from Controller and Dstores
+    public final static String LIST_PAGE_TOKEN = "LIST_PAGE"; // LIST_PAGE limit [prefix=...] [after=...]; LIST_PAGE more filename1 ... from the Controller
     public final static String STORE_TOKEN = "STORE"; // also from Dstores
     public final static String LOAD_TOKEN = "LOAD";
     public final static String LOAD_DATA_TOKEN = "LOAD_DATA";
     public final static String RELOAD_TOKEN = "RELOAD";
     public final static String REMOVE_TOKEN = "REMOVE"; // also from Controller
+    public final static String STORE_BATCH_TOKEN = "STORE_BATCH"; // STORE_BATCH filename1 size1 filename2 size2 ..., also to Dstores
 
     // messages sent by the Controller
     public final static String STORE_TO_TOKEN = "STORE_TO";
     public final static String STORE_COMPLETE_TOKEN = "STORE_COMPLETE";
+    public final static String STORE_BATCH_TO_TOKEN = "STORE_BATCH_TO"; // STORE_BATCH_TO ports1 ports2 ..., comma separated ports or an error per file
+    public final static String STORE_BATCH_COMPLETE_TOKEN = "STORE_BATCH_COMPLETE"; // STORE_BATCH_COMPLETE result1 result2 ...
+    public final static String STORE_BATCH_STORED = "1"; // per-file results of STORE_BATCH_COMPLETE
+    public final static String STORE_BATCH_FAILED = "0";
     public final static String LOAD_FROM_TOKEN = "LOAD_FROM";
     public final static String REMOVE_COMPLETE_TOKEN = "REMOVE_COMPLETE";
     public final static String REBALANCE_TOKEN = "REBALANCE";
+    public final static String REMOVE_BATCH_TOKEN = "REMOVE_BATCH"; // REMOVE_BATCH filename1 filename2 ...
+    public final static String JOURNAL_TOKEN = "JOURNAL"; // JOURNAL epoch since; JOURNAL epoch seq delta|full +filename -filename ... from Dstores
+    public final static String DIGEST_TOKEN = "DIGEST"; // DIGEST node1 node2 ...; DIGEST hex1 hex2 ... from Dstores
+    public final static String DIGEST_FILES_TOKEN = "DIGEST_FILES"; // DIGEST_FILES leaf1 leaf2 ...; DIGEST_FILES filename1 filename2 ... from Dstores
     public final static String ERROR_FILE_DOES_NOT_EXIST_TOKEN = "ERROR_FILE_DOES_NOT_EXIST"; // also from Dstores
     public final static String ERROR_FILE_ALREADY_EXISTS_TOKEN = "ERROR_FILE_ALREADY_EXISTS";
     public final static String ERROR_NOT_ENOUGH_DSTORES_TOKEN = "ERROR_NOT_ENOUGH_DSTORES";
     public final static String ERROR_LOAD_TOKEN = "ERROR_LOAD";
+    public final static String ERROR_MALFORMED_REQUEST_TOKEN = "ERROR_MALFORMED_REQUEST"; // missing or non-numeric arguments, e.g. LIST_PAGE limit
+    public final static String METRICS_TOKEN = "METRICS"; // METRICS from clients, METRICS name=value ... from the Controller and Dstores
 
     // messages sent by Dstores
     public final static String ACK_TOKEN = "ACK";
     public final static String STORE_ACK_TOKEN = "STORE_ACK";
+    public final static String STORE_BATCH_ACK_TOKEN = "STORE_BATCH_ACK"; // STORE_BATCH_ACK port filename1 filename2 ...
     public final static String REMOVE_ACK_TOKEN = "REMOVE_ACK";
-    public final static String JOIN_TOKEN = "JOIN";
+    public final static String REMOVE_BATCH_ACK_TOKEN = "REMOVE_BATCH_ACK"; // REMOVE_BATCH_ACK result1 result2 ..., in the order of REMOVE_BATCH
+    public final static String REMOVE_BATCH_REMOVED = "1"; // per-file results of REMOVE_BATCH_ACK
+    public final static String REMOVE_BATCH_MISSING = "0";
+    public final static String REMOVE_BATCH_FAILED = "-1";
+    public final static String JOIN_TOKEN = "JOIN"; // JOIN port [capacity] [weight]
+    public final static String WEIGHT_TOKEN = "WEIGHT"; // WEIGHT port weight, runtime weight change; WEIGHT weight to a Dstore
     public final static String REBALANCE_STORE_TOKEN = "REBALANCE_STORE";
     public final static String REBALANCE_COMPLETE_TOKEN = "REBALANCE_COMPLETE";
 }
@@ -0,0 +1,152 @@
+import java.io.Closeable;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Logger;
+
+/**
+ * 重平衡调度：所有重平衡都在一个长期存在的线程上串行执行。除周期触发外，dstore加入、权重变化、RELOAD和反熵发现的不一致
+ * 都会触发一次重平衡，短时间内的多个事件合并为一次(去抖)。失败后按带随机抖动的指数退避重试，不必等到下一个周期；
+ * 成员变化会取消进行中的重平衡剩余的迁移，被取消的文件记为存储位置过期，由随后的一次按新成员重新规划
+ */
+public class RebalanceScheduler implements Closeable {
+    private static final Logger logger = Logger.getLogger(RebalanceScheduler.class.getName());
+    private static final LongAdder runs = Metrics.counter("rebalance.scheduler.runs");
+    private static final LongAdder triggers = Metrics.counter("rebalance.scheduler.triggers");
+    private static final LongAdder retries = Metrics.counter("rebalance.scheduler.retries");
+    private static final LongAdder cancellations = Metrics.counter("rebalance.scheduler.cancellations");
+    private final Task task;
+    private final long debounceMillis;
+    private final long debounceMaxMillis;
+    private final long backoffMillis;
+    private final long backoffMaxMillis;
+    private final ScheduledExecutorService executor;
+    private ScheduledFuture<?> nextRun; // scheduled and not started yet, guarded by this
+    private long nextRunAt; // nanoTime of nextRun, guarded by this
+    private long firstEventAt; // nanoTime of the first event not yet handled, 0 when none, guarded by this
+    private int failures; // 连续失败次数，guarded by this
+    private boolean running; // guarded by this
+    private volatile boolean cancelled; // 取消进行中的重平衡
+
+    /**
+     * 一次重平衡
+     */
+    interface Task {
+        /**
+         * @param cancelled 是否已取消，取消后应尽快结束
+         * @return 是否成功
+         * @throws Exception
+         */
+        boolean run(BooleanSupplier cancelled) throws Exception;
+    }
+
+    /**
+     * 初始化
+     * @param task
+     * @param debounceMillis 最后一个事件之后等待的时间
+     * @param debounceMaxMillis 事件持续到达时，从第一个事件起最多等待的时间
+     * @param backoffMillis 第一次重试的等待时间
+     * @param backoffMaxMillis 重试等待时间上限
+     */
+    public RebalanceScheduler(Task task, long debounceMillis, long debounceMaxMillis, long backoffMillis, long backoffMaxMillis) {
+        this.task = task;
+        this.debounceMillis = Math.max(0, debounceMillis);
+        this.debounceMaxMillis = Math.max(this.debounceMillis, debounceMaxMillis);
+        this.backoffMillis = Math.max(1, backoffMillis);
+        this.backoffMaxMillis = Math.max(this.backoffMillis, backoffMaxMillis);
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rebalance scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 周期触发
+     * @param periodMillis
+     */
+    public void schedulePeriodic(long periodMillis) {
+        executor.scheduleAtFixedRate(() -> trigger("period", false), periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 事件触发，去抖后执行
+     * @param reason 用于日志
+     * @param preempt 是否取消进行中的重平衡，成员变化时使用
+     */
+    public synchronized void trigger(String reason, boolean preempt) {
+        triggers.increment();
+        long now = System.nanoTime();
+        if (firstEventAt == 0) firstEventAt = now;
+        if (preempt && running && !cancelled) {
+            cancelled = true;
+            cancellations.increment();
+            logger.info(String.format("cancel the running rebalance for %s", reason));
+        }
+        // 从最后一个事件起等待debounceMillis，但不晚于第一个事件之后debounceMaxMillis
+        long delayNanos = Math.min(TimeUnit.MILLISECONDS.toNanos(debounceMillis),
+                firstEventAt + TimeUnit.MILLISECONDS.toNanos(debounceMaxMillis) - now);
+        schedule(Math.max(0, delayNanos), true);
+    }
+
+    /**
+     * 安排下一次执行
+     * @param delayNanos
+     * @param replace 是否替换已安排的执行：事件触发时替换(去抖)，重试时保留更早的执行
+     */
+    private synchronized void schedule(long delayNanos, boolean replace) {
+        long at = System.nanoTime() + delayNanos;
+        if (nextRun != null) {
+            if (!replace && nextRunAt <= at) return;
+            nextRun.cancel(false);
+        }
+        nextRunAt = at;
+        nextRun = executor.schedule(this::runOnce, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void runOnce() {
+        synchronized (this) {
+            firstEventAt = 0;
+            nextRun = null;
+            running = true;
+            cancelled = false;
+        }
+        runs.increment();
+        boolean success = false;
+        try {
+            success = task.run(() -> cancelled);
+        } catch (Exception e) {
+            logger.warning(String.format("rebalanced error: %s", e));
+        }
+        synchronized (this) {
+            running = false;
+            if (success || cancelled) {
+                // 取消后由触发取消的事件安排下一次执行，不计为失败
+                failures = 0;
+                return;
+            }
+            failures++;
+            retries.increment();
+            long delayMillis = backoffDelayMillis(failures);
+            logger.warning(String.format("rebalanced failed %d times, retry in %d ms", failures, delayMillis));
+            schedule(TimeUnit.MILLISECONDS.toNanos(delayMillis), false);
+        }
+    }
+
+    /**
+     * 带随机抖动的指数退避，避免多个失败原因同时恢复时同步重试
+     * @param failures 连续失败次数
+     * @return 等待毫秒数，在[d/2, d)之间，d = min(backoffMillis * 2^(failures-1), backoffMaxMillis)
+     */
+    private long backoffDelayMillis(int failures) {
+        long delay = backoffMillis << Math.min(failures - 1, 30);
+        if (delay <= 0 || delay > backoffMaxMillis) delay = backoffMaxMillis;
+        return delay / 2 + ThreadLocalRandom.current().nextLong(Math.max(1, delay - delay / 2));
+    }
+
+    @Override
+    public void close() {
+        cancelled = true;
+        executor.shutdownNow();
+    }
+}
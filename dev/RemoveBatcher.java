@@ -0,0 +1,131 @@
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.logging.Logger;
+
+/**
+ * 按dstore合并待删除的文件：第一个文件入队后等待一个短窗口，窗口内同一dstore的删除合并为一条REMOVE_BATCH发送，
+ * 达到批量上限时立即发送。dstore按顺序回复每个文件的结果，确认删除(或文件本就不存在)的文件逐个回调
+ */
+public class RemoveBatcher {
+    private static final Logger logger = Logger.getLogger(RemoveBatcher.class.getName());
+    private static final Metrics.Histogram batchSize = Metrics.histogram("controller.remove.batchSize");
+    private final ConcurrentHashMap<Integer, Batch> batches = new ConcurrentHashMap<>();
+    private final DstoreConnectionPool dstoreConnections;
+    private final TimerWheel timerWheel;
+    private final Executor executor;
+    private final long windowMillis;
+    private final int maxBatch;
+
+    /**
+     * 一个待删除的文件
+     */
+    private static final class Entry {
+        final String filename;
+        final Runnable onAck;
+
+        Entry(String filename, Runnable onAck) {
+            this.filename = filename;
+            this.onAck = onAck;
+        }
+    }
+
+    /**
+     * 单个dstore尚未发送的文件
+     */
+    private static final class Batch {
+        List<Entry> entries = new ArrayList<>(); // guarded by this
+        boolean scheduled; // 是否已有等待窗口结束的发送任务，guarded by this
+
+        List<Entry> take() {
+            List<Entry> taken = entries;
+            entries = new ArrayList<>();
+            return taken;
+        }
+    }
+
+    /**
+     * 初始化
+     * @param dstoreConnections
+     * @param timerWheel 窗口计时
+     * @param executor 发送和回调所在的线程池
+     * @param windowMillis 合并窗口，不大于0时每个文件单独发送
+     * @param maxBatch 单条消息的文件数上限
+     */
+    public RemoveBatcher(DstoreConnectionPool dstoreConnections, TimerWheel timerWheel, Executor executor, long windowMillis, int maxBatch) {
+        this.dstoreConnections = dstoreConnections;
+        this.timerWheel = timerWheel;
+        this.executor = executor;
+        this.windowMillis = windowMillis;
+        this.maxBatch = Math.max(1, maxBatch);
+    }
+
+    /**
+     * 登记一个删除，dstore确认后在executor上执行onAck；超时或失败时只记录日志
+     * @param dPort
+     * @param filename
+     * @param onAck
+     */
+    public void remove(int dPort, String filename, Runnable onAck) {
+        Batch batch = batches.computeIfAbsent(dPort, k -> new Batch());
+        List<Entry> full = null;
+        synchronized (batch) {
+            batch.entries.add(new Entry(filename, onAck));
+            if (windowMillis <= 0 || batch.entries.size() >= maxBatch) {
+                full = batch.take();
+            } else if (!batch.scheduled) {
+                batch.scheduled = true;
+                timerWheel.schedule(() -> executor.execute(() -> flush(dPort, batch)), windowMillis);
+            }
+        }
+        if (full != null) {
+            List<Entry> entries = full;
+            executor.execute(() -> send(dPort, entries));
+        }
+    }
+
+    private void flush(int dPort, Batch batch) {
+        List<Entry> entries;
+        synchronized (batch) {
+            batch.scheduled = false;
+            entries = batch.take();
+        }
+        if (!entries.isEmpty()) send(dPort, entries);
+    }
+
+    /**
+     * 发送一条REMOVE_BATCH，回复REMOVE_BATCH_ACK中的结果与文件一一对应
+     * @param dPort
+     * @param entries
+     */
+    private void send(int dPort, List<Entry> entries) {
+        batchSize.record(entries.size());
+        StringBuilder sendMsg = new StringBuilder(Protocol.REMOVE_BATCH_TOKEN);
+        for (Entry entry : entries) sendMsg.append(' ').append(entry.filename);
+        try {
+            String receiveMsg = dstoreConnections.execute(dPort, communication -> {
+                communication.send(sendMsg.toString());
+                return communication.receive();
+            });
+            String[] substrings = receiveMsg == null ? new String[0] : receiveMsg.split(" ");
+            if (substrings.length != entries.size() + 1 || !substrings[0].equals(Protocol.REMOVE_BATCH_ACK_TOKEN)) {
+                logger.warning(String.format("unexpected response of REMOVE_BATCH from %d", dPort));
+                return;
+            }
+            for (int i = 0; i < entries.size(); i++) {
+                if (substrings[i + 1].equals(Protocol.REMOVE_BATCH_FAILED)) {
+                    logger.warning(String.format("dstore %d fail to delete file %s", dPort, entries.get(i).filename));
+                    continue;
+                }
+                entries.get(i).onAck.run();
+            }
+        } catch (SocketTimeoutException e) {
+            logger.warning(String.format("not receive response of REMOVE_BATCH command from %d", dPort));
+        } catch (IOException e) {
+            logger.warning(String.format("send REMOVE_BATCH to %d error", dPort));
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * 加权rendezvous hash（HRW）放置算法，每个文件对每个节点计算得分，取得分最高的r个节点。
+ * 不需要虚拟节点，成员变更时只有得分排名受影响的副本需要迁移
+ */
+public class RendezvousHash extends AbstractPlacementEngine {
+    static final String NAME = "rendezvous";
+
+    public RendezvousHash() {
+        this(HashFunction.of(Config.hashFunction), new FileIdDictionary());
+    }
+
+    public RendezvousHash(HashFunction hashFunction, FileIdDictionary fileIds) {
+        super(hashFunction, fileIds);
+    }
+
+    /**
+     * 加权得分 -weight / ln(u)，u为文件与节点组合hash映射到(0,1)的值
+     * @param hash
+     * @param dPort
+     * @param weight
+     * @return
+     */
+    static double score(long hash, int dPort, double weight) {
+        long mixed = Murmur3HashFunction.fmix64(hash ^ (dPort * 0x9E3779B97F4A7C15L));
+        double u = ((mixed >>> 11) + 0.5) / (double) (1L << 53);
+        return -weight / Math.log(u);
+    }
+
+    @Override
+    protected int[] place(long hash, int r, Membership membership) {
+        int[] selected = new int[r];
+        double[] scores = new double[r];
+        int count = 0;
+        // 维护得分降序的前r个节点
+        for (int i = 0; i < membership.dPorts.length; i++) {
+            int dPort = membership.dPorts[i];
+            double score = score(hash, dPort, membership.weights[i]);
+            if (count == r && score <= scores[r - 1]) continue;
+            int pos = count < r ? count++ : r - 1;
+            while (pos > 0 && scores[pos - 1] < score) {
+                scores[pos] = scores[pos - 1];
+                selected[pos] = selected[pos - 1];
+                pos--;
+            }
+            scores[pos] = score;
+            selected[pos] = dPort;
+        }
+        return selected;
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+}
@@ -0,0 +1,110 @@
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * 哈希时间轮，大量短超时共用一个线程：每个槽对应一个tick，超时任务按到期tick放入对应槽，超过一圈的记录剩余圈数。
+ * 添加和取消都是O(1)，取消只做标记，由工作线程经过该槽时丢弃；精度为一个tick，任务在工作线程上执行，不能阻塞
+ */
+public class TimerWheel {
+    private static final Logger logger = Logger.getLogger(TimerWheel.class.getName());
+    private final long tickNanos;
+    private final Queue<Timeout>[] wheel; // only touched by worker
+    private final int mask;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>(); // 其它线程新加入的任务，由工作线程放入槽中
+    private final long startNanos = System.nanoTime();
+    private long tick; // 已处理到的tick，only touched by worker
+
+    /**
+     * 一个超时任务
+     */
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadlineTick;
+        private long rounds; // only touched by worker
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadlineTick) {
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        /**
+         * 取消尚未执行的任务，已执行的任务不受影响
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    /**
+     * 初始化并启动工作线程
+     * @param name 工作线程名
+     * @param tickMillis 每个tick的毫秒数
+     * @param slots 槽数，向上取整为2的幂
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimerWheel(String name, long tickMillis, int slots) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        int count = Integer.highestOneBit(Math.max(1, slots * 2 - 1));
+        wheel = new Queue[count];
+        for (int i = 0; i < count; i++) wheel[i] = new ArrayDeque<>();
+        mask = count - 1;
+        Thread worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * 在delayMillis之后执行任务，可在任意线程调用
+     * @param task
+     * @param delayMillis
+     * @return 可取消的句柄
+     */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        long elapsed = System.nanoTime() - startNanos + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+        Timeout timeout = new Timeout(task, (elapsed + tickNanos - 1) / tickNanos);
+        added.add(timeout);
+        return timeout;
+    }
+
+    private void run() {
+        while (true) {
+            long sleepNanos = startNanos + (tick + 1) * tickNanos - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            tick++;
+            Timeout timeout;
+            while ((timeout = added.poll()) != null) {
+                if (timeout.cancelled) continue;
+                long deadlineTick = Math.max(timeout.deadlineTick, tick); // 已经过期的放入当前槽
+                timeout.rounds = (deadlineTick - tick) / wheel.length;
+                wheel[(int) (deadlineTick & mask)].add(timeout);
+            }
+            Iterator<Timeout> iterator = wheel[(int) (tick & mask)].iterator();
+            while (iterator.hasNext()) {
+                timeout = iterator.next();
+                if (timeout.cancelled) {
+                    iterator.remove();
+                } else if (timeout.rounds <= 0) {
+                    iterator.remove();
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        logger.warning(String.format("timeout task fault: %s", e));
+                    }
+                } else {
+                    timeout.rounds--;
+                }
+            }
+        }
+    }
+}
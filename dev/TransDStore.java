@@ -3,28 +3,42 @@ import java.util.stream.Collectors;
 
 /**
  * rebalance 命令生成类，统一命令生成过程，简化操作，提高代码复用率
+ * 内部以文件编号记录，只在生成命令时转换为文件名
  */
 public class TransDStore {
     private int sourceDPort; // rebalance 命令将要发送到的dstore
-    public Map<String, List<Integer>> sendFiles; // sourceDPort send file to sendFiles.KeySet()
-    public List<String> removeFiles; //
+    private final FileIdDictionary fileIds;
+    public Map<Integer, List<Integer>> sendFiles; // sourceDPort send file id to sendFiles.KeySet()
+    public IntHashSet removeFiles; // file ids
 
-    TransDStore(int dPort){
+    TransDStore(int dPort, FileIdDictionary fileIds){
         this.sourceDPort = dPort;
+        this.fileIds = fileIds;
         sendFiles = new HashMap<>();
-        removeFiles = new ArrayList<>();
+        removeFiles = new IntHashSet();
+    }
+
+    public int getSourceDPort() {
+        return sourceDPort;
     }
 
     public String generateCommand(){
         List<String> sendFileCommands = new ArrayList<>();
-        for (Map.Entry<String, List<Integer>> entry:sendFiles.entrySet()){
-            sendFileCommands.add(String.join(" ", String.format("%s %d",entry.getKey(), entry.getValue().size()),
+        for (Map.Entry<Integer, List<Integer>> entry:sendFiles.entrySet()){
+            sendFileCommands.add(String.join(" ", String.format("%s %d", fileIds.nameOf(entry.getKey()), entry.getValue().size()),
                     entry.getValue().stream().map(Objects::toString).collect(Collectors.joining(" "))));
         }
         String sendFileCommand = String.join(" ", sendFileCommands);
-        String removeFileCommand = String.join(" ", removeFiles);
-        String command = String.format("%d %s %d %s", sendFiles.size(), sendFileCommand, removeFiles.size(), removeFileCommand);
-        return command;
+        List<String> removeFileNames = new ArrayList<>(removeFiles.size());
+        removeFiles.forEach(fileId -> removeFileNames.add(fileIds.nameOf(fileId)));
+        String removeFileCommand = String.join(" ", removeFileNames);
+        // 没有发送或删除的文件时省略对应部分，否则连续的空格会被dstore拆分出空字段
+        List<String> command = new ArrayList<>();
+        command.add(String.valueOf(sendFiles.size()));
+        if (!sendFileCommand.isEmpty()) command.add(sendFileCommand);
+        command.add(String.valueOf(removeFiles.size()));
+        if (!removeFileCommand.isEmpty()) command.add(removeFileCommand);
+        return String.join(" ", command);
     }
 
 }
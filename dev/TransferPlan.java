@@ -0,0 +1,111 @@
+import java.util.*;
+import java.util.function.IntToLongFunction;
+
+/**
+ * 成员变更的迁移计划，由放置算法生成，controller据此生成rebalance命令，文件迁移完成后提交给放置算法
+ */
+public class TransferPlan {
+    private static final Metrics.Histogram movedFilesHistogram = Metrics.histogram("plan.movedFiles");
+    private static final Metrics.Histogram movedBytesHistogram = Metrics.histogram("plan.movedBytes");
+    final long baseEpoch; // 生成计划时的版本号
+    final Set<Integer> joins;
+    final Set<Integer> leaves;
+    final List<FileMove> moves = new ArrayList<>();
+    final Map<Integer, List<VirtualDstore>> virtualDstoreTargets = new HashMap<>(); // 虚拟节点的新归属，只有hash环使用
+    final Map<Integer, Double> weights = new HashMap<>(); // 新加入或权重发生变化的节点权重
+    final List<FileRelocation> fileRelocations = new ArrayList<>(); // 改放到其它虚拟节点的副本，只有hash环使用
+    long movedBytes; // 迁移的总字节数，按放置算法的文件大小统计
+
+    TransferPlan(long baseEpoch, Set<Integer> joins, Set<Integer> leaves) {
+        this.baseEpoch = baseEpoch;
+        this.joins = joins;
+        this.leaves = leaves;
+    }
+
+    void addMove(int fileId, int from, int to, long bytes) {
+        moves.add(new FileMove(fileId, from, to));
+        movedBytes += bytes;
+    }
+
+    /**
+     * 替换部分文件的全部迁移，一次遍历移除旧迁移，迁移字节数随之调整
+     * @param replacements file id -> 新的迁移，可以为空
+     * @param fileSizes
+     */
+    void replaceMoves(Map<Integer, List<FileMove>> replacements, IntToLongFunction fileSizes) {
+        Iterator<FileMove> iterator = moves.iterator();
+        while (iterator.hasNext()) {
+            FileMove move = iterator.next();
+            if (!replacements.containsKey(move.fileId)) continue;
+            iterator.remove();
+            movedBytes -= fileSizes.applyAsLong(move.fileId);
+        }
+        replacements.forEach((fileId, fileMoves) -> {
+            moves.addAll(fileMoves);
+            movedBytes += fileSizes.applyAsLong(fileId) * fileMoves.size();
+        });
+    }
+
+    /**
+     * 计划生成完毕，记录迁移量指标
+     */
+    void recordMetrics() {
+        movedFilesHistogram.record(getMovedFiles());
+        movedBytesHistogram.record(movedBytes);
+    }
+
+    public int getMovedFiles() {
+        return moves.size();
+    }
+
+    public long getMovedBytes() {
+        return movedBytes;
+    }
+
+    /**
+     * 按目标节点分组的待迁移文件编号
+     * @return
+     */
+    public Map<Integer, IntHashSet> getTargetFilesMap() {
+        Map<Integer, IntHashSet> map = new HashMap<>();
+        for (FileMove move : moves) {
+            map.computeIfAbsent(move.to, k -> new IntHashSet()).add(move.fileId);
+        }
+        return map;
+    }
+
+    /**
+     * 文件的一个副本从虚拟节点fromIndex改放到toIndex，提交时更新文件与虚拟节点的对应关系
+     */
+    public static class FileRelocation {
+        final int fileId;
+        final int fromIndex;
+        final int toIndex;
+
+        FileRelocation(int fileId, int fromIndex, int toIndex) {
+            this.fileId = fileId;
+            this.fromIndex = fromIndex;
+            this.toIndex = toIndex;
+        }
+    }
+
+    /**
+     * 单个文件副本的迁移
+     */
+    public static class FileMove {
+        final int fileId;
+        final int from; // 副本原所在节点，-1表示新增副本
+        final int to;
+
+        FileMove(int fileId, int from, int to) {
+            this.fileId = fileId;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("#%d %d->%d", fileId, from, to);
+        }
+    }
+}
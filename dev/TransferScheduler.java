@@ -0,0 +1,236 @@
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Logger;
+
+/**
+ * 重平衡迁移调度：把每个dstore的rebalance命令拆成按字节数限定的小命令，按优先级(副本不足的文件、迁移、删除)依次下发，
+ * 限制同时进行的命令数和每个dstore参与的命令数，并按全局和每个dstore的字节速率限流，避免恢复期间占满前台LOAD的带宽
+ */
+public class TransferScheduler {
+    private static final Logger logger = Logger.getLogger(TransferScheduler.class.getName());
+    private static final LongAdder transferFailures = Metrics.counter("rebalance.transfer.failures");
+    private final int maxTransfers;
+    private final int dstoreTransfers;
+    private final RateLimiter globalRate;
+    private final long dstoreBytesPerSecond;
+    private final Map<Integer, RateLimiter> dstoreRates = new HashMap<>(); // guarded by this
+    private final ExecutorService workers;
+    private final Map<Integer, Integer> activeByDPort = new HashMap<>(); // dPort -> commands it sends or receives, guarded by this
+    private int active; // guarded by this
+    private long totalBytes; // 本次调度的字节数，guarded by this
+    private long doneBytes; // guarded by this
+    private long startNanos; // guarded by this
+
+    /**
+     * 迁移优先级，数值小的先执行
+     */
+    enum Priority {
+        REPAIR, // 副本数不足的文件
+        MOVE, // 成员或权重变化引起的迁移
+        DELETE
+    }
+
+    /**
+     * 一条rebalance命令
+     */
+    static class Transfer {
+        final Priority priority;
+        final TransDStore command;
+        final long bytes; // 发送的字节数，每个目标各计一次
+        private final long seq; // 同一优先级内按加入顺序执行
+
+        Transfer(Priority priority, TransDStore command, long bytes, long seq) {
+            this.priority = priority;
+            this.command = command;
+            this.bytes = bytes;
+            this.seq = seq;
+        }
+
+        int dPort() {
+            return command.getSourceDPort();
+        }
+
+        /**
+         * 参与的dstore，发送方和全部接收方
+         * @return
+         */
+        Set<Integer> dPorts() {
+            Set<Integer> dPorts = new HashSet<>();
+            dPorts.add(dPort());
+            for (List<Integer> targets : command.sendFiles.values()) dPorts.addAll(targets);
+            return dPorts;
+        }
+    }
+
+    /**
+     * 执行一条命令
+     */
+    interface Transport {
+        /**
+         * @param transfer
+         * @return 是否收到REBALANCE_COMPLETE
+         */
+        boolean execute(Transfer transfer);
+    }
+
+    /**
+     * 初始化
+     * @param maxTransfers 同时进行的命令数上限
+     * @param dstoreTransfers 每个dstore同时参与的命令数上限
+     * @param bytesPerSecond 全局迁移速率上限，不大于0时不限制
+     * @param dstoreBytesPerSecond 每个dstore发送或接收的速率上限，不大于0时不限制
+     */
+    public TransferScheduler(int maxTransfers, int dstoreTransfers, long bytesPerSecond, long dstoreBytesPerSecond) {
+        this.maxTransfers = Math.max(1, maxTransfers);
+        this.dstoreTransfers = Math.max(1, dstoreTransfers);
+        this.globalRate = new RateLimiter(bytesPerSecond);
+        this.dstoreBytesPerSecond = dstoreBytesPerSecond;
+        this.workers = Executors.newFixedThreadPool(this.maxTransfers);
+        Metrics.gauge("rebalance.transfer.active", () -> activeCount());
+        Metrics.gauge("rebalance.transfer.pendingBytes", () -> progress()[0]);
+        Metrics.gauge("rebalance.transfer.doneBytes", () -> progress()[1]);
+        Metrics.gauge("rebalance.transfer.bytesPerSecond", () -> progress()[2]);
+        Metrics.gauge("rebalance.transfer.etaSeconds", () -> progress()[3]);
+    }
+
+    /**
+     * 按优先级执行全部命令，全部结束后返回；同一dstore的命令可以并发
+     * @param transfers
+     * @param transport
+     * @param cancelled 取消后不再下发剩余的命令，等待已下发的命令结束
+     * @return 失败或因取消未执行的命令，调用方需要按实际持有的副本重新核对这些文件
+     */
+    public List<Transfer> run(List<Transfer> transfers, Transport transport, BooleanSupplier cancelled) {
+        PriorityQueue<Transfer> queue = new PriorityQueue<>(Comparator.comparing((Transfer transfer) -> transfer.priority)
+                .thenComparingLong(transfer -> transfer.seq));
+        queue.addAll(transfers);
+        List<Transfer> failed = Collections.synchronizedList(new ArrayList<>());
+        synchronized (this) {
+            totalBytes = transfers.stream().mapToLong(transfer -> transfer.bytes).sum();
+            doneBytes = 0;
+            startNanos = System.nanoTime();
+            while (!queue.isEmpty() || active > 0) {
+                if (!queue.isEmpty() && cancelled.getAsBoolean()) {
+                    logger.info(String.format("rebalance cancelled, %d transfers are not started", queue.size()));
+                    failed.addAll(queue);
+                    queue.clear();
+                    continue;
+                }
+                Transfer next = active < maxTransfers ? poll(queue) : null;
+                if (next == null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    continue;
+                }
+                Set<Integer> dPorts = next.dPorts();
+                for (int dPort : dPorts) activeByDPort.merge(dPort, 1, Integer::sum);
+                active++;
+                // 按优先级顺序预约速率，等待在工作线程上进行
+                long delayNanos = globalRate.reserve(next.bytes);
+                for (int dPort : dPorts) {
+                    delayNanos = Math.max(delayNanos, dstoreRates.computeIfAbsent(dPort, k -> new RateLimiter(dstoreBytesPerSecond)).reserve(next.bytes));
+                }
+                long delayMillis = delayNanos / 1_000_000;
+                workers.execute(() -> {
+                    boolean executed = false;
+                    boolean success = false;
+                    try {
+                        if (delayMillis > 0) Thread.sleep(delayMillis);
+                        executed = !cancelled.getAsBoolean();
+                        if (executed) success = transport.execute(next);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (RuntimeException e) {
+                        logger.warning(String.format("transfer on %d error: %s", next.dPort(), e.getMessage()));
+                    } finally {
+                        if (!success) {
+                            failed.add(next);
+                            if (executed) transferFailures.increment(); // 取消的命令不计为失败
+                        }
+                        finish(next, dPorts);
+                    }
+                });
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * 取出优先级最高且参与的dstore都未达到并发上限的命令
+     * @param queue
+     * @return 没有可执行的命令时为null
+     */
+    private Transfer poll(PriorityQueue<Transfer> queue) {
+        List<Transfer> skipped = new ArrayList<>();
+        Transfer next = null;
+        while (!queue.isEmpty()) {
+            Transfer transfer = queue.poll();
+            boolean available = transfer.dPorts().stream().allMatch(dPort -> activeByDPort.getOrDefault(dPort, 0) < dstoreTransfers);
+            if (available) {
+                next = transfer;
+                break;
+            }
+            skipped.add(transfer);
+        }
+        queue.addAll(skipped);
+        return next;
+    }
+
+    private synchronized void finish(Transfer transfer, Set<Integer> dPorts) {
+        for (int dPort : dPorts) activeByDPort.merge(dPort, -1, Integer::sum);
+        active--;
+        doneBytes += transfer.bytes;
+        if (transfer.bytes > 0) {
+            long[] progress = progress();
+            logger.info(String.format("rebalance transfer %d/%d bytes, %d bytes/s, eta %ds", doneBytes, totalBytes, progress[2], progress[3]));
+        }
+        notifyAll();
+    }
+
+    private synchronized int activeCount() {
+        return active;
+    }
+
+    /**
+     * 进度
+     * @return 剩余字节数，已完成字节数，平均速率(字节/秒)，预计剩余秒数
+     */
+    private synchronized long[] progress() {
+        long pending = totalBytes - doneBytes;
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        long rate = seconds > 0 ? (long) (doneBytes / seconds) : 0;
+        long eta = pending == 0 ? 0 : rate > 0 ? pending / rate : -1; // -1 before the first transfer completes
+        return new long[]{pending, doneBytes, rate, eta};
+    }
+
+    /**
+     * 按预约计算等待时间的字节速率限制，允许一次预约超过一秒的额度，之后的预约顺延
+     */
+    private static class RateLimiter {
+        private final long bytesPerSecond;
+        private long nextFreeNanos = System.nanoTime();
+
+        RateLimiter(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        /**
+         * 预约字节数
+         * @param bytes
+         * @return 需要等待的纳秒数
+         */
+        synchronized long reserve(long bytes) {
+            if (bytesPerSecond <= 0) return 0;
+            long now = System.nanoTime();
+            long start = Math.max(now, nextFreeNanos);
+            nextFreeNanos = start + (long) (bytes * 1e9 / bytesPerSecond);
+            return start - now;
+        }
+    }
+}
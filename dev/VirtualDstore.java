@@ -1,22 +1,19 @@
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
-
 /**
  * 虚拟节点
  */
 public class VirtualDstore {
     private static int count;
     private final int id;
-    public int dPort;
-    List<String> files = new CopyOnWriteArrayList<>();
+    final int index; // position index on hash ring
+    final ConcurrentIntSet files = new ConcurrentIntSet(); // file ids, thread-safe on its own
 
-    private VirtualDstore() {
+    private VirtualDstore(int index) {
         id = count;
         count++;
+        this.index = index;
     }
 
-    public static VirtualDstore newInstance(){
-        return new VirtualDstore();
+    public static VirtualDstore newInstance(int index){
+        return new VirtualDstore(index);
     }
 }
@@ -0,0 +1,122 @@
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 虚拟节点文件集合的STORE/REMOVE吞吐量对比：原先的CopyOnWriteArrayList&lt;String&gt;与分段加锁的ConcurrentIntSet，
+ * 单个虚拟节点预先持有不同数量的文件，多个线程在固定时间内反复添加并删除新文件，另外统计完整遍历一次的最短耗时
+ */
+public class VirtualDstoreBenchmark {
+
+    /**
+     * 被测集合，只包含虚拟节点用到的操作
+     */
+    private interface FileSet {
+        void add(int fileId);
+
+        void remove(int fileId);
+
+        long iterate();
+    }
+
+    private static class CopyOnWriteFileSet implements FileSet {
+        private final List<String> files = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void add(int fileId) {
+            files.add("file_to_store" + fileId);
+        }
+
+        @Override
+        public void remove(int fileId) {
+            files.remove("file_to_store" + fileId);
+        }
+
+        @Override
+        public long iterate() {
+            long sum = 0;
+            for (String file : files) sum += file.length();
+            return sum;
+        }
+    }
+
+    private static class StripedFileSet implements FileSet {
+        private final ConcurrentIntSet files = new ConcurrentIntSet();
+
+        @Override
+        public void add(int fileId) {
+            files.add(fileId);
+        }
+
+        @Override
+        public void remove(int fileId) {
+            files.remove(fileId);
+        }
+
+        @Override
+        public long iterate() {
+            long[] sum = new long[1];
+            files.forEach(fileId -> sum[0] += fileId);
+            return sum[0];
+        }
+    }
+
+    /**
+     * 测量给定集合的吞吐量
+     * @param name
+     * @param set 空集合
+     * @param filesPerNode 预先存入的文件数
+     * @param threads 并发线程数
+     * @param millis 每轮测量时间
+     * @return 一行结果
+     * @throws InterruptedException
+     */
+    static String measure(String name, FileSet set, int filesPerNode, int threads, long millis) throws InterruptedException {
+        for (int i = 0; i < filesPerNode; i++) set.add(i);
+        long sink = 0;
+        long iterateNanos = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) { // 取最小值，排除预热
+            long iterateStart = System.nanoTime();
+            sink += set.iterate();
+            iterateNanos = Math.min(iterateNanos, System.nanoTime() - iterateStart);
+        }
+        AtomicLong operations = new AtomicLong();
+        Thread[] workers = new Thread[threads];
+        long deadline = System.nanoTime() + millis * 1_000_000L;
+        for (int t = 0; t < threads; t++) {
+            int base = filesPerNode + t * 100_000_000 / threads;
+            workers[t] = new Thread(() -> {
+                long count = 0;
+                int fileId = base;
+                while (System.nanoTime() < deadline) {
+                    set.add(fileId); // STORE
+                    set.remove(fileId); // REMOVE
+                    fileId++;
+                    count++;
+                }
+                operations.addAndGet(count);
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) worker.join();
+        if (sink == 42) System.out.print(""); // keep iteration alive
+        double opsPerSecond = operations.get() * 1000.0 / millis;
+        return String.format("%-13s files/VD=%-7d threads=%d store+remove=%,.0f/s iterate=%.2fms",
+                name, filesPerNode, threads, opsPerSecond, iterateNanos / 1e6);
+    }
+
+    /**
+     * @param args [线程数] [每轮毫秒数]
+     * @throws InterruptedException
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        long millis = args.length > 1 ? Long.parseLong(args[1]) : 500;
+        measure("warmup", new StripedFileSet(), 1000, threads, millis); // warm up
+        measure("warmup", new CopyOnWriteFileSet(), 1000, threads, millis);
+        for (int filesPerNode : new int[]{100, 1000, 10000, 100000}) {
+            System.out.println(measure("copy-on-write", new CopyOnWriteFileSet(), filesPerNode, threads, millis));
+            System.out.println(measure("striped", new StripedFileSet(), filesPerNode, threads, millis));
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * xxHash64，直接按UTF-16LE读取字符，不生成byte[]
+ */
+public class XxHash64Function implements HashFunction {
+    static final String NAME = "xxhash64";
+    private static final long P1 = 0x9E3779B185EBCA87L;
+    private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long P3 = 0x165667B19E3779F9L;
+    private static final long P4 = 0x85EBCA77C2B2AE63L;
+    private static final long P5 = 0x27D4EB2F165667C5L;
+    private final long seed;
+
+    public XxHash64Function() {
+        this(0);
+    }
+
+    public XxHash64Function(long seed) {
+        this.seed = seed;
+    }
+
+    @Override
+    public long hash64(String s) {
+        int length = s.length();
+        int pos = 0;
+        long h;
+        // 每个stripe为32字节，即16个字符
+        if (length >= 16) {
+            long v1 = seed + P1 + P2;
+            long v2 = seed + P2;
+            long v3 = seed;
+            long v4 = seed - P1;
+            for (; pos + 16 <= length; pos += 16) {
+                v1 = round(v1, chars4(s, pos));
+                v2 = round(v2, chars4(s, pos + 4));
+                v3 = round(v3, chars4(s, pos + 8));
+                v4 = round(v4, chars4(s, pos + 12));
+            }
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = merge(h, v1);
+            h = merge(h, v2);
+            h = merge(h, v3);
+            h = merge(h, v4);
+        } else {
+            h = seed + P5;
+        }
+        h += (long) length << 1;
+        for (; pos + 4 <= length; pos += 4) {
+            h ^= round(0, chars4(s, pos));
+            h = Long.rotateLeft(h, 27) * P1 + P4;
+        }
+        if (pos + 2 <= length) {
+            long k = ((long) s.charAt(pos) | ((long) s.charAt(pos + 1) << 16)) & 0xFFFFFFFFL;
+            h ^= k * P1;
+            h = Long.rotateLeft(h, 23) * P2 + P3;
+            pos += 2;
+        }
+        if (pos < length) {
+            char c = s.charAt(pos);
+            h ^= (c & 0xFF) * P5;
+            h = Long.rotateLeft(h, 11) * P1;
+            h ^= ((c >>> 8) & 0xFF) * P5;
+            h = Long.rotateLeft(h, 11) * P1;
+        }
+        h ^= h >>> 33;
+        h *= P2;
+        h ^= h >>> 29;
+        h *= P3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    private static long chars4(String s, int pos) {
+        return (long) s.charAt(pos)
+                | ((long) s.charAt(pos + 1) << 16)
+                | ((long) s.charAt(pos + 2) << 32)
+                | ((long) s.charAt(pos + 3) << 48);
+    }
+
+    private static long round(long acc, long input) {
+        acc += input * P2;
+        acc = Long.rotateLeft(acc, 31);
+        acc *= P1;
+        return acc;
+    }
+
+    private static long merge(long h, long v) {
+        h ^= round(0, v);
+        return h * P1 + P4;
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+}
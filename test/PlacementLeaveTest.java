@@ -0,0 +1,63 @@
+import java.util.*;
+
+/**
+ * 节点离开后成员恰好剩r个时，检查迁移计划和提交后的放置：
+ * 迁移不能发给自己或已持有该文件的节点，每个文件的r个副本位于不同节点
+ */
+public class PlacementLeaveTest {
+    private static final int r = 3;
+    private static final int fileCount = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int failures = 0;
+        for (String engine : new String[]{"ring", "jump", "rendezvous"}) {
+            for (int seed = 0; seed < 20; seed++) {
+                failures += check(engine, "f" + seed + "-", true);
+                failures += check(engine, "g" + seed + "-", false);
+            }
+        }
+        System.out.println(failures == 0 ? "OK" : "FAILED " + failures);
+        if (failures > 0) System.exit(1);
+    }
+
+    /**
+     * r个节点存入文件，可选先加入一个节点，再让一个原有节点离开，或直接从r+1个节点离开一个
+     */
+    private static int check(String engine, String prefix, boolean join) throws Exception {
+        FileIdDictionary ids = new FileIdDictionary();
+        PlacementEngine placement = PlacementEngine.of(engine, ids);
+        List<Integer> dPorts = join ? List.of(12346, 12347, 12348) : List.of(12346, 12347, 12348, 12349);
+        placement.init(dPorts, r);
+        placement.setFileSizes(id -> 1000);
+        for (int i = 0; i < fileCount; i++) {
+            String filename = prefix + i;
+            placement.afterStoreTargetFile(ids.intern(filename), placement.getStoreTarget(filename, r));
+        }
+        if (join) placement.commit(placement.changeMembership(Map.of(12349, 1.0), Set.of(), Map.of()));
+
+        Map<Integer, Set<Integer>> holders = new HashMap<>();
+        for (int i = 0; i < fileCount; i++) {
+            int fileId = ids.intern(prefix + i);
+            holders.put(fileId, new HashSet<>(placement.getFileDPorts(fileId)));
+        }
+        TransferPlan plan = placement.changeMembership(Map.of(), Set.of(12347), Map.of());
+        int failures = 0;
+        for (TransferPlan.FileMove move : plan.moves) {
+            if (move.to == move.from || holders.get(move.fileId).contains(move.to)) {
+                System.out.println(engine + " " + prefix + ": move of file " + move.fileId + " from " + move.from
+                        + " to " + move.to + ", holders " + holders.get(move.fileId));
+                failures++;
+            }
+        }
+        placement.commit(plan);
+        for (int i = 0; i < fileCount; i++) {
+            int fileId = ids.intern(prefix + i);
+            List<Integer> owners = placement.getFileDPorts(fileId);
+            if (new HashSet<>(owners).size() != r || owners.contains(12347)) {
+                System.out.println(engine + " " + prefix + ": file " + fileId + " placed on " + owners);
+                failures++;
+            }
+        }
+        return failures;
+    }
+}